@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust.benchmark;
+
+import com.github.drrb.javarust.AsyncGreetings;
+import com.github.drrb.javarust.Greetings;
+import com.github.drrb.javarust.GreetingsBinding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for rendering a batch of greetings, one after the other on the
+ * calling thread, or all at once on Rust's threads (see {@link AsyncGreetings}).
+ *
+ * The queue is big enough for a whole batch, so nothing gets rejected.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djna.nosys=true")
+@State(Scope.Thread)
+@OperationsPerInvocation(AsyncGreetingsBenchmark.BATCH_SIZE)
+public class AsyncGreetingsBenchmark {
+
+    static final int BATCH_SIZE = 100;
+
+    @Param({"INTERFACE", "DIRECT"})
+    public GreetingsBinding binding;
+
+    @Param({"1", "4"})
+    public int numberOfThreads;
+
+    private Greetings library;
+    private AsyncGreetings asyncGreetings;
+    private final CompletableFuture<?>[] batch = new CompletableFuture<?>[BATCH_SIZE];
+
+    @Setup
+    public void setUp() {
+        library = binding.library();
+        asyncGreetings = new AsyncGreetings(library, numberOfThreads, BATCH_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        asyncGreetings.close();
+    }
+
+    @Benchmark
+    public void renderGreeting(Blackhole blackhole) {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            blackhole.consume(library.renderGreeting("John"));
+        }
+    }
+
+    @Benchmark
+    public Object renderGreetingAsync() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = asyncGreetings.renderGreetingAsync("John");
+        }
+        return CompletableFuture.allOf(batch).join();
+    }
+}
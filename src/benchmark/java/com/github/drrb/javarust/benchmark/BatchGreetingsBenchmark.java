@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust.benchmark;
+
+import com.github.drrb.javarust.Greeting;
+import com.github.drrb.javarust.GreetingSet;
+import com.github.drrb.javarust.Greetings;
+import com.github.drrb.javarust.GreetingsBinding;
+import com.github.drrb.javarust.PackedGreetings;
+import com.github.drrb.javarust.PackedPeople;
+import com.github.drrb.javarust.Person;
+import com.github.drrb.javarust.SizedGreetingSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.drrb.javarust.benchmark.GreetingsBenchmark.nameOfLength;
+
+/**
+ * Rendering a set of greetings in one call, compared with one call per name.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djna.nosys=true")
+@State(Scope.Thread)
+public class BatchGreetingsBenchmark {
+
+    @Param({"INTERFACE", "DIRECT"})
+    public GreetingsBinding binding;
+
+    @Param({"1", "100", "10000"})
+    public int setSize;
+
+    @Param({"5", "50"})
+    public int nameLength;
+
+    private Greetings library;
+    private String[] names;
+    private Person[] people;
+    private PackedPeople packedPeople;
+
+    @Setup
+    public void setUp() {
+        library = binding.library();
+        names = new String[setSize];
+        for (int i = 0; i < setSize; i++) {
+            names[i] = nameOfLength(nameLength);
+        }
+        people = new Person[setSize];
+        for (int i = 0; i < setSize; i++) {
+            people[i] = new Person();
+            people[i].firstName = names[i];
+            people[i].lastName = names[i];
+        }
+        packedPeople = new PackedPeople();
+    }
+
+    @Benchmark
+    public void renderGreetingsFor(Blackhole blackhole) {
+        try (GreetingSet greetingSet = library.renderGreetingsFor(names, names.length)) {
+            for (Greeting greeting : greetingSet.getGreetings()) {
+                blackhole.consume(greeting.getText());
+            }
+        }
+    }
+
+    @Benchmark
+    public void renderGreetingsForReadingTheView(Blackhole blackhole) {
+        try (GreetingSet greetingSet = library.renderGreetingsFor(names, names.length)) {
+            for (Greeting greeting : greetingSet.getGreetingsView()) {
+                blackhole.consume(greeting.getText());
+            }
+        }
+    }
+
+    @Benchmark
+    public String renderGreetingsForReadingTheLastOne() {
+        try (GreetingSet greetingSet = library.renderGreetingsFor(names, names.length)) {
+            List<Greeting> greetings = greetingSet.getGreetingsView();
+            return greetings.get(greetings.size() - 1).getText();
+        }
+    }
+
+    @Benchmark
+    public void renderSizedGreetingsFor(Blackhole blackhole) {
+        try (SizedGreetingSet greetingSet = library.renderSizedGreetingsFor(names, names.length)) {
+            for (int i = 0; i < greetingSet.getNumberOfGreetings(); i++) {
+                blackhole.consume(greetingSet.getText(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public void renderGreetingForEach(Blackhole blackhole) {
+        for (String name : names) {
+            blackhole.consume(library.renderGreeting(name));
+        }
+    }
+
+    @Benchmark
+    public void greetPacked(Blackhole blackhole) {
+        // Packing the names each time, as we would for a different set of people
+        packedPeople.clear();
+        for (Person person : people) {
+            packedPeople.add(person);
+        }
+        try (PackedGreetings greetings = packedPeople.greet(library)) {
+            for (int i = 0; i < greetings.getCount(); i++) {
+                blackhole.consume(greetings.getText(i));
+            }
+        }
+    }
+
+    @Benchmark
+    public void greetEach(Blackhole blackhole) {
+        for (Person person : people) {
+            blackhole.consume(library.greet(person));
+        }
+    }
+}
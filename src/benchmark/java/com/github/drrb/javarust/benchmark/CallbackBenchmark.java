@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust.benchmark;
+
+import com.github.drrb.javarust.Greeting;
+import com.github.drrb.javarust.GreetingSet;
+import com.github.drrb.javarust.Greetings;
+import com.github.drrb.javarust.Greetings.GreetingCallback;
+import com.github.drrb.javarust.Greetings.GreetingSetCallback;
+import com.github.drrb.javarust.GreetingsBinding;
+import com.github.drrb.javarust.RegisteredGreetingCallback;
+import com.github.drrb.javarust.RegisteredGreetingSetCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the three ways of having Rust call back into Java: with a new
+ * callback object every time, with the same callback object every time, and
+ * with a callback registered once and called by handle.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djna.nosys=true")
+@State(Scope.Thread)
+public class CallbackBenchmark {
+
+    @Param({"INTERFACE", "DIRECT"})
+    public GreetingsBinding binding;
+
+    private Greetings library;
+    private LastGreeting greetingCallback;
+    private LastGreetingSet greetingSetCallback;
+    private RegisteredGreetingCallback registeredGreetingCallback;
+    private RegisteredGreetingSetCallback registeredGreetingSetCallback;
+
+    @Setup
+    public void setUp() {
+        library = binding.library();
+        greetingCallback = new LastGreeting();
+        greetingSetCallback = new LastGreetingSet();
+        registeredGreetingCallback = RegisteredGreetingCallback.register(library, new LastGreeting());
+        registeredGreetingSetCallback = RegisteredGreetingSetCallback.register(library, new LastGreetingSet());
+    }
+
+    @TearDown
+    public void tearDown() {
+        registeredGreetingCallback.close();
+        registeredGreetingSetCallback.close();
+    }
+
+    @Benchmark
+    public String callMeBackWithNewCallback() {
+        // JNA creates a new native function pointer for every new callback object
+        LastGreeting callback = new LastGreeting();
+        library.callMeBack(callback);
+        return callback.greeting;
+    }
+
+    @Benchmark
+    public String callMeBackWithSameCallback() {
+        library.callMeBack(greetingCallback);
+        return greetingCallback.greeting;
+    }
+
+    @Benchmark
+    public String callMeBackWithRegisteredCallback() {
+        registeredGreetingCallback.callMeBack();
+        return ((LastGreeting) registeredGreetingCallback.getCallback()).greeting;
+    }
+
+    @Benchmark
+    public int sendGreetingsWithNewCallback() {
+        LastGreetingSet callback = new LastGreetingSet();
+        library.sendGreetings(callback);
+        return callback.textLength;
+    }
+
+    @Benchmark
+    public int sendGreetingsWithSameCallback() {
+        library.sendGreetings(greetingSetCallback);
+        return greetingSetCallback.textLength;
+    }
+
+    @Benchmark
+    public int sendGreetingsWithRegisteredCallback() {
+        registeredGreetingSetCallback.sendGreetings();
+        return ((LastGreetingSet) registeredGreetingSetCallback.getCallback()).textLength;
+    }
+
+    private static class LastGreeting implements GreetingCallback {
+        String greeting;
+
+        @Override
+        public void apply(String greeting) {
+            this.greeting = greeting;
+        }
+    }
+
+    private static class LastGreetingSet implements GreetingSetCallback {
+        int textLength;
+
+        @Override
+        public void apply(GreetingSet.ByReference greetingSet) {
+            int length = 0;
+            for (Greeting greeting : greetingSet.getGreetings()) {
+                length += greeting.getText().length();
+            }
+            textLength = length;
+        }
+    }
+}
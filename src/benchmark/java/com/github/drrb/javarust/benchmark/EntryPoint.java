@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust.benchmark;
+
+import com.github.drrb.javarust.AsyncGreetings;
+import com.github.drrb.javarust.Greeting;
+import com.github.drrb.javarust.GreetingArena;
+import com.github.drrb.javarust.GreetingBuffers;
+import com.github.drrb.javarust.GreetingSet;
+import com.github.drrb.javarust.GreetingStream;
+import com.github.drrb.javarust.Greetings;
+import com.github.drrb.javarust.Greetings.GreetingCallback;
+import com.github.drrb.javarust.Greetings.GreetingChunkCallback;
+import com.github.drrb.javarust.Greetings.GreetingSetCallback;
+import com.github.drrb.javarust.Person;
+import com.github.drrb.javarust.RegisteredGreetingCallback;
+import com.github.drrb.javarust.RegisteredGreetingSetCallback;
+import com.github.drrb.javarust.RustString;
+import com.github.drrb.javarust.SizedGreetingSet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The entry points into the Rust library that {@link ScalingHarness} drives.
+ *
+ * Each thread gets its own {@link Call} for each entry point, with its own
+ * name, so that the stress mode can tell if one thread's result ends up in
+ * another thread's hands. Anything the call gets back from Rust is freed
+ * before it returns, so the harness measures the full round trip.
+ */
+enum EntryPoint {
+    PRINT_GREETING {
+        @Override
+        Call newCall(final Context context, final String name) {
+            return new Call() {
+                @Override
+                String call() {
+                    context.library.printGreeting(name);
+                    return null;
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return null;
+        }
+    },
+    RENDER_GREETING {
+        @Override
+        Call newCall(final Context context, final String name) {
+            return new Call() {
+                @Override
+                String call() {
+                    return context.library.renderGreeting(name);
+                }
+            };
+        }
+    },
+    RENDER_GREETING_OWNED {
+        @Override
+        Call newCall(final Context context, final String name) {
+            return new Call() {
+                @Override
+                String call() {
+                    try (RustString greeting = context.library.renderGreetingOwned(name)) {
+                        return greeting.getString();
+                    }
+                }
+            };
+        }
+    },
+    RENDER_GREETING_INTO {
+        @Override
+        Call newCall(final Context context, final String name) {
+            final ByteBuffer nameBuffer = ByteBuffer.allocateDirect(name.length() * 4);
+            nameBuffer.put(name.getBytes(UTF_8)).flip();
+            final ByteBuffer greetingBuffer = ByteBuffer.allocateDirect(name.length() * 4 + 64);
+            return new Call() {
+                @Override
+                String call() {
+                    greetingBuffer.clear();
+                    GreetingBuffers.renderGreeting(context.library, nameBuffer, greetingBuffer);
+                    greetingBuffer.flip();
+                    return UTF_8.decode(greetingBuffer).toString();
+                }
+            };
+        }
+    },
+    GREET {
+        @Override
+        Call newCall(final Context context, String name) {
+            final Person person = person(name);
+            return new Call() {
+                @Override
+                String call() {
+                    return context.library.greet(person);
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return "Hello, " + name + " " + name + "!";
+        }
+    },
+    GREET_OWNED {
+        @Override
+        Call newCall(final Context context, String name) {
+            final Person person = person(name);
+            return new Call() {
+                @Override
+                String call() {
+                    try (RustString greeting = context.library.greetOwned(person)) {
+                        return greeting.getString();
+                    }
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return GREET.expected(name);
+        }
+    },
+    GET_GREETING_BY_REFERENCE {
+        @Override
+        Call newCall(final Context context, String name) {
+            return new Call() {
+                @Override
+                String call() {
+                    try (Greeting greeting = context.library.getGreetingByReference()) {
+                        return greeting.getText();
+                    }
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return "Hello from Rust!";
+        }
+    },
+    GET_GREETING_BY_VALUE {
+        @Override
+        Call newCall(final Context context, String name) {
+            return new Call() {
+                @Override
+                String call() {
+                    try (Greeting greeting = context.library.getGreetingByValue()) {
+                        return greeting.getText();
+                    }
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return "Hello from Rust!";
+        }
+    },
+    RENDER_GREETINGS {
+        @Override
+        Call newCall(final Context context, String name) {
+            return new Call() {
+                @Override
+                String call() {
+                    try (GreetingSet greetings = context.library.renderGreetings()) {
+                        return texts(greetings);
+                    }
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return "Hello!|Hello again!";
+        }
+    },
+    RENDER_GREETINGS_FOR {
+        @Override
+        Call newCall(final Context context, String name) {
+            final String[] names = names(name);
+            return new Call() {
+                @Override
+                String call() {
+                    try (GreetingSet greetings = context.library.renderGreetingsFor(names, names.length)) {
+                        return texts(greetings);
+                    }
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return expectedForEach(names(name));
+        }
+    },
+    RENDER_SIZED_GREETINGS_FOR {
+        @Override
+        Call newCall(final Context context, String name) {
+            final String[] names = names(name);
+            return new Call() {
+                @Override
+                String call() {
+                    try (SizedGreetingSet greetings = context.library.renderSizedGreetingsFor(names, names.length)) {
+                        List<String> texts = new ArrayList<>();
+                        for (int i = 0; i < greetings.getNumberOfGreetings(); i++) {
+                            texts.add(greetings.getText(i));
+                        }
+                        return join(texts);
+                    }
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return expectedForEach(names(name));
+        }
+    },
+    RENDER_GREETING_IN_ARENA {
+        @Override
+        Call newCall(final Context context, final String name) {
+            return new Call() {
+                @Override
+                String call() {
+                    try (GreetingArena arena = context.library.createGreetingArena()) {
+                        return context.library.renderGreetingInArena(arena, name);
+                    }
+                }
+            };
+        }
+    },
+    GREETING_STREAM {
+        @Override
+        Call newCall(final Context context, String name) {
+            final String[] names = names(name);
+            return new Call() {
+                final List<String> texts = new ArrayList<>();
+                final GreetingChunkCallback collect = new GreetingChunkCallback() {
+                    @Override
+                    public int apply(GreetingSet.ByReference chunk) {
+                        for (Greeting greeting : chunk.getGreetingsView()) {
+                            texts.add(greeting.getText());
+                        }
+                        return GreetingStream.CONTINUE;
+                    }
+                };
+
+                @Override
+                String call() {
+                    texts.clear();
+                    try (GreetingStream stream = context.library.openGreetingStream(names, names.length, 2)) {
+                        context.library.pumpGreetingStream(stream, collect);
+                    }
+                    return join(texts);
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return expectedForEach(names(name));
+        }
+    },
+    CALL_ME_BACK {
+        @Override
+        Call newCall(final Context context, String name) {
+            final LastGreeting callback = new LastGreeting();
+            return new Call() {
+                @Override
+                String call() {
+                    context.library.callMeBack(callback);
+                    return callback.greeting;
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return "Hello there!";
+        }
+    },
+    CALL_ME_BACK_WITH {
+        @Override
+        Call newCall(final Context context, String name) {
+            final RegisteredGreetingCallback callback = RegisteredGreetingCallback.register(context.library, new LastGreeting());
+            return new Call() {
+                @Override
+                String call() {
+                    callback.callMeBack();
+                    return ((LastGreeting) callback.getCallback()).greeting;
+                }
+
+                @Override
+                void close() {
+                    callback.close();
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return "Hello there!";
+        }
+    },
+    SEND_GREETINGS {
+        @Override
+        Call newCall(final Context context, String name) {
+            final LastGreetings callback = new LastGreetings();
+            return new Call() {
+                @Override
+                String call() {
+                    context.library.sendGreetings(callback);
+                    return callback.greetings;
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return RENDER_GREETINGS.expected(name);
+        }
+    },
+    SEND_GREETINGS_WITH {
+        @Override
+        Call newCall(final Context context, String name) {
+            final RegisteredGreetingSetCallback callback = RegisteredGreetingSetCallback.register(context.library, new LastGreetings());
+            return new Call() {
+                @Override
+                String call() {
+                    callback.sendGreetings();
+                    return ((LastGreetings) callback.getCallback()).greetings;
+                }
+
+                @Override
+                void close() {
+                    callback.close();
+                }
+            };
+        }
+
+        @Override
+        String expected(String name) {
+            return RENDER_GREETINGS.expected(name);
+        }
+    },
+    RENDER_GREETING_ASYNC {
+        @Override
+        Call newCall(final Context context, final String name) {
+            return new Call() {
+                @Override
+                String call() {
+                    return context.asyncGreetings().renderGreetingAsync(name).join();
+                }
+            };
+        }
+    };
+
+    /**
+     * Make a call for one thread to make over and over
+     */
+    abstract Call newCall(Context context, String name);
+
+    /**
+     * What a call for this name should return
+     */
+    String expected(String name) {
+        return "Hello, " + name + "!";
+    }
+
+    /**
+     * One thread's way of calling an entry point
+     */
+    abstract static class Call {
+
+        abstract String call();
+
+        void close() {
+        }
+    }
+
+    /**
+     * What the calls from all of the threads share
+     */
+    static class Context implements AutoCloseable {
+
+        final Greetings library;
+        private AsyncGreetings asyncGreetings;
+
+        Context(Greetings library) {
+            this.library = library;
+        }
+
+        /**
+         * One pool of Rust threads for all of the Java threads, with a queue
+         * big enough for all of them to have a greeting waiting
+         */
+        synchronized AsyncGreetings asyncGreetings() {
+            if (asyncGreetings == null) {
+                int processors = Runtime.getRuntime().availableProcessors();
+                asyncGreetings = new AsyncGreetings(library, processors, processors * 64);
+            }
+            return asyncGreetings;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (asyncGreetings != null) {
+                asyncGreetings.close();
+                asyncGreetings = null;
+            }
+        }
+    }
+
+    private static Person person(String name) {
+        Person person = new Person();
+        person.firstName = name;
+        person.lastName = name;
+        return person;
+    }
+
+    private static String[] names(String name) {
+        return new String[] { name + "-1", name + "-2", name + "-3" };
+    }
+
+    private static String expectedForEach(String[] names) {
+        List<String> greetings = new ArrayList<>();
+        for (String name : names) {
+            greetings.add("Hello, " + name + "!");
+        }
+        return join(greetings);
+    }
+
+    private static String texts(GreetingSet greetingSet) {
+        List<String> texts = new ArrayList<>();
+        for (Greeting greeting : greetingSet.getGreetingsView()) {
+            texts.add(greeting.getText());
+        }
+        return join(texts);
+    }
+
+    private static String join(List<String> texts) {
+        StringBuilder joined = new StringBuilder();
+        for (String text : texts) {
+            if (joined.length() > 0) {
+                joined.append('|');
+            }
+            joined.append(text);
+        }
+        return joined.toString();
+    }
+
+    private static class LastGreeting implements GreetingCallback {
+        String greeting;
+
+        @Override
+        public void apply(String greeting) {
+            this.greeting = greeting;
+        }
+    }
+
+    private static class LastGreetings implements GreetingSetCallback {
+        String greetings;
+
+        @Override
+        public void apply(GreetingSet.ByReference greetingSet) {
+            // The set is freed as soon as we return, so read everything now
+            greetings = texts(greetingSet);
+        }
+    }
+}
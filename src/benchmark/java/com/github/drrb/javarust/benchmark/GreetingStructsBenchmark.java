@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust.benchmark;
+
+import com.github.drrb.javarust.Greeting;
+import com.github.drrb.javarust.GreetingSet;
+import com.github.drrb.javarust.Greetings;
+import com.github.drrb.javarust.GreetingsBinding;
+import com.github.drrb.javarust.Greetings.GreetingCallback;
+import com.github.drrb.javarust.Greetings.GreetingSetCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the calls into Rust that return structs or call back into Java.
+ *
+ * Every struct that Rust hands back is closed again inside the benchmark, so the
+ * numbers include the cost of sending it back to Rust to be freed.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djna.nosys=true")
+@State(Scope.Thread)
+public class GreetingStructsBenchmark {
+
+    @Param({"INTERFACE", "DIRECT"})
+    public GreetingsBinding binding;
+
+    private Greetings library;
+    private LastGreeting greetingCallback;
+    private LastGreetingSet greetingSetCallback;
+
+    @Setup
+    public void setUp() {
+        library = binding.library();
+        // Reuse the same callback objects, so that JNA only creates their native
+        // trampolines once and we're measuring the calls themselves.
+        greetingCallback = new LastGreeting();
+        greetingSetCallback = new LastGreetingSet();
+    }
+
+    @Benchmark
+    public String getGreetingByValue() {
+        try (Greeting greeting = library.getGreetingByValue()) {
+            return greeting.getText();
+        }
+    }
+
+    @Benchmark
+    public String getGreetingByReference() {
+        try (Greeting greeting = library.getGreetingByReference()) {
+            return greeting.getText();
+        }
+    }
+
+    @Benchmark
+    public void renderGreetings(Blackhole blackhole) {
+        try (GreetingSet greetingSet = library.renderGreetings()) {
+            for (Greeting greeting : greetingSet.getGreetings()) {
+                blackhole.consume(greeting.getText());
+            }
+        }
+    }
+
+    @Benchmark
+    public String callMeBack() {
+        library.callMeBack(greetingCallback);
+        return greetingCallback.greeting;
+    }
+
+    @Benchmark
+    public int sendGreetings() {
+        library.sendGreetings(greetingSetCallback);
+        return greetingSetCallback.textLength;
+    }
+
+    private static class LastGreeting implements GreetingCallback {
+        String greeting;
+
+        @Override
+        public void apply(String greeting) {
+            this.greeting = greeting;
+        }
+    }
+
+    private static class LastGreetingSet implements GreetingSetCallback {
+        int textLength;
+
+        @Override
+        public void apply(GreetingSet.ByReference greetingSet) {
+            // The set is freed as soon as we return, so read everything now
+            int length = 0;
+            for (Greeting greeting : greetingSet.getGreetings()) {
+                length += greeting.getText().length();
+            }
+            textLength = length;
+        }
+    }
+}
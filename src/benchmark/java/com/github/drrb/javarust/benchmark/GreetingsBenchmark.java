@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust.benchmark;
+
+import com.github.drrb.javarust.CachingGreetings;
+import com.github.drrb.javarust.GreetingBuffers;
+import com.github.drrb.javarust.Greetings;
+import com.github.drrb.javarust.GreetingsBinding;
+import com.github.drrb.javarust.Person;
+import com.github.drrb.javarust.PersonBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Benchmarks for the calls into Rust that take a name.
+ *
+ * Each call is measured with names of a few different lengths, so that we can
+ * tell the fixed cost of crossing into Rust apart from the cost of converting
+ * the strings on the way in and out.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djna.nosys=true")
+@State(Scope.Thread)
+public class GreetingsBenchmark {
+
+    @Param({"INTERFACE", "DIRECT"})
+    public GreetingsBinding binding;
+
+    @Param({"5", "50", "500"})
+    public int nameLength;
+
+    private Greetings library;
+    private Greetings cachingLibrary;
+    private String name;
+    private Person person;
+    private ByteBuffer nameBuffer;
+    private ByteBuffer greetingBuffer;
+
+    @Setup
+    public void setUp() {
+        library = binding.library();
+        cachingLibrary = new CachingGreetings(library, 1000);
+        name = nameOfLength(nameLength);
+        person = new Person();
+        person.firstName = name;
+        person.lastName = name;
+        nameBuffer = ByteBuffer.allocateDirect(nameLength);
+        nameBuffer.put(name.getBytes(UTF_8)).flip();
+        greetingBuffer = ByteBuffer.allocateDirect(nameLength + 64);
+    }
+
+    @Benchmark
+    public void printGreeting() {
+        library.printGreeting(name);
+    }
+
+    @Benchmark
+    public String renderGreeting() {
+        return library.renderGreeting(name);
+    }
+
+    @Benchmark
+    public String renderGreetingCached() {
+        // Always the same name, so this measures a cache hit
+        return cachingLibrary.renderGreeting(name);
+    }
+
+    @Benchmark
+    public int renderGreetingIntoBuffer() {
+        greetingBuffer.clear();
+        return GreetingBuffers.renderGreeting(library, nameBuffer, greetingBuffer);
+    }
+
+    @Benchmark
+    public String greet() {
+        return library.greet(person);
+    }
+
+    @Benchmark
+    public String greetWithPersonBuffer() {
+        // Setting the names each time, as we would for a different person
+        return library.greet(PersonBuffer.forCurrentThread().setNames(name, name));
+    }
+
+    static String nameOfLength(int length) {
+        char[] name = new char[length];
+        Arrays.fill(name, 'x');
+        return new String(name);
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust.benchmark;
+
+import com.github.drrb.javarust.ConcurrentLatencyHistogram;
+import com.github.drrb.javarust.Greetings;
+import com.github.drrb.javarust.GreetingsBinding;
+import com.github.drrb.javarust.NativeReclaimer;
+import com.github.drrb.javarust.benchmark.EntryPoint.Call;
+import com.github.drrb.javarust.benchmark.EntryPoint.Context;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Drives every entry point into Rust from more and more threads at once, to
+ * show where calls start getting in each other's way.
+ *
+ * For each entry point, and 1, 2, 4... up to the number of processors (or
+ * --threads) threads, it reports the throughput, the 50th, 99th and 99.9th
+ * percentile latencies, and the scaling efficiency: the throughput compared to
+ * the single threaded throughput multiplied by the number of threads. An
+ * efficiency well below 100% means the threads are waiting for each other
+ * (e.g. on a lock in JNA, or on the stdout lock in Rust's println!).
+ *
+ * With --stress, it checks the results instead: every thread calls every entry
+ * point with its own name and checks it gets its own greeting back, and the
+ * threads all close the same objects at the same time, to check that each one
+ * is only freed once.
+ *
+ * The report is written to stderr, because printGreeting writes to stdout.
+ *
+ * Options (all optional):
+ * <pre>
+ *   --binding=interface|direct|ffm  which binding to use (default: greetings.binding, or interface)
+ *   --threads=N                     the most threads to use (default: the number of processors)
+ *   --warmup=SECONDS                how long to run before measuring, for each step (default: 1)
+ *   --seconds=SECONDS               how long to measure for, for each step (default: 2)
+ *   --only=REGEX                    only the entry points matching (e.g. "render.*")
+ *   --stress                        check results instead of measuring
+ *   --iterations=N                  how many calls each thread makes with --stress (default: 10000)
+ * </pre>
+ */
+public final class ScalingHarness {
+
+    private static final PrintStream REPORT = System.err;
+
+    private final Greetings library;
+    private final int maxThreads;
+    private final long warmupNanos;
+    private final long measurementNanos;
+    private final Pattern only;
+    private final int iterations;
+    // Results go here, so that the JIT can't skip the calls
+    private volatile int sink;
+
+    private ScalingHarness(Options options) {
+        this.library = options.binding.library();
+        this.maxThreads = options.threads;
+        this.warmupNanos = TimeUnit.MILLISECONDS.toNanos((long) (options.warmupSeconds * 1000));
+        this.measurementNanos = TimeUnit.MILLISECONDS.toNanos((long) (options.seconds * 1000));
+        this.only = options.only;
+        this.iterations = options.iterations;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        ScalingHarness harness = new ScalingHarness(options);
+        REPORT.printf("Binding: %s, up to %d threads%n", options.binding, options.threads);
+        if (options.stress) {
+            int failures = harness.stress();
+            REPORT.printf("%n%s%n", failures == 0 ? "No failures" : failures + " failures");
+            System.exit(failures == 0 ? 0 : 1);
+        } else {
+            harness.measure();
+        }
+    }
+
+    private List<EntryPoint> entryPoints() {
+        List<EntryPoint> entryPoints = new ArrayList<>();
+        for (EntryPoint entryPoint : EntryPoint.values()) {
+            if (only.matcher(entryPoint.name()).matches()) {
+                entryPoints.add(entryPoint);
+            }
+        }
+        return entryPoints;
+    }
+
+    private List<Integer> threadCounts() {
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(maxThreads);
+        return threadCounts;
+    }
+
+    //
+    // Measuring
+    //
+
+    private void measure() throws InterruptedException {
+        REPORT.printf("%n%-28s %7s %14s %10s %10s %10s %10s%n", "Entry point", "Threads", "Calls/s", "p50 (us)", "p99 (us)", "p99.9 (us)", "Efficiency");
+        try (Context context = new Context(library)) {
+            for (EntryPoint entryPoint : entryPoints()) {
+                double singleThreadedThroughput = 0;
+                for (int threads : threadCounts()) {
+                    Step step = measure(entryPoint, context, threads);
+                    if (threads == 1) {
+                        singleThreadedThroughput = step.throughput();
+                    }
+                    double efficiency = step.throughput() / (singleThreadedThroughput * threads);
+                    REPORT.printf("%-28s %7d %14.0f %10.2f %10.2f %10.2f %9.0f%%%n",
+                            entryPoint, threads, step.throughput(),
+                            micros(step.latencies.valueAtPercentile(0.5)),
+                            micros(step.latencies.valueAtPercentile(0.99)),
+                            micros(step.latencies.valueAtPercentile(0.999)),
+                            efficiency * 100);
+                }
+            }
+        }
+    }
+
+    private Step measure(EntryPoint entryPoint, Context context, int threads) throws InterruptedException {
+        final AtomicInteger phase = new AtomicInteger(Phase.WARMING_UP);
+        List<MeasuringThread> measuringThreads = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            measuringThreads.add(new MeasuringThread(entryPoint.newCall(context, "thread-" + i), phase));
+        }
+        for (MeasuringThread thread : measuringThreads) {
+            thread.start();
+        }
+        TimeUnit.NANOSECONDS.sleep(warmupNanos);
+        long start = System.nanoTime();
+        phase.set(Phase.MEASURING);
+        TimeUnit.NANOSECONDS.sleep(measurementNanos);
+        phase.set(Phase.STOPPED);
+        long elapsed = System.nanoTime() - start;
+
+        ConcurrentLatencyHistogram.Snapshot latencies = ConcurrentLatencyHistogram.Snapshot.EMPTY;
+        for (MeasuringThread thread : measuringThreads) {
+            thread.join();
+            latencies = latencies.plus(thread.latencies.snapshot());
+            sink += thread.sink;
+        }
+        return new Step(elapsed, latencies);
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    private static class Phase {
+        static final int WARMING_UP = 0;
+        static final int MEASURING = 1;
+        static final int STOPPED = 2;
+    }
+
+    private static class Step {
+        final long elapsedNanos;
+        final ConcurrentLatencyHistogram.Snapshot latencies;
+
+        Step(long elapsedNanos, ConcurrentLatencyHistogram.Snapshot latencies) {
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+        }
+
+        double throughput() {
+            return latencies.count() / (elapsedNanos / 1e9);
+        }
+    }
+
+    private static class MeasuringThread extends Thread {
+        private final Call call;
+        private final AtomicInteger phase;
+        // One each, rather than one for all of the threads, so that recording
+        // doesn't make the threads wait for each other
+        final ConcurrentLatencyHistogram latencies = new ConcurrentLatencyHistogram();
+        int sink;
+
+        MeasuringThread(Call call, AtomicInteger phase) {
+            this.call = call;
+            this.phase = phase;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                int currentPhase;
+                while ((currentPhase = phase.get()) != Phase.STOPPED) {
+                    long start = System.nanoTime();
+                    String result = call.call();
+                    long latency = System.nanoTime() - start;
+                    if (currentPhase == Phase.MEASURING) {
+                        latencies.record(latency);
+                    }
+                    sink += result == null ? 0 : result.length();
+                }
+            } finally {
+                call.close();
+            }
+        }
+    }
+
+    //
+    // Stress testing
+    //
+
+    private int stress() throws Exception {
+        int failures = 0;
+        try (Context context = new Context(library)) {
+            for (EntryPoint entryPoint : entryPoints()) {
+                failures += stress(entryPoint, context);
+            }
+        }
+        failures += stressClosing();
+        return failures;
+    }
+
+    private int stress(final EntryPoint entryPoint, final Context context) throws InterruptedException {
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < maxThreads; i++) {
+            final String name = "thread-" + i;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    String expected = entryPoint.expected(name);
+                    Call call = entryPoint.newCall(context, name);
+                    try {
+                        for (int j = 0; j < iterations; j++) {
+                            String result = call.call();
+                            if (!equal(expected, result) && failures.incrementAndGet() <= 10) {
+                                REPORT.printf("%s on %s: expected '%s', but got '%s'%n", entryPoint, name, expected, result);
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        failures.incrementAndGet();
+                        REPORT.printf("%s on %s failed: %s%n", entryPoint, name, e);
+                    } finally {
+                        call.close();
+                    }
+                }
+            });
+        }
+        runAll(threads);
+        REPORT.printf("%-28s %s%n", entryPoint, failures.get() == 0 ? "OK" : failures.get() + " failures");
+        return failures.get();
+    }
+
+    /**
+     * All of the threads close the same object at the same time, over and over.
+     *
+     * If something were freed twice, Rust would most likely crash. For the
+     * managed objects, we can also check that every one was only counted as
+     * freed once.
+     */
+    private int stressClosing() throws Exception {
+        int failures = 0;
+        long liveObjectsBefore = NativeReclaimer.liveObjects();
+        failures += stressClosing("Closing a GreetingSet", new Factory() {
+            @Override
+            public Closeable create() {
+                return library.renderGreetings().manage();
+            }
+        });
+        failures += stressClosing("Closing a Greeting", new Factory() {
+            @Override
+            public Closeable create() {
+                return library.getGreetingByReference().manage();
+            }
+        });
+        failures += stressClosing("Closing a Greeting.ByValue", new Factory() {
+            @Override
+            public Closeable create() {
+                return library.getGreetingByValue().manage();
+            }
+        });
+        failures += stressClosing("Closing a RustString", new Factory() {
+            @Override
+            public Closeable create() {
+                return library.renderGreetingOwned("John");
+            }
+        });
+        failures += stressClosing("Closing a GreetingArena", new Factory() {
+            @Override
+            public Closeable create() {
+                return library.createGreetingArena();
+            }
+        });
+        failures += stressClosing("Closing a GreetingStream", new Factory() {
+            @Override
+            public Closeable create() {
+                String[] names = { "John" };
+                return library.openGreetingStream(names, names.length, 1);
+            }
+        });
+        long liveObjectsAfter = NativeReclaimer.liveObjects();
+        if (liveObjectsAfter != liveObjectsBefore) {
+            REPORT.printf("Managed objects: %d before, but %d after%n", liveObjectsBefore, liveObjectsAfter);
+            failures++;
+        }
+        return failures;
+    }
+
+    private int stressClosing(String description, final Factory factory) throws Exception {
+        final int rounds = Math.max(1, iterations / 100);
+        final CyclicBarrier barrier = new CyclicBarrier(maxThreads);
+        final Closeable[] current = new Closeable[1];
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < maxThreads; i++) {
+            final boolean creator = i == 0;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < rounds; round++) {
+                            if (creator) {
+                                current[0] = factory.create();
+                            }
+                            // Everyone waits for the object to be created (the
+                            // barrier also makes it visible to the other threads)...
+                            barrier.await();
+                            // ...and then they all close it at once
+                            current[0].close();
+                            barrier.await();
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        REPORT.printf("%s failed: %s%n", getName(), e);
+                        barrier.reset();
+                    }
+                }
+            });
+        }
+        runAll(threads);
+        REPORT.printf("%-28s %s%n", description, failures.get() == 0 ? "OK" : failures.get() + " failures");
+        return failures.get();
+    }
+
+    private interface Factory {
+        Closeable create() throws Exception;
+    }
+
+    private static void runAll(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static boolean equal(String expected, String actual) {
+        return expected == null ? actual == null : expected.equals(actual);
+    }
+
+    private static class Options {
+        GreetingsBinding binding = GreetingsBinding.configured();
+        int threads = Runtime.getRuntime().availableProcessors();
+        double warmupSeconds = 1;
+        double seconds = 2;
+        Pattern only = Pattern.compile(".*");
+        boolean stress = false;
+        int iterations = 10000;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                String[] option = arg.split("=", 2);
+                String value = option.length > 1 ? option[1] : null;
+                switch (option[0]) {
+                    case "--binding":
+                        options.binding = GreetingsBinding.valueOf(value.toUpperCase(Locale.ENGLISH));
+                        break;
+                    case "--threads":
+                        options.threads = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        options.warmupSeconds = Double.parseDouble(value);
+                        break;
+                    case "--seconds":
+                        options.seconds = Double.parseDouble(value);
+                        break;
+                    case "--only":
+                        options.only = Pattern.compile(value, Pattern.CASE_INSENSITIVE);
+                        break;
+                    case "--stress":
+                        options.stress = true;
+                        break;
+                    case "--iterations":
+                        options.iterations = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            return options;
+        }
+    }
+}
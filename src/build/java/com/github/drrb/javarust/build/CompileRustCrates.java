@@ -16,88 +16,410 @@
  */
 package com.github.drrb.javarust.build;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import static java.util.Arrays.asList;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  *
  */
 public class CompileRustCrates {
 
-    private static final Date EPOCH = new Date(0);
     private static final Path RUST_OUTPUT_DIR = Paths.get("target", "rust-libs");
+    // What each crate was last compiled from (see fingerprint())
+    private static final Path MANIFEST = RUST_OUTPUT_DIR.resolve("manifest.properties");
+    private static final String MANIFEST_COMMENT = "What each Rust crate was last compiled from";
+    // Where we record how the library was built, in the output directory and in the jar
+    private static final String BUILD_INFO_FILE = "rust-build.properties";
+    private static final Path BUILD_INFO_RESOURCE = Paths.get("com", "github", "drrb", "javarust", BUILD_INFO_FILE);
+    // Set with -Drust.profile=debug|release|release-native (see pom.xml)
+    private static final Profile PROFILE = Profile.named(System.getProperty("rust.profile", "release"));
 
     public static void main(String[] args) throws Exception {
-        Paths.get("target", "rust-libs").toFile().mkdirs();
-        if (changesDetected()) {
-            System.out.println("Changes detected. Compiling all Rust crates!");
-            for (Path crate : crates()) {
-                compile(crate);
+        RUST_OUTPUT_DIR.toFile().mkdirs();
+        String rustcVersion = rustcVersion();
+        Properties manifest = load(MANIFEST);
+        if (removeStaleVariants(outputDir(), variants(), manifest)) {
+            store(manifest, MANIFEST, MANIFEST_COMMENT);
+        }
+        List<Build> builds = new ArrayList<>();
+        for (Path crate : crates()) {
+            for (Variant variant : variantsOf(crate)) {
+                builds.add(new Build(crate, variant));
             }
-        } else {
+        }
+        List<Build> changedBuilds = changedBuilds(builds, rustcVersion, manifest);
+        if (changedBuilds.isEmpty()) {
             System.out.println("No changes detected. Not recompiling Rust crates.");
+        } else {
+            System.out.format("Changes detected. Compiling Rust crates %s (%s profile)!%n", changedBuilds, PROFILE);
+            compileAll(changedBuilds, rustcVersion, manifest);
+        }
+        recordBuild(rustcVersion);
+    }
+
+    /**
+     * The builds that need compiling: the ones that were compiled from
+     * something different last time (according to the manifest), or haven't
+     * been compiled at all, or whose library has gone missing.
+     */
+    static List<Build> changedBuilds(List<Build> builds, String rustcVersion, Properties manifest) throws IOException {
+        List<Build> changedBuilds = new ArrayList<>();
+        for (Build build : builds) {
+            String fingerprint = fingerprint(build, rustcVersion);
+            if (fingerprint == null || !fingerprint.equals(manifest.getProperty(build.key())) || !installed(build)) {
+                changedBuilds.add(build);
+            }
+        }
+        return changedBuilds;
+    }
+
+    /**
+     * The versions of the crates to build with this profile.
+     *
+     * For release builds on x86-64, we build a version for each level of CPU
+     * (see {@link Variant}), and pick the best one the CPU supports at
+     * runtime (see RustLibrary).
+     */
+    private static Set<Variant> variants() {
+        if (PROFILE == Profile.RELEASE && currentIsX86_64()) {
+            return EnumSet.allOf(Variant.class);
+        } else {
+            return EnumSet.of(Variant.BASELINE);
+        }
+    }
+
+    private static Set<Variant> variantsOf(Path crate) {
+        return isPortable(crate) ? EnumSet.of(Variant.BASELINE) : variants();
+    }
+
+    /**
+     * The cpulevel crate is what tells us which version the CPU can run, so
+     * it needs to run on any CPU.
+     */
+    private static boolean isPortable(Path crate) {
+        return crateName(crate).equals("cpulevel");
+    }
+
+    /**
+     * Delete the versions for newer CPUs that this profile doesn't build
+     * (e.g. after a release build, when we switch to debug), along with their
+     * entries in the manifest. Otherwise they'd be picked over the baseline
+     * version at runtime, and we'd be running old code.
+     *
+     * @return whether the manifest changed
+     */
+    static boolean removeStaleVariants(Path installDir, Set<Variant> variantsBuilt, Properties manifest) throws IOException {
+        boolean manifestChanged = false;
+        for (Variant variant : EnumSet.complementOf(EnumSet.copyOf(variantsBuilt))) {
+            if (variant == Variant.BASELINE) {
+                continue;
+            }
+            Path variantDir = variant.subdirectory(installDir);
+            if (variantDir.toFile().isDirectory()) {
+                System.out.format("Removing %s, which the %s profile doesn't build%n", variantDir, PROFILE);
+                deleteRecursively(variantDir);
+            }
+            for (String key : manifest.stringPropertyNames()) {
+                if (key.endsWith("@" + variant)) {
+                    manifest.remove(key);
+                    manifestChanged = true;
+                }
+            }
         }
+        return manifestChanged;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 
-    private static boolean changesDetected() throws IOException {
-        Date lastSourceChange = newestChange(rustSources());
-        Date lastCompilation = newestChange(compiledRustLibraries());
-        return lastSourceChange.getTime() > lastCompilation.getTime();
+    private static boolean currentIsX86_64() {
+        String arch = System.getProperty("os.arch");
+        return arch.equals("amd64") || arch.equals("x86_64");
     }
 
-    private static void compile(Path sourceFile) {
-        System.out.format("Compiling crate %s%n", sourceFile);
+    /**
+     * Compile the crates at the same time (one per processor), and install them.
+     *
+     * The crates don't depend on each other, so they can be compiled in any
+     * order. The ones that compile are recorded in the manifest, even if
+     * others fail, so that they're not compiled again next time.
+     */
+    private static void compileAll(List<Build> builds, String rustcVersion, Properties manifest) throws IOException, InterruptedException {
+        ExecutorService compilers = Executors.newFixedThreadPool(Math.min(builds.size(), Runtime.getRuntime().availableProcessors()));
         try {
-            Process process = rustcProcess(sourceFile).inheritIO().start();
-            process.waitFor();
-            if (process.exitValue() != 0) {
-                throw new RuntimeException(String.format("rustc exited nonzero (status code = %s)", process.exitValue()));
+            Map<Build, Future<?>> compilations = new LinkedHashMap<>();
+            for (final Build build : builds) {
+                compilations.put(build, compilers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        compile(build);
+                        return null;
+                    }
+                }));
             }
-            for (Path compiledRustLibrary : compiledRustLibraries()) {
-                moveLibIntoClasspath(compiledRustLibrary);
+            List<Build> failures = new ArrayList<>();
+            for (Map.Entry<Build, Future<?>> compilation : compilations.entrySet()) {
+                Build build = compilation.getKey();
+                try {
+                    compilation.getValue().get();
+                    manifest.setProperty(build.key(), fingerprint(build, rustcVersion));
+                } catch (ExecutionException ex) {
+                    System.out.format("Failed to compile crate %s: %s%n", build, ex.getCause().getMessage());
+                    failures.add(build);
+                }
+            }
+            store(manifest, MANIFEST, MANIFEST_COMMENT);
+            if (!failures.isEmpty()) {
+                throw new RuntimeException(String.format("Couldn't compile Rust crates %s", failures));
+            }
+        } finally {
+            compilers.shutdownNow();
+        }
+    }
+
+    /**
+     * A hash of everything that goes into compiling a crate: the compiler, the
+     * flags, and the contents of every source file it used last time.
+     *
+     * rustc tells us which source files a crate uses (including its modules)
+     * in a "dep-info" file, which it writes when it compiles the crate. If
+     * there isn't one, or any of the files are gone, we return null, because
+     * the crate needs compiling anyway.
+     */
+    static String fingerprint(Build build, String rustcVersion) throws IOException {
+        return fingerprint(build.outputDir().resolve(crateName(build.crate) + ".d"), rustcVersion, build.rustcFlags());
+    }
+
+    static String fingerprint(Path depInfo, String rustcVersion, List<String> rustcFlags) throws IOException {
+        if (!depInfo.toFile().isFile()) {
+            return null;
+        }
+        MessageDigest fingerprint = sha256();
+        fingerprint.update(String.format("%s%n%s%n", rustcVersion, rustcFlags).getBytes(UTF_8));
+        for (Path dependency : dependencies(depInfo)) {
+            if (!dependency.toFile().isFile()) {
+                return null;
+            }
+            fingerprint.update(String.format("%s%n%s%n", dependency, hex(sha256().digest(Files.readAllBytes(dependency)))).getBytes(UTF_8));
+        }
+        return hex(fingerprint.digest());
+    }
+
+    /**
+     * The source files listed in a dep-info file.
+     *
+     * It's a Makefile, with rules like "target: dependency dependency...",
+     * where spaces in file names are escaped with backslashes.
+     */
+    static Set<Path> dependencies(Path depInfo) throws IOException {
+        Set<Path> dependencies = new TreeSet<>();
+        for (String line : Files.readAllLines(depInfo, UTF_8)) {
+            // The colon after the target is followed by a space, unlike the one in "C:\"
+            int separator = line.endsWith(":") ? line.length() - 1 : line.indexOf(": ");
+            if (line.startsWith("#") || separator < 0) {
+                continue;
+            }
+            for (String dependency : line.substring(separator + 1).trim().split("(?<!\\\\) +")) {
+                if (!dependency.isEmpty()) {
+                    dependencies.add(Paths.get(dependency.replace("\\ ", " ")));
+                }
             }
+        }
+        return dependencies;
+    }
+
+    private static boolean installed(Build build) {
+        return build.installDir().resolve(System.mapLibraryName(crateName(build.crate))).toFile().isFile();
+    }
+
+    /**
+     * Record which profile the library was built with (and how), so that it
+     * ends up in the jar.
+     */
+    private static void recordBuild(String rustcVersion) throws IOException {
+        Properties buildInfo = new Properties();
+        buildInfo.setProperty("profile", PROFILE.toString());
+        buildInfo.setProperty("rustc.flags", String.join(" ", PROFILE.rustcFlags()));
+        buildInfo.setProperty("rustc.version", rustcVersion);
+        Path resource = Paths.get("target", "classes").resolve(BUILD_INFO_RESOURCE);
+        resource.getParent().toFile().mkdirs();
+        store(buildInfo, resource, "How the Rust library was built");
+    }
+
+    private static String rustcVersion() {
+        try {
+            Process process = new ProcessBuilder("rustc", "--version").redirectErrorStream(true).start();
+            String version = new String(readFully(process.getInputStream()), UTF_8).trim();
+            return process.waitFor() == 0 ? version : "unknown";
         } catch (IOException | InterruptedException ex) {
-            throw new RuntimeException(ex);
+            return "unknown";
         }
     }
 
-    private static ProcessBuilder rustcProcess(Path crateFile) {
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    private static void compile(Build build) throws IOException, InterruptedException {
+        Path crateOutputDir = build.outputDir();
+        crateOutputDir.toFile().mkdirs();
+        // Crates are compiled at the same time, so we collect rustc's output
+        // and print it all at once, rather than mixing it up with the others'
+        Process process = rustcProcess(build.crate, crateOutputDir, build.rustcFlags()).redirectErrorStream(true).start();
+        byte[] output = readFully(process.getInputStream());
+        int status = process.waitFor();
+        synchronized (System.out) {
+            System.out.format("Compiled crate %s%n", build);
+            System.out.write(output);
+            System.out.flush();
+        }
+        if (status != 0) {
+            throw new RuntimeException(String.format("rustc exited nonzero (status code = %s)", status));
+        }
+        for (Path compiledRustLibrary : compiledRustLibraries(crateOutputDir)) {
+            moveLibIntoClasspath(compiledRustLibrary, build.installDir());
+        }
+    }
+
+    private static ProcessBuilder rustcProcess(Path crateFile, Path crateOutputDir, List<String> rustcFlags) {
+        // Write a dep-info file as well as the library, so that we know which files it was compiled from
+        List<String> rustc = new ArrayList<>(asList("rustc", "--emit=link,dep-info", "--out-dir", crateOutputDir.toString()));
+        rustc.addAll(rustcFlags);
+        rustc.add(crateFile.toString());
         List<String> commandParts;
         if (inNetbeans() && new File("/bin/bash").isFile()) {
             System.out.println("(running rustc via bash because we're in NetBeans)");
-            commandParts = asList("/bin/bash", "-lc", String.format("rustc --out-dir %s %s", RUST_OUTPUT_DIR, crateFile));
+            commandParts = asList("/bin/bash", "-lc", String.join(" ", rustc));
         } else {
-            commandParts = asList("rustc", "--out-dir", RUST_OUTPUT_DIR.toString(), crateFile.toString());
+            commandParts = rustc;
         }
         System.out.format("Running command: %s%n", commandParts);
         return new ProcessBuilder(commandParts);
     }
 
-    private static void moveLibIntoClasspath(Path library) {
+    private static void moveLibIntoClasspath(Path library, Path outputDir) {
         try {
-            Path outputDir = outputDir();
             outputDir.toFile().mkdirs();
             System.out.format("Installing %s into %s%n", library, outputDir);
-            Files.copy(library, outputDir.resolve(library.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            byte[] contents = Files.readAllBytes(library);
+            writeAtomically(outputDir.resolve(library.getFileName()), contents);
+            // Put the library's hash next to it, so that it can be cached without being read
+            // first when it's loaded from the jar (see RustLibrary)
+            Path hashFile = outputDir.resolve(library.getFileName() + ".sha256");
+            writeAtomically(hashFile, hex(sha256().digest(contents)).getBytes(UTF_8));
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
+    /**
+     * Write a file by writing a temporary file next to it, and then moving it
+     * into place, so that nothing (e.g. tests running from an IDE) ever sees
+     * half a file.
+     */
+    private static void writeAtomically(Path file, byte[] contents) throws IOException {
+        Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporary, contents);
+            try {
+                Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static Properties load(Path file) throws IOException {
+        Properties properties = new Properties();
+        if (file.toFile().isFile()) {
+            try (InputStream input = Files.newInputStream(file)) {
+                properties.load(input);
+            }
+        }
+        return properties;
+    }
+
+    private static void store(Properties properties, Path file, String comment) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        properties.store(output, comment);
+        writeAtomically(file, output.toByteArray());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static String crateName(Path crate) {
+        String fileName = crate.getFileName().toString();
+        return fileName.substring(0, fileName.length() - ".rs".length());
+    }
+
     private static Path outputDir() {
         return Paths.get("target", "classes", osArchName());
     }
@@ -126,8 +448,8 @@ public class CompileRustCrates {
         });
     }
 
-    private static List<Path> compiledRustLibraries() throws IOException {
-        return findFiles(RUST_OUTPUT_DIR, new FileFinder() {
+    private static List<Path> compiledRustLibraries(Path crateOutputDir) throws IOException {
+        return findFiles(crateOutputDir, new FileFinder() {
 
             @Override
             protected boolean accept(Path file, BasicFileAttributes attrs) {
@@ -173,24 +495,69 @@ public class CompileRustCrates {
         return attributes.isRegularFile() && dylibExtensions.contains(pathExtension);
     }
 
-    private static Date newestChange(List<Path> paths) {
-        Date lastChange = EPOCH;
-        for (Path path : paths) {
-            Date change = mtime(path);
-            if (change.getTime() > lastChange.getTime()) {
-                lastChange = change;
+    /**
+     * How to compile the Rust code, chosen with the "rust.profile" Maven property.
+     */
+    private enum Profile {
+        /**
+         * Quick to compile, with debug info, and slow to run
+         */
+        DEBUG("debug", "-C", "opt-level=0", "-C", "debuginfo=2"),
+        /**
+         * Slow to compile, and fast to run. The whole library (including the
+         * standard library) is optimised together (LTO) as one unit, so that
+         * calls between functions can be inlined. Panics abort instead of
+         * unwinding, because unwinding into Java isn't allowed anyway, and
+         * not having to be able to unwind makes the code smaller.
+         */
+        RELEASE("release", "-C", "opt-level=3", "-C", "lto=fat", "-C", "codegen-units=1", "-C", "panic=abort", "-C", "debuginfo=0"),
+        /**
+         * The same as RELEASE, but using every instruction the CPU we're
+         * building on has. Don't ship this to machines with older CPUs.
+         */
+        RELEASE_NATIVE("release-native", RELEASE, "-C", "target-cpu=native");
+
+        private final String name;
+        private final Profile base;
+        private final List<String> rustcFlags;
+
+        private Profile(String name, String... rustcFlags) {
+            this.name = name;
+            this.base = null;
+            this.rustcFlags = asList(rustcFlags);
+        }
+
+        private Profile(String name, Profile base, String... extraRustcFlags) {
+            this.name = name;
+            this.base = base;
+            this.rustcFlags = new ArrayList<>(base.rustcFlags);
+            this.rustcFlags.addAll(asList(extraRustcFlags));
+        }
+
+        public List<String> rustcFlags() {
+            return rustcFlags;
+        }
+
+        /**
+         * The flags for code that has to run on any CPU: the same, but
+         * without the CPU-specific ones (i.e. release-native's are release's)
+         */
+        public List<String> portableRustcFlags() {
+            return base == null ? rustcFlags : base.portableRustcFlags();
+        }
+
+        public static Profile named(String name) {
+            for (Profile profile : values()) {
+                if (profile.name.equals(name)) {
+                    return profile;
+                }
             }
+            throw new IllegalArgumentException(String.format("Unknown Rust build profile '%s' (expected debug, release or release-native)", name));
         }
-        return lastChange;
-    }
 
-    @SuppressWarnings("CallToPrintStackTrace")
-    private static Date mtime(Path path) {
-        try {
-            return new Date(Files.getLastModifiedTime(path).toMillis());
-        } catch (IOException ex) {
-            ex.printStackTrace();
-            return EPOCH;
+        @Override
+        public String toString() {
+            return name;
         }
     }
 
@@ -262,6 +629,99 @@ public class CompileRustCrates {
         }
     }
 
+    /**
+     * A version of the library for a level of x86-64 CPU.
+     *
+     * These are the levels from the x86-64 psABI: v2 adds SSE4.2 and POPCNT
+     * (most CPUs since 2009), and v3 adds AVX2, BMI and FMA (most since
+     * 2015), which lets LLVM vectorise more of the string building. The
+     * baseline version goes where it always has, and the others go in
+     * directories named after their levels next to it, e.g.
+     * linux-x86-64/x86-64-v3/libgreetings.so.
+     */
+    enum Variant {
+        BASELINE(null),
+        X86_64_V2("x86-64-v2"),
+        X86_64_V3("x86-64-v3");
+
+        private final String targetCpu;
+
+        private Variant(String targetCpu) {
+            this.targetCpu = targetCpu;
+        }
+
+        public List<String> rustcFlags(List<String> profileFlags) {
+            List<String> flags = new ArrayList<>(profileFlags);
+            if (targetCpu != null) {
+                flags.addAll(asList("-C", "target-cpu=" + targetCpu));
+            }
+            return flags;
+        }
+
+        public Path subdirectory(Path directory) {
+            return targetCpu == null ? directory : directory.resolve(targetCpu);
+        }
+
+        @Override
+        public String toString() {
+            return targetCpu == null ? "baseline" : targetCpu;
+        }
+    }
+
+    /**
+     * A variant of a crate to compile
+     */
+    static class Build {
+        private final Path crate;
+        private final Variant variant;
+        private final Path outputRoot;
+        private final Path installRoot;
+
+        Build(Path crate, Variant variant) {
+            this(crate, variant, RUST_OUTPUT_DIR, CompileRustCrates.outputDir());
+        }
+
+        /**
+         * A build that's compiled under outputRoot and installed under
+         * installRoot, instead of under target (e.g. for testing)
+         */
+        Build(Path crate, Variant variant, Path outputRoot, Path installRoot) {
+            this.crate = crate;
+            this.variant = variant;
+            this.outputRoot = outputRoot;
+            this.installRoot = installRoot;
+        }
+
+        List<String> rustcFlags() {
+            // A portable crate mustn't pick up the CPU from the profile either (e.g. release-native)
+            return variant.rustcFlags(isPortable(crate) ? PROFILE.portableRustcFlags() : PROFILE.rustcFlags());
+        }
+
+        /**
+         * Each crate (and variant) is compiled into its own directory, so that
+         * we can tell which outputs are whose
+         */
+        Path outputDir() {
+            return outputRoot.resolve(crateName(crate)).resolve(variant.toString());
+        }
+
+        Path installDir() {
+            return variant.subdirectory(installRoot);
+        }
+
+        /**
+         * What it's called in the manifest
+         */
+        String key() {
+            return variant == Variant.BASELINE ? crate.toString() : crate + "@" + variant;
+        }
+
+        @Override
+        public String toString() {
+            return variant == Variant.BASELINE ? crate.toString() : crate + " (" + variant + ")";
+        }
+    }
+
     private static abstract class FileFinder implements FileVisitor<Path> {
         private final List<Path> found = new LinkedList<>();
 
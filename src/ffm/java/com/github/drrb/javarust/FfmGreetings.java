@@ -0,0 +1,793 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.PointerType;
+import com.sun.jna.Structure;
+
+import java.io.File;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.github.drrb.javarust.Owners.owned;
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * The same Rust library as {@link Greetings#INSTANCE}, bound using Java's
+ * Foreign Function &amp; Memory API (java.lang.foreign) instead of JNA.
+ *
+ * JNA calls into Rust through libffi, converting every argument and return
+ * value by reflection on the way. Here, each Rust function gets a method
+ * handle (a "downcall") that the JIT compiles into a plain native call. The
+ * functions that only do a small, fixed amount of work are also linked as
+ * "critical", which skips the JVM's thread state transitions (see the list
+ * of functions below for what counts).
+ *
+ * The arguments and return values are still the JNA types that
+ * {@link Greetings} uses, so this can be swapped in for the other bindings
+ * (see {@link GreetingsBinding#FFM}). Structs that Java passes in (e.g.
+ * {@link Person}) are laid out with java.lang.foreign. Structs that Rust
+ * returns are handed to the JNA classes by address, which read them as usual.
+ *
+ * This class needs Java 22, so it's only built by the "ffm" profile. Run it
+ * with "--enable-native-access=ALL-UNNAMED" to avoid warnings.
+ */
+public final class FfmGreetings implements Greetings {
+
+    public static final FfmGreetings INSTANCE = new FfmGreetings();
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final SymbolLookup RUST = rustLibrary();
+
+    /**
+     * Person in Rust (and Java): two pointers to strings
+     */
+    private static final StructLayout PERSON = MemoryLayout.structLayout(
+            ADDRESS.withName("first_name"),
+            ADDRESS.withName("last_name"));
+    /**
+     * Greeting in Rust (and Java): a pointer to a string
+     */
+    private static final StructLayout GREETING = MemoryLayout.structLayout(
+            ADDRESS.withName("text"));
+    /**
+     * NativeStats in Rust (and Java): nine longs
+     */
+    private static final StructLayout NATIVE_STATS = MemoryLayout.structLayout(
+            JAVA_LONG.withName("greetings_allocated"),
+            JAVA_LONG.withName("greetings_freed"),
+            JAVA_LONG.withName("greeting_sets_allocated"),
+            JAVA_LONG.withName("greeting_sets_freed"),
+            JAVA_LONG.withName("strings_allocated"),
+            JAVA_LONG.withName("strings_freed"),
+            JAVA_LONG.withName("bytes_allocated"),
+            JAVA_LONG.withName("bytes_freed"),
+            JAVA_LONG.withName("live_bytes"));
+    /**
+     * LineProgress in Rust (and Java): four ints
+     */
+    private static final StructLayout LINE_PROGRESS = MemoryLayout.structLayout(
+            JAVA_INT.withName("consumed"),
+            JAVA_INT.withName("produced"),
+            JAVA_INT.withName("lines"),
+            JAVA_INT.withName("needed"));
+
+    // Functions are linked as "critical" only if they do a small, fixed amount
+    // of work: a few allocations or frees, or copying a name or two. They
+    // mustn't call back into Java, print, wait for other threads (e.g. for a
+    // lock), work through something as big as the caller likes, or touch
+    // memory the caller chooses (which could page-fault). Everything else is
+    // linked as an ordinary function.
+    // (dropGreeting logs what it drops, which doesn't block: see NativeLog.
+    // submitGreeting gives up if the queue is full, instead of waiting.)
+    private static final MethodHandle RENDER_GREETING = critical("renderGreeting", FunctionDescriptor.of(ADDRESS, ADDRESS));
+    private static final MethodHandle RENDER_GREETING_OWNED = critical("renderGreetingOwned", FunctionDescriptor.of(ADDRESS, ADDRESS));
+    private static final MethodHandle GREET = critical("greet", FunctionDescriptor.of(ADDRESS, ADDRESS));
+    private static final MethodHandle GREET_OWNED = critical("greetOwned", FunctionDescriptor.of(ADDRESS, ADDRESS));
+    private static final MethodHandle GET_GREETING_BY_REFERENCE = critical("getGreetingByReference", FunctionDescriptor.of(ADDRESS));
+    private static final MethodHandle GET_GREETING_BY_VALUE = critical("getGreetingByValue", FunctionDescriptor.of(GREETING));
+    private static final MethodHandle RENDER_GREETINGS = critical("renderGreetings", FunctionDescriptor.of(ADDRESS));
+    private static final MethodHandle GET_NATIVE_STATS = critical("getNativeStats", FunctionDescriptor.of(NATIVE_STATS));
+    private static final MethodHandle GET_NATIVE_CALL_COUNTS = critical("getNativeCallCounts", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle GET_NATIVE_EXPORT_NAME = critical("getNativeExportName", FunctionDescriptor.of(ADDRESS, JAVA_INT));
+    private static final MethodHandle SET_NATIVE_LOG_LEVEL = critical("setNativeLogLevel", FunctionDescriptor.ofVoid(JAVA_INT));
+    private static final MethodHandle GET_NATIVE_LOG_DROPPED = critical("getNativeLogDropped", FunctionDescriptor.of(JAVA_LONG));
+    private static final MethodHandle CREATE_GREETING_ARENA = critical("createGreetingArena", FunctionDescriptor.of(ADDRESS));
+    private static final MethodHandle RENDER_GREETING_IN_ARENA = critical("renderGreetingInArena", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle GREET_IN_ARENA = critical("greetInArena", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS));
+    private static final MethodHandle RENDER_GREETINGS_IN_ARENA = critical("renderGreetingsInArena", FunctionDescriptor.of(ADDRESS, ADDRESS));
+    private static final MethodHandle SUBMIT_GREETING = critical("submitGreeting", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, ADDRESS));
+    private static final MethodHandle DROP_STRING = critical("dropString", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle DROP_GREETING = critical("dropGreeting", FunctionDescriptor.ofVoid(ADDRESS));
+
+    // Functions that could take a while, or that need to be able to call back into Java
+    // (These call back into Java, or print)
+    private static final MethodHandle PRINT_GREETING = function("printGreeting", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle CALL_ME_BACK = function("callMeBack", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle SEND_GREETINGS = function("sendGreetings", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle CALL_ME_BACK_WITH = function("callMeBackWith", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    private static final MethodHandle SEND_GREETINGS_WITH = function("sendGreetingsWith", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    private static final MethodHandle PUMP_GREETING_STREAM = function("pumpGreetingStream", FunctionDescriptor.of(JAVA_INT, ADDRESS, ADDRESS));
+    // (These wait for other threads: to start or stop, or to let go of a lock)
+    private static final MethodHandle CREATE_GREETING_WORKERS = function("createGreetingWorkers", FunctionDescriptor.of(ADDRESS, JAVA_INT, JAVA_INT, ADDRESS));
+    private static final MethodHandle DROP_GREETING_WORKERS = function("dropGreetingWorkers", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle REGISTER_GREETING_CALLBACK = function("registerGreetingCallback", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle UNREGISTER_GREETING_CALLBACK = function("unregisterGreetingCallback", FunctionDescriptor.ofVoid(JAVA_INT));
+    private static final MethodHandle REGISTER_GREETING_SET_CALLBACK = function("registerGreetingSetCallback", FunctionDescriptor.of(JAVA_INT, ADDRESS));
+    private static final MethodHandle UNREGISTER_GREETING_SET_CALLBACK = function("unregisterGreetingSetCallback", FunctionDescriptor.ofVoid(JAVA_INT));
+    private static final MethodHandle DRAIN_NATIVE_LOG = function("drainNativeLog", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT));
+    // (These take as long as the number of names, or greetings, they're given)
+    private static final MethodHandle RENDER_GREETINGS_FOR = function("renderGreetingsFor", FunctionDescriptor.of(ADDRESS, ADDRESS, JAVA_INT));
+    private static final MethodHandle OPEN_GREETING_STREAM = function("openGreetingStream", FunctionDescriptor.of(ADDRESS, ADDRESS, JAVA_INT, JAVA_INT));
+    private static final MethodHandle RENDER_SIZED_GREETINGS_FOR = function("renderSizedGreetingsFor", FunctionDescriptor.of(ADDRESS, ADDRESS, JAVA_INT));
+    private static final MethodHandle GREET_PACKED = function("greetPacked", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, JAVA_INT));
+    private static final MethodHandle DROP_PACKED_GREETINGS = function("dropPackedGreetings", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle DROP_GREETING_SET = function("dropGreetingSet", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle DROP_SIZED_GREETING_SET = function("dropSizedGreetingSet", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle DROP_GREETING_STREAM = function("dropGreetingStream", FunctionDescriptor.ofVoid(ADDRESS));
+    private static final MethodHandle DROP_GREETING_ARENA = function("dropGreetingArena", FunctionDescriptor.ofVoid(ADDRESS));
+    // (These read and write memory the caller chooses, which could be memory-mapped and page-fault)
+    private static final MethodHandle RENDER_GREETING_INTO = function("renderGreetingInto", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_INT, ADDRESS, JAVA_INT));
+    private static final MethodHandle RENDER_GREETING_LINES = function("renderGreetingLines", FunctionDescriptor.of(LINE_PROGRESS, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT));
+
+    // The Java side of the callbacks (see the "apply" methods at the bottom)
+    private static final FunctionDescriptor GREETING_CALLBACK = FunctionDescriptor.ofVoid(ADDRESS);
+    private static final FunctionDescriptor GREETING_SET_CALLBACK = FunctionDescriptor.ofVoid(ADDRESS);
+    private static final FunctionDescriptor GREETING_CHUNK_CALLBACK = FunctionDescriptor.of(JAVA_INT, ADDRESS);
+    private static final FunctionDescriptor GREETING_COMPLETION_CALLBACK = FunctionDescriptor.ofVoid(JAVA_LONG, ADDRESS);
+    private static final MethodHandle APPLY_GREETING_CALLBACK = callbackTarget("applyGreetingCallback", void.class, GreetingCallback.class, MemorySegment.class);
+    private static final MethodHandle APPLY_GREETING_SET_CALLBACK = callbackTarget("applyGreetingSetCallback", void.class, GreetingSetCallback.class, MemorySegment.class);
+    private static final MethodHandle APPLY_GREETING_CHUNK_CALLBACK = callbackTarget("applyGreetingChunkCallback", int.class, GreetingChunkCallback.class, MemorySegment.class);
+    private static final MethodHandle APPLY_GREETING_COMPLETION_CALLBACK = callbackTarget("applyGreetingCompletionCallback", void.class, GreetingCompletionCallback.class, long.class, MemorySegment.class);
+
+    // Callbacks that Rust holds on to after the call that passed them in
+    // returns. Their native functions (and the memory they're in) live until
+    // they're unregistered, or until the workers that call them are dropped.
+    private final ConcurrentMap<Integer, Arena> greetingCallbacks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Arena> greetingSetCallbacks = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Arena> completionCallbacks = new ConcurrentHashMap<>();
+
+    private FfmGreetings() {
+    }
+
+    @Override
+    public void printGreeting(String name) {
+        try (Arena arena = Arena.ofConfined()) {
+            PRINT_GREETING.invokeExact(arena.allocateFrom(name));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public String renderGreeting(String name) {
+        try (Arena arena = Arena.ofConfined()) {
+            return string((MemorySegment) RENDER_GREETING.invokeExact(arena.allocateFrom(name)));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public RustString renderGreetingOwned(String name) {
+        try (Arena arena = Arena.ofConfined()) {
+            return owned(this, pointerType(new RustString(), (MemorySegment) RENDER_GREETING_OWNED.invokeExact(arena.allocateFrom(name))), RustString::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public int renderGreetingInto(Pointer name, int nameLength, Pointer greeting, int capacity) {
+        try {
+            return (int) RENDER_GREETING_INTO.invokeExact(segment(name), nameLength, segment(greeting), capacity);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public String greet(Person john) {
+        try (Arena arena = Arena.ofConfined()) {
+            return string((MemorySegment) GREET.invokeExact(person(arena, john)));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public String greet(PersonBuffer john) {
+        // The struct is already in native memory, laid out like Person
+        try {
+            return string((MemorySegment) GREET.invokeExact(segment(john)));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public RustString greetOwned(Person john) {
+        try (Arena arena = Arena.ofConfined()) {
+            return owned(this, pointerType(new RustString(), (MemorySegment) GREET_OWNED.invokeExact(person(arena, john))), RustString::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public Greeting getGreetingByReference() {
+        try {
+            return owned(this, structure(Greeting.class, (MemorySegment) GET_GREETING_BY_REFERENCE.invokeExact()), Greeting::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public Greeting.ByValue getGreetingByValue() {
+        try (Arena arena = Arena.ofConfined()) {
+            // The struct comes back by value, into memory that we allocate.
+            // We copy it into the memory JNA allocated for the Java struct.
+            MemorySegment returned = (MemorySegment) GET_GREETING_BY_VALUE.invokeExact((SegmentAllocator) arena);
+            Greeting.ByValue greeting = new Greeting.ByValue();
+            segment(greeting.getPointer()).reinterpret(GREETING.byteSize()).copyFrom(returned);
+            greeting.read();
+            return owned(this, greeting, Greeting::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public GreetingSet renderGreetings() {
+        try {
+            return owned(this, structure(GreetingSet.class, (MemorySegment) RENDER_GREETINGS.invokeExact()), GreetingSet::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public GreetingSet renderGreetingsFor(String[] names, int count) {
+        try (Arena arena = Arena.ofConfined()) {
+            return owned(this, structure(GreetingSet.class, (MemorySegment) RENDER_GREETINGS_FOR.invokeExact(strings(arena, names, count), count)), GreetingSet::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void callMeBack(GreetingCallback callback) {
+        // Rust only calls the callback before callMeBack returns, so the native
+        // function can be freed straight afterwards
+        try (Arena arena = Arena.ofConfined()) {
+            CALL_ME_BACK.invokeExact(upcall(arena, APPLY_GREETING_CALLBACK, callback, GREETING_CALLBACK));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void sendGreetings(GreetingSetCallback callback) {
+        try (Arena arena = Arena.ofConfined()) {
+            SEND_GREETINGS.invokeExact(upcall(arena, APPLY_GREETING_SET_CALLBACK, callback, GREETING_SET_CALLBACK));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public int registerGreetingCallback(GreetingCallback callback) {
+        Arena arena = Arena.ofShared();
+        try {
+            int handle = (int) REGISTER_GREETING_CALLBACK.invokeExact(upcall(arena, APPLY_GREETING_CALLBACK, callback, GREETING_CALLBACK));
+            greetingCallbacks.put(handle, arena);
+            return handle;
+        } catch (Throwable e) {
+            arena.close();
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void unregisterGreetingCallback(int handle) {
+        try {
+            UNREGISTER_GREETING_CALLBACK.invokeExact(handle);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+        close(greetingCallbacks.remove(handle));
+    }
+
+    @Override
+    public int callMeBackWith(int handle) {
+        try {
+            return (int) CALL_ME_BACK_WITH.invokeExact(handle);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public int registerGreetingSetCallback(GreetingSetCallback callback) {
+        Arena arena = Arena.ofShared();
+        try {
+            int handle = (int) REGISTER_GREETING_SET_CALLBACK.invokeExact(upcall(arena, APPLY_GREETING_SET_CALLBACK, callback, GREETING_SET_CALLBACK));
+            greetingSetCallbacks.put(handle, arena);
+            return handle;
+        } catch (Throwable e) {
+            arena.close();
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void unregisterGreetingSetCallback(int handle) {
+        try {
+            UNREGISTER_GREETING_SET_CALLBACK.invokeExact(handle);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+        close(greetingSetCallbacks.remove(handle));
+    }
+
+    @Override
+    public int sendGreetingsWith(int handle) {
+        try {
+            return (int) SEND_GREETINGS_WITH.invokeExact(handle);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public GreetingStream openGreetingStream(String[] names, int count, int chunkSize) {
+        try (Arena arena = Arena.ofConfined()) {
+            return owned(this, pointerType(new GreetingStream(), (MemorySegment) OPEN_GREETING_STREAM.invokeExact(strings(arena, names, count), count, chunkSize)), GreetingStream::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public int pumpGreetingStream(GreetingStream stream, GreetingChunkCallback callback) {
+        try (Arena arena = Arena.ofConfined()) {
+            return (int) PUMP_GREETING_STREAM.invokeExact(segment(stream), upcall(arena, APPLY_GREETING_CHUNK_CALLBACK, callback, GREETING_CHUNK_CALLBACK));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public SizedGreetingSet renderSizedGreetingsFor(String[] names, int count) {
+        try (Arena arena = Arena.ofConfined()) {
+            return owned(this, structure(SizedGreetingSet.class, (MemorySegment) RENDER_SIZED_GREETINGS_FOR.invokeExact(strings(arena, names, count), count)), SizedGreetingSet::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public LineProgress.ByValue renderGreetingLines(Pointer input, int inputLength, boolean endOfInput, Pointer output, int capacity) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment returned = (MemorySegment) RENDER_GREETING_LINES.invokeExact((SegmentAllocator) arena, segment(input), inputLength, endOfInput ? 1 : 0, segment(output), capacity);
+            LineProgress.ByValue progress = new LineProgress.ByValue();
+            segment(progress.getPointer()).reinterpret(LINE_PROGRESS.byteSize()).copyFrom(returned);
+            progress.read();
+            return progress;
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public PackedGreetings greetPacked(Pointer firstNames, Pointer firstNameOffsets, Pointer lastNames, Pointer lastNameOffsets, int count) {
+        try {
+            return owned(this, structure(PackedGreetings.class, (MemorySegment) GREET_PACKED.invokeExact(segment(firstNames), segment(firstNameOffsets), segment(lastNames), segment(lastNameOffsets), count)), PackedGreetings::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public NativeStats.ByValue getNativeStats() {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment returned = (MemorySegment) GET_NATIVE_STATS.invokeExact((SegmentAllocator) arena);
+            NativeStats.ByValue stats = new NativeStats.ByValue();
+            segment(stats.getPointer()).reinterpret(NATIVE_STATS.byteSize()).copyFrom(returned);
+            stats.read();
+            return stats;
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public int getNativeCallCounts(long[] counts, int capacity) {
+        if (counts == null) {
+            try {
+                return (int) GET_NATIVE_CALL_COUNTS.invokeExact(MemorySegment.NULL, 0);
+            } catch (Throwable e) {
+                throw failure(e);
+            }
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            int length = Math.min(capacity, counts.length);
+            MemorySegment countsSegment = arena.allocate(JAVA_LONG, Math.max(length, 1));
+            int numberOfExports = (int) GET_NATIVE_CALL_COUNTS.invokeExact(countsSegment, length);
+            MemorySegment.copy(countsSegment, JAVA_LONG, 0, counts, 0, Math.min(length, numberOfExports));
+            return numberOfExports;
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public String getNativeExportName(int index) {
+        try {
+            // The names are static in Rust, so there's nothing to free
+            return string((MemorySegment) GET_NATIVE_EXPORT_NAME.invokeExact(index));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void setNativeLogLevel(int level) {
+        try {
+            SET_NATIVE_LOG_LEVEL.invokeExact(level);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public int drainNativeLog(Pointer buffer, int capacity) {
+        try {
+            return (int) DRAIN_NATIVE_LOG.invokeExact(segment(buffer), capacity);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public long getNativeLogDropped() {
+        try {
+            return (long) GET_NATIVE_LOG_DROPPED.invokeExact();
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public GreetingArena createGreetingArena() {
+        try {
+            return owned(this, pointerType(new GreetingArena(), (MemorySegment) CREATE_GREETING_ARENA.invokeExact()), GreetingArena::setOwner);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public String renderGreetingInArena(GreetingArena greetingArena, String name) {
+        try (Arena arena = Arena.ofConfined()) {
+            return string((MemorySegment) RENDER_GREETING_IN_ARENA.invokeExact(segment(greetingArena), arena.allocateFrom(name)));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public String greetInArena(GreetingArena greetingArena, Person john) {
+        try (Arena arena = Arena.ofConfined()) {
+            return string((MemorySegment) GREET_IN_ARENA.invokeExact(segment(greetingArena), person(arena, john)));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public GreetingSet.InArena renderGreetingsInArena(GreetingArena greetingArena) {
+        try {
+            return structure(GreetingSet.InArena.class, (MemorySegment) RENDER_GREETINGS_IN_ARENA.invokeExact(segment(greetingArena)));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public GreetingWorkers createGreetingWorkers(int numberOfThreads, int queueCapacity, GreetingCompletionCallback callback) {
+        // Rust's threads call the callback until the workers are dropped
+        Arena arena = Arena.ofShared();
+        try {
+            MemorySegment completion = upcall(arena, APPLY_GREETING_COMPLETION_CALLBACK, callback, GREETING_COMPLETION_CALLBACK);
+            MemorySegment workers = (MemorySegment) CREATE_GREETING_WORKERS.invokeExact(numberOfThreads, queueCapacity, completion);
+            completionCallbacks.put(workers.address(), arena);
+            return pointerType(new GreetingWorkers(), workers);
+        } catch (Throwable e) {
+            arena.close();
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public int submitGreeting(GreetingWorkers workers, long id, String name) {
+        try (Arena arena = Arena.ofConfined()) {
+            return (int) SUBMIT_GREETING.invokeExact(segment(workers), id, arena.allocateFrom(name));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void dropGreeting(Greeting greeting) {
+        try {
+            DROP_GREETING.invokeExact(segment(greeting));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void dropGreetingSet(GreetingSet greetingSet) {
+        try {
+            DROP_GREETING_SET.invokeExact(segment(greetingSet));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void dropSizedGreetingSet(SizedGreetingSet greetingSet) {
+        try {
+            DROP_SIZED_GREETING_SET.invokeExact(segment(greetingSet));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void dropPackedGreetings(PackedGreetings greetings) {
+        try {
+            DROP_PACKED_GREETINGS.invokeExact(segment(greetings));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void dropString(RustString string) {
+        try {
+            DROP_STRING.invokeExact(segment(string));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void dropGreetingStream(GreetingStream stream) {
+        try {
+            DROP_GREETING_STREAM.invokeExact(segment(stream));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void dropGreetingArena(GreetingArena arena) {
+        try {
+            DROP_GREETING_ARENA.invokeExact(segment(arena));
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public void dropGreetingWorkers(GreetingWorkers workers) {
+        MemorySegment segment = segment(workers);
+        try {
+            DROP_GREETING_WORKERS.invokeExact(segment);
+        } catch (Throwable e) {
+            throw failure(e);
+        }
+        // The threads have all exited now, so nothing can call the callback
+        close(completionCallbacks.remove(segment.address()));
+    }
+
+    /**
+     * Load the same library file that JNA loaded, so that both bindings share
+     * the library's state (e.g. its registered callbacks).
+     */
+    private static SymbolLookup rustLibrary() {
+        File file = RustLibrary.get().getFile();
+        if (file == null) {
+            return SymbolLookup.libraryLookup(System.mapLibraryName(RustLibrary.NAME), Arena.global());
+        }
+        return SymbolLookup.libraryLookup(file.toPath(), Arena.global());
+    }
+
+    private static MethodHandle function(String name, FunctionDescriptor descriptor, Linker.Option... options) {
+        MemorySegment address = RUST.find(name).orElseThrow(() -> new UnsatisfiedLinkError("Rust function not found: " + name));
+        return LINKER.downcallHandle(address, descriptor, options);
+    }
+
+    /**
+     * A function that's called without the JVM's usual thread state
+     * transitions. That makes the call cheaper, but the function can't call
+     * back into Java, and it holds up the garbage collector while it runs.
+     */
+    private static MethodHandle critical(String name, FunctionDescriptor descriptor) {
+        return function(name, descriptor, Linker.Option.critical(false));
+    }
+
+    private static MethodHandle callbackTarget(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return MethodHandles.lookup().findStatic(FfmGreetings.class, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Callback target not found: " + name, e);
+        }
+    }
+
+    /**
+     * A native function that calls a Java callback, allocated in the arena
+     */
+    private static MemorySegment upcall(Arena arena, MethodHandle target, Object callback, FunctionDescriptor descriptor) {
+        return LINKER.upcallStub(MethodHandles.insertArguments(target, 0, callback), descriptor, arena);
+    }
+
+    private static MemorySegment person(Arena arena, Person person) {
+        MemorySegment segment = arena.allocate(PERSON);
+        segment.set(ADDRESS, PERSON.byteOffset(MemoryLayout.PathElement.groupElement("first_name")), arena.allocateFrom(person.firstName));
+        segment.set(ADDRESS, PERSON.byteOffset(MemoryLayout.PathElement.groupElement("last_name")), arena.allocateFrom(person.lastName));
+        return segment;
+    }
+
+    private static MemorySegment strings(Arena arena, String[] strings, int count) {
+        // Rust trusts the count, so it mustn't be more than there are strings
+        if (count < 0 || count > strings.length) {
+            throw new IllegalArgumentException(String.format("Count must be between 0 and the number of names (%d), but was %d", strings.length, count));
+        }
+        MemorySegment array = arena.allocate(ADDRESS, count);
+        for (int i = 0; i < count; i++) {
+            array.setAtIndex(ADDRESS, i, arena.allocateFrom(strings[i]));
+        }
+        return array;
+    }
+
+    /**
+     * Read a (null-terminated) string that Rust returned
+     */
+    private static String string(MemorySegment string) {
+        if (string.equals(MemorySegment.NULL)) {
+            return null;
+        }
+        // We don't know how long the string is until we find the end of it
+        return string.reinterpret(Long.MAX_VALUE).getString(0);
+    }
+
+    /**
+     * The JNA struct at the address Rust returned
+     */
+    private static <T extends Structure> T structure(Class<T> type, MemorySegment address) {
+        // Like JNA, a null pointer to a struct is a null struct
+        if (address.equals(MemorySegment.NULL)) {
+            return null;
+        }
+        T structure = type.cast(Structure.newInstance(type, pointer(address)));
+        structure.read();
+        return structure;
+    }
+
+    private static <T extends PointerType> T pointerType(T pointerType, MemorySegment address) {
+        pointerType.setPointer(pointer(address));
+        return pointerType;
+    }
+
+    private static Pointer pointer(MemorySegment address) {
+        return address.equals(MemorySegment.NULL) ? null : new Pointer(address.address());
+    }
+
+    private static MemorySegment segment(Pointer pointer) {
+        return pointer == null ? MemorySegment.NULL : MemorySegment.ofAddress(Pointer.nativeValue(pointer));
+    }
+
+    private static MemorySegment segment(PointerType pointerType) {
+        return segment(pointerType.getPointer());
+    }
+
+    private static MemorySegment segment(Structure structure) {
+        return segment(structure.getPointer());
+    }
+
+    private static void close(Arena arena) {
+        if (arena != null) {
+            arena.close();
+        }
+    }
+
+    private static RuntimeException failure(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException("Call into Rust failed", e);
+    }
+
+    // The Java ends of the callbacks.
+    //
+    // An exception escaping from one of these would crash the JVM, so (like
+    // JNA does) we pass it to the thread's uncaught exception handler instead.
+
+    private static void applyGreetingCallback(GreetingCallback callback, MemorySegment greeting) {
+        try {
+            callback.apply(string(greeting));
+        } catch (Throwable e) {
+            uncaught(e);
+        }
+    }
+
+    private static void applyGreetingSetCallback(GreetingSetCallback callback, MemorySegment greetingSet) {
+        try {
+            callback.apply(structure(GreetingSet.ByReference.class, greetingSet));
+        } catch (Throwable e) {
+            uncaught(e);
+        }
+    }
+
+    private static int applyGreetingChunkCallback(GreetingChunkCallback callback, MemorySegment chunk) {
+        try {
+            return callback.apply(structure(GreetingSet.ByReference.class, chunk));
+        } catch (Throwable e) {
+            uncaught(e);
+            return GreetingStream.CANCEL;
+        }
+    }
+
+    private static void applyGreetingCompletionCallback(GreetingCompletionCallback callback, long id, MemorySegment greeting) {
+        // The JVM attaches and detaches Rust's threads itself, so callbacks
+        // don't need to hear about threads exiting
+        if (id == GreetingWorkers.WORKER_EXITING) {
+            return;
+        }
+        try {
+            callback.apply(id, string(greeting));
+        } catch (Throwable e) {
+            uncaught(e);
+        }
+    }
+
+    private static void uncaught(Throwable e) {
+        Thread thread = Thread.currentThread();
+        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.Greetings.GreetingCompletionCallback;
+import com.sun.jna.Native;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Rendering greetings without waiting for them.
+ *
+ * Names are handed to a pool of Rust threads (see
+ * {@link Greetings#createGreetingWorkers}), and the calling thread gets a
+ * CompletableFuture back straight away. When a greeting has been rendered,
+ * Rust passes it back through a callback, which completes the future.
+ *
+ * Rust's queue of names has a fixed size. If it's full, the future fails with
+ * a RejectedExecutionException instead of the caller waiting for room, so
+ * the caller can decide whether to retry, slow down or give up.
+ *
+ * Rust's threads don't complete the futures themselves: they hand them to an
+ * Executor (the common ForkJoinPool by default), and go back to rendering
+ * greetings. Anything chained onto the futures with the non-"Async" methods
+ * (e.g. thenApply) runs on the executor's threads, so it can't hold up Rust's
+ * threads, and it can close this without waiting for its own thread to exit.
+ */
+public final class AsyncGreetings implements Closeable {
+
+    private final Greetings library;
+    private final ConcurrentMap<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    // Rust only has the callback's native function pointer, so we hold on to
+    // the callback to stop it being garbage collected
+    private final Completion completion = new Completion();
+    private final Executor completionExecutor;
+    // Set on Rust's threads, so that close() can tell if it's been called on one
+    private final ThreadLocal<Boolean> onWorkerThread = new ThreadLocal<>();
+    // Submitting takes the read lock, and closing takes the write lock, so that
+    // nothing is submitted to the workers while (or after) they're freed
+    private final ReadWriteLock lifecycle = new ReentrantReadWriteLock();
+    private GreetingWorkers workers;
+
+    /**
+     * Start a pool of Rust threads to render greetings, with the futures
+     * completed on the common ForkJoinPool.
+     *
+     * @param numberOfThreads how many threads Rust should start
+     * @param queueCapacity how many names can be waiting for a thread at once
+     */
+    public AsyncGreetings(Greetings library, int numberOfThreads, int queueCapacity) {
+        this(library, numberOfThreads, queueCapacity, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Start a pool of Rust threads to render greetings.
+     *
+     * @param numberOfThreads how many threads Rust should start
+     * @param queueCapacity how many names can be waiting for a thread at once
+     * @param completionExecutor where to complete the futures (and run
+     * whatever's chained onto them)
+     */
+    public AsyncGreetings(Greetings library, int numberOfThreads, int queueCapacity, Executor completionExecutor) {
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("Need at least one thread, but got " + numberOfThreads);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue needs room for at least one name, but got " + queueCapacity);
+        }
+        if (completionExecutor == null) {
+            throw new NullPointerException("completionExecutor");
+        }
+        this.library = library;
+        this.completionExecutor = completionExecutor;
+        // Rust's threads call back into Java for every greeting, so keep them
+        // attached to the JVM in between (see Completion for when they detach).
+        // This needs to happen before JNA creates the callback's function pointer.
+        Native.setCallbackThreadInitializer(completion, RegisteredGreetingCallback.ATTACHED_DAEMON_THREADS);
+        this.workers = library.createGreetingWorkers(numberOfThreads, queueCapacity, completion);
+    }
+
+    /**
+     * The same as {@link Greetings#renderGreeting(String)}, but without waiting
+     * for the greeting.
+     *
+     * @return a future greeting. It fails with a RejectedExecutionException if
+     * the queue is full, or if this has been closed.
+     */
+    public CompletableFuture<String> renderGreetingAsync(String name) {
+        if (name == null) {
+            throw new NullPointerException("name");
+        }
+        CompletableFuture<String> greeting = new CompletableFuture<>();
+        long id = nextId.getAndIncrement();
+        // This needs to be here before we submit the name, because the greeting
+        // could come back before submitGreeting returns
+        pending.put(id, greeting);
+        int result;
+        lifecycle.readLock().lock();
+        try {
+            result = workers == null ? GreetingWorkers.SHUT_DOWN : library.submitGreeting(workers, id, name);
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+        if (result != GreetingWorkers.SUBMITTED) {
+            pending.remove(id);
+            String reason = result == GreetingWorkers.QUEUE_FULL ? "Greeting queue is full" : "Greeting workers have been shut down";
+            greeting.completeExceptionally(new RejectedExecutionException(reason));
+        }
+        return greeting;
+    }
+
+    /**
+     * How many greetings have been submitted, but not rendered yet
+     */
+    public int pendingGreetings() {
+        return pending.size();
+    }
+
+    /**
+     * Stop Rust's threads.
+     *
+     * This waits for the threads to render the greetings that have already
+     * been submitted (so their futures have all been handed to the executor to
+     * complete by the time it returns). Closing it again afterwards does
+     * nothing.
+     *
+     * @throws IllegalStateException if it's called on one of Rust's threads
+     * (e.g. from a future completed on a same-thread executor), because the
+     * thread would be waiting for itself to exit
+     */
+    @Override
+    public void close() {
+        if (onWorkerThread.get() != null) {
+            throw new IllegalStateException("Can't close AsyncGreetings on one of its own worker threads (" + Thread.currentThread().getName() + ")");
+        }
+        lifecycle.writeLock().lock();
+        try {
+            if (workers != null) {
+                library.dropGreetingWorkers(workers);
+                workers = null;
+            }
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+    }
+
+    private class Completion implements GreetingCompletionCallback {
+
+        @Override
+        public void apply(long id, String greeting) {
+            if (id == GreetingWorkers.WORKER_EXITING) {
+                // The thread stays attached to the JVM between callbacks. Now
+                // that it's about to exit, have JNA detach it when we return.
+                Native.detach(true);
+                onWorkerThread.remove();
+                return;
+            }
+            onWorkerThread.set(Boolean.TRUE);
+            CompletableFuture<String> future = pending.remove(id);
+            if (future != null) {
+                try {
+                    completionExecutor.execute(() -> future.complete(greeting));
+                } catch (RejectedExecutionException e) {
+                    // The executor's been shut down. Completing it here is
+                    // better than leaving it waiting forever.
+                    future.complete(greeting);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Greets a file of names (one per line), writing the greetings to another
+ * file (one per line).
+ *
+ * The input file is mapped into memory a window at a time, and each window is
+ * passed straight to Rust (see {@link Greetings#renderGreetingLines}), which
+ * writes the greetings into a direct buffer that gets written to the output
+ * channel. The names and greetings never become Java Strings, and none of
+ * the file is read into the Java heap, so files much bigger than the heap
+ * can be greeted using the same (small) amount of memory.
+ */
+public class BatchGreeter {
+
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    static final int DEFAULT_OUTPUT_SIZE = 1024 * 1024;
+
+    private final Greetings library;
+    private final int windowSize;
+    private final int outputSize;
+
+    public BatchGreeter(Greetings library) {
+        this(library, DEFAULT_WINDOW_SIZE, DEFAULT_OUTPUT_SIZE);
+    }
+
+    /**
+     * @param windowSize how much of the input file to map at a time. It grows
+     * if a line is longer than this.
+     * @param outputSize how big a buffer to write the greetings into. It grows
+     * if a greeting is longer than this.
+     */
+    public BatchGreeter(Greetings library, int windowSize, int outputSize) {
+        if (windowSize <= 0 || outputSize <= 0) {
+            throw new IllegalArgumentException("Window and output sizes need to be positive");
+        }
+        this.library = library;
+        this.windowSize = windowSize;
+        this.outputSize = outputSize;
+    }
+
+    /**
+     * Greet every name in the input file, replacing the output file with the
+     * greetings.
+     */
+    public Report greetLines(Path input, Path output) throws IOException {
+        try (FileChannel greetings = FileChannel.open(output, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            return greetLines(input, greetings);
+        }
+    }
+
+    /**
+     * Greet every name in the input file, writing the greetings to a channel.
+     */
+    public Report greetLines(Path input, WritableByteChannel output) throws IOException {
+        long start = System.nanoTime();
+        long lines = 0;
+        long bytesOut = 0;
+        int windowSize = this.windowSize;
+        ByteBuffer greetings = ByteBuffer.allocateDirect(outputSize);
+
+        try (FileChannel names = FileChannel.open(input, READ)) {
+            long size = names.size();
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(windowSize, size - position);
+                boolean endOfInput = position + length == size;
+                // The window is unmapped when it's garbage collected. It's
+                // not in the Java heap, and the OS can drop its pages as
+                // soon as we've moved on, so the ones waiting don't cost much.
+                MappedByteBuffer window = names.map(READ_ONLY, position, length);
+                Pointer windowPointer = Native.getDirectBufferPointer(window);
+
+                int offset = 0;
+                while (offset < length) {
+                    LineProgress progress = library.renderGreetingLines(windowPointer.share(offset), length - offset, endOfInput, Native.getDirectBufferPointer(greetings), greetings.capacity());
+                    offset += progress.consumed;
+                    lines += progress.lines;
+                    if (progress.produced > 0) {
+                        greetings.clear();
+                        greetings.limit(progress.produced);
+                        writeFully(output, greetings);
+                        bytesOut += progress.produced;
+                    }
+                    if (progress.lines == 0) {
+                        if (progress.needed == 0) {
+                            // The rest of the window isn't a whole line. It
+                            // gets greeted with the next window.
+                            break;
+                        }
+                        // The next greeting doesn't fit in the buffer on its own
+                        greetings = ByteBuffer.allocateDirect(Math.max(progress.needed, greetings.capacity() * 2));
+                    }
+                }
+
+                if (offset == 0) {
+                    // There isn't a whole line in the window, so we need a bigger one
+                    if (windowSize == Integer.MAX_VALUE) {
+                        throw new IOException("Line starting at byte " + position + " is too long to greet");
+                    }
+                    windowSize = (int) Math.min(Integer.MAX_VALUE, windowSize * 2L);
+                }
+                position += offset;
+            }
+            return new Report(lines, size, bytesOut, System.nanoTime() - start);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * How much was greeted, and how quickly.
+     */
+    public static class Report {
+        private final long lines;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long nanos;
+
+        Report(long lines, long bytesIn, long bytesOut, long nanos) {
+            this.lines = lines;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.nanos = nanos;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format("Greeted %,d names (%,.1f MB in, %,.1f MB out) in %.2fs: %,.0f names/s, %,.1f MB/s",
+                    lines, bytesIn / 1e6, bytesOut / 1e6, seconds, lines / seconds, bytesIn / 1e6 / seconds);
+        }
+    }
+}
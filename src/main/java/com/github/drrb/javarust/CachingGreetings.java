@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.util.Objects;
+
+/**
+ * A {@link Greetings} that remembers the greetings it's rendered.
+ *
+ * {@link #renderGreeting(String)} and {@link #greet(Person)} always return
+ * the same greeting for the same name, so there's no need to go into Rust
+ * (and allocate a new string there) for a name we've seen before. The cache
+ * holds a fixed number of greetings, and keeps the ones for the names that
+ * come up most often (see {@link FrequencyCache}). Everything else is passed
+ * straight on to the library.
+ *
+ * To skip the cache for a call, make it on {@link #uncached()} instead.
+ */
+public class CachingGreetings extends ForwardingGreetings {
+
+    private final FrequencyCache<Object, String> greetings;
+
+    /**
+     * @param maximumSize how many greetings to remember
+     */
+    public CachingGreetings(Greetings delegate, int maximumSize) {
+        super(delegate);
+        this.greetings = new FrequencyCache<>(maximumSize);
+    }
+
+    @Override
+    public String renderGreeting(String name) {
+        if (name == null) {
+            return super.renderGreeting(name);
+        }
+        String greeting = greetings.get(name);
+        if (greeting == null) {
+            greeting = super.renderGreeting(name);
+            greetings.put(name, greeting);
+        }
+        return greeting;
+    }
+
+    @Override
+    public String greet(Person john) {
+        if (john == null) {
+            return super.greet(john);
+        }
+        // People can be changed, so we copy the names out for the key
+        PersonKey key = new PersonKey(john.firstName, john.lastName);
+        String greeting = greetings.get(key);
+        if (greeting == null) {
+            greeting = super.greet(john);
+            greetings.put(key, greeting);
+        }
+        return greeting;
+    }
+
+    /**
+     * The library, without the cache in front of it
+     */
+    public Greetings uncached() {
+        return delegate();
+    }
+
+    public long hitCount() {
+        return greetings.hitCount();
+    }
+
+    public long missCount() {
+        return greetings.missCount();
+    }
+
+    public long evictionCount() {
+        return greetings.evictionCount();
+    }
+
+    /**
+     * How many greetings are cached at the moment
+     */
+    public int size() {
+        return greetings.size();
+    }
+
+    public int maximumSize() {
+        return greetings.maximumSize();
+    }
+
+    private static final class PersonKey {
+        private final String firstName;
+        private final String lastName;
+
+        PersonKey(String firstName, String lastName) {
+            this.firstName = firstName;
+            this.lastName = lastName;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof PersonKey)) {
+                return false;
+            }
+            PersonKey that = (PersonKey) object;
+            return Objects.equals(firstName, that.firstName) && Objects.equals(lastName, that.lastName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(firstName, lastName);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies, in nanoseconds, that any number of threads can
+ * record into at once.
+ *
+ * Like HdrHistogram, values are counted in buckets whose width grows with the
+ * value, so that every bucket is within about 6% of the values in it, from a
+ * nanosecond up to hundreds of years. Recording a value just increments a
+ * couple of atomic counters: it doesn't lock, and doesn't allocate anything.
+ *
+ * The counts only ever go up. To see what was recorded over an interval, take
+ * a {@link Snapshot} at the start and end of it, and subtract one from the
+ * other (see {@link Snapshot#minus}). To combine histograms (e.g. one per
+ * thread, so that the threads don't share counters), add their snapshots
+ * together (see {@link Snapshot#plus}).
+ *
+ * This is used by {@link InstrumentedGreetings}, and by the benchmarks.
+ */
+public final class ConcurrentLatencyHistogram {
+
+    // Each power of two is split into this many buckets
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int BUCKETS = 64 * HALF_SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+        long currentMax = max.get();
+        // Only write the max when it changes, which it soon stops doing
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * A copy of the counts so far.
+     *
+     * Values recorded while the copy is being made might or might not be in
+     * it, but they'll be in the next one.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    // Small values get a bucket each. Above that, the value is shifted right
+    // until it fits in SUB_BUCKET_BITS bits, and the shift picks the set of
+    // buckets and the remaining (top) bits pick the bucket in the set.
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int topBits = (int) (value >>> shift);
+        return shift * HALF_SUB_BUCKETS + topBits;
+    }
+
+    private static long lowestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long topBits = index % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return shift >= 63 ? Long.MAX_VALUE : topBits << shift;
+    }
+
+    /**
+     * The counts in a histogram at some point in time
+     */
+    public static final class Snapshot {
+
+        public static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0, 0, 0);
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * What was recorded between an earlier snapshot and this one.
+         *
+         * The histogram only keeps the max of everything ever recorded, so
+         * the interval's max is the top of its highest bucket (or the overall
+         * max, if that's lower).
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] difference = new long[BUCKETS];
+            long highest = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+                if (difference[i] > 0) {
+                    highest = i;
+                }
+            }
+            long intervalMax = highest < 0 ? 0 : Math.min(lowestValueAt((int) highest + 1) - 1, max);
+            return new Snapshot(difference, count - earlier.count, sum - earlier.sum, intervalMax);
+        }
+
+        /**
+         * Everything recorded in this snapshot and another one (e.g. from
+         * another histogram)
+         */
+        public Snapshot plus(Snapshot other) {
+            long[] total = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                total[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(total, count + other.count, sum + other.sum, Math.max(max, other.max));
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * The value that the given fraction (e.g. 0.99) of the values are at or
+         * below (give or take the width of its bucket)
+         */
+        public long valueAtPercentile(double fraction) {
+            if (count <= 0) {
+                return 0;
+            }
+            long countAtPercentile = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= countAtPercentile) {
+                    return Math.min(lowestValueAt(i + 1) - 1, max);
+                }
+            }
+            return max;
+        }
+    }
+}
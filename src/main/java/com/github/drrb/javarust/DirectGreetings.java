@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.StringArray;
+
+import static com.github.drrb.javarust.Owners.owned;
+
+/**
+ * The same Rust library as {@link Greetings#INSTANCE}, bound using JNA's "direct mapping".
+ *
+ * {@link Greetings#INSTANCE} is a dynamic proxy: every call goes through
+ * reflection and JNA's generic invocation handler before it reaches Rust.
+ * Here, JNA binds the static native methods in {@link Functions} straight to
+ * the Rust functions of the same name, so calls skip all of that.
+ *
+ * Direct mapping can't be used with interfaces, so the native methods live in
+ * their own class and this one just forwards to them. That way it can be used
+ * anywhere a {@link Greetings} can (see {@link GreetingsBinding}).
+ */
+public class DirectGreetings implements Greetings {
+
+    public static final DirectGreetings INSTANCE = new DirectGreetings();
+
+    private DirectGreetings() {
+    }
+
+    @Override
+    public void printGreeting(String name) {
+        Functions.printGreeting(name);
+    }
+
+    @Override
+    public String renderGreeting(String name) {
+        return Functions.renderGreeting(name);
+    }
+
+    @Override
+    public RustString renderGreetingOwned(String name) {
+        return owned(this, Functions.renderGreetingOwned(name), RustString::setOwner);
+    }
+
+    @Override
+    public int renderGreetingInto(Pointer name, int nameLength, Pointer greeting, int capacity) {
+        return Functions.renderGreetingInto(name, nameLength, greeting, capacity);
+    }
+
+    @Override
+    public String greet(Person john) {
+        return Functions.greet(john);
+    }
+
+    @Override
+    public String greet(PersonBuffer john) {
+        return Functions.greet(john);
+    }
+
+    @Override
+    public RustString greetOwned(Person john) {
+        return owned(this, Functions.greetOwned(john), RustString::setOwner);
+    }
+
+    @Override
+    public Greeting getGreetingByReference() {
+        return owned(this, Functions.getGreetingByReference(), Greeting::setOwner);
+    }
+
+    @Override
+    public Greeting.ByValue getGreetingByValue() {
+        return owned(this, Functions.getGreetingByValue(), Greeting::setOwner);
+    }
+
+    @Override
+    public GreetingSet renderGreetings() {
+        return owned(this, Functions.renderGreetings(), GreetingSet::setOwner);
+    }
+
+    @Override
+    public GreetingSet renderGreetingsFor(String[] names, int count) {
+        // Direct mapping doesn't convert String arrays for us, so we do it here
+        return owned(this, Functions.renderGreetingsFor(names(names, count), count), GreetingSet::setOwner);
+    }
+
+    @Override
+    public void callMeBack(GreetingCallback callback) {
+        Functions.callMeBack(callback);
+    }
+
+    @Override
+    public void sendGreetings(GreetingSetCallback callback) {
+        Functions.sendGreetings(callback);
+    }
+
+    @Override
+    public int registerGreetingCallback(GreetingCallback callback) {
+        return Functions.registerGreetingCallback(callback);
+    }
+
+    @Override
+    public void unregisterGreetingCallback(int handle) {
+        Functions.unregisterGreetingCallback(handle);
+    }
+
+    @Override
+    public int callMeBackWith(int handle) {
+        return Functions.callMeBackWith(handle);
+    }
+
+    @Override
+    public int registerGreetingSetCallback(GreetingSetCallback callback) {
+        return Functions.registerGreetingSetCallback(callback);
+    }
+
+    @Override
+    public void unregisterGreetingSetCallback(int handle) {
+        Functions.unregisterGreetingSetCallback(handle);
+    }
+
+    @Override
+    public int sendGreetingsWith(int handle) {
+        return Functions.sendGreetingsWith(handle);
+    }
+
+    @Override
+    public SizedGreetingSet renderSizedGreetingsFor(String[] names, int count) {
+        return owned(this, Functions.renderSizedGreetingsFor(names(names, count), count), SizedGreetingSet::setOwner);
+    }
+
+    @Override
+    public LineProgress.ByValue renderGreetingLines(Pointer input, int inputLength, boolean endOfInput, Pointer output, int capacity) {
+        return Functions.renderGreetingLines(input, inputLength, endOfInput, output, capacity);
+    }
+
+    @Override
+    public PackedGreetings greetPacked(Pointer firstNames, Pointer firstNameOffsets, Pointer lastNames, Pointer lastNameOffsets, int count) {
+        return owned(this, Functions.greetPacked(firstNames, firstNameOffsets, lastNames, lastNameOffsets, count), PackedGreetings::setOwner);
+    }
+
+    @Override
+    public NativeStats.ByValue getNativeStats() {
+        return Functions.getNativeStats();
+    }
+
+    @Override
+    public int getNativeCallCounts(long[] counts, int capacity) {
+        return Functions.getNativeCallCounts(counts, capacity);
+    }
+
+    @Override
+    public String getNativeExportName(int index) {
+        return Functions.getNativeExportName(index);
+    }
+
+    @Override
+    public void setNativeLogLevel(int level) {
+        Functions.setNativeLogLevel(level);
+    }
+
+    @Override
+    public int drainNativeLog(Pointer buffer, int capacity) {
+        return Functions.drainNativeLog(buffer, capacity);
+    }
+
+    @Override
+    public long getNativeLogDropped() {
+        return Functions.getNativeLogDropped();
+    }
+
+    @Override
+    public GreetingArena createGreetingArena() {
+        return owned(this, Functions.createGreetingArena(), GreetingArena::setOwner);
+    }
+
+    @Override
+    public String renderGreetingInArena(GreetingArena arena, String name) {
+        return Functions.renderGreetingInArena(arena, name);
+    }
+
+    @Override
+    public String greetInArena(GreetingArena arena, Person john) {
+        return Functions.greetInArena(arena, john);
+    }
+
+    @Override
+    public GreetingSet.InArena renderGreetingsInArena(GreetingArena arena) {
+        return Functions.renderGreetingsInArena(arena);
+    }
+
+    @Override
+    public GreetingStream openGreetingStream(String[] names, int count, int chunkSize) {
+        return owned(this, Functions.openGreetingStream(names(names, count), count, chunkSize), GreetingStream::setOwner);
+    }
+
+    @Override
+    public int pumpGreetingStream(GreetingStream stream, GreetingChunkCallback callback) {
+        return Functions.pumpGreetingStream(stream, callback);
+    }
+
+    @Override
+    public GreetingWorkers createGreetingWorkers(int numberOfThreads, int queueCapacity, GreetingCompletionCallback callback) {
+        return Functions.createGreetingWorkers(numberOfThreads, queueCapacity, callback);
+    }
+
+    @Override
+    public int submitGreeting(GreetingWorkers workers, long id, String name) {
+        return Functions.submitGreeting(workers, id, name);
+    }
+
+    @Override
+    public void dropGreeting(Greeting greeting) {
+        Functions.dropGreeting(greeting);
+    }
+
+    @Override
+    public void dropGreetingSet(GreetingSet greetingSet) {
+        Functions.dropGreetingSet(greetingSet);
+    }
+
+    @Override
+    public void dropSizedGreetingSet(SizedGreetingSet greetingSet) {
+        Functions.dropSizedGreetingSet(greetingSet);
+    }
+
+    @Override
+    public void dropPackedGreetings(PackedGreetings greetings) {
+        Functions.dropPackedGreetings(greetings);
+    }
+
+    @Override
+    public void dropString(RustString string) {
+        Functions.dropString(string);
+    }
+
+    @Override
+    public void dropGreetingStream(GreetingStream stream) {
+        Functions.dropGreetingStream(stream);
+    }
+
+    @Override
+    public void dropGreetingArena(GreetingArena arena) {
+        Functions.dropGreetingArena(arena);
+    }
+
+    @Override
+    public void dropGreetingWorkers(GreetingWorkers workers) {
+        Functions.dropGreetingWorkers(workers);
+    }
+
+    /**
+     * Convert the names to a native array of strings.
+     *
+     * Rust can't tell how long the array is, so it trusts the count. If the
+     * count were more than the number of names, it would read past the end.
+     */
+    private static StringArray names(String[] names, int count) {
+        if (count < 0 || count > names.length) {
+            throw new IllegalArgumentException(String.format("Count must be between 0 and the number of names (%d), but was %d", names.length, count));
+        }
+        return new StringArray(names);
+    }
+
+    /**
+     * The Rust functions.
+     *
+     * The names and signatures of these methods need to match the ones in
+     * {@link Greetings}. JNA registers them when this class is loaded (i.e. the
+     * first time one of them is called).
+     */
+    private static class Functions {
+
+        static {
+            Native.register(Functions.class, RustLibrary.get());
+        }
+
+        static native void printGreeting(String name);
+
+        static native String renderGreeting(String name);
+
+        static native RustString renderGreetingOwned(String name);
+
+        static native int renderGreetingInto(Pointer name, int nameLength, Pointer greeting, int capacity);
+
+        static native String greet(Person john);
+
+        static native String greet(PersonBuffer john);
+
+        static native RustString greetOwned(Person john);
+
+        static native Greeting getGreetingByReference();
+
+        static native Greeting.ByValue getGreetingByValue();
+
+        static native GreetingSet renderGreetings();
+
+        static native GreetingSet renderGreetingsFor(Pointer names, int count);
+
+        static native void callMeBack(GreetingCallback callback);
+
+        static native void sendGreetings(GreetingSetCallback callback);
+
+        static native int registerGreetingCallback(GreetingCallback callback);
+
+        static native void unregisterGreetingCallback(int handle);
+
+        static native int callMeBackWith(int handle);
+
+        static native int registerGreetingSetCallback(GreetingSetCallback callback);
+
+        static native void unregisterGreetingSetCallback(int handle);
+
+        static native int sendGreetingsWith(int handle);
+
+        static native SizedGreetingSet renderSizedGreetingsFor(Pointer names, int count);
+
+        static native LineProgress.ByValue renderGreetingLines(Pointer input, int inputLength, boolean endOfInput, Pointer output, int capacity);
+
+        static native PackedGreetings greetPacked(Pointer firstNames, Pointer firstNameOffsets, Pointer lastNames, Pointer lastNameOffsets, int count);
+
+        static native NativeStats.ByValue getNativeStats();
+
+        static native int getNativeCallCounts(long[] counts, int capacity);
+
+        static native String getNativeExportName(int index);
+
+        static native void setNativeLogLevel(int level);
+
+        static native int drainNativeLog(Pointer buffer, int capacity);
+
+        static native long getNativeLogDropped();
+
+        static native GreetingArena createGreetingArena();
+
+        static native String renderGreetingInArena(GreetingArena arena, String name);
+
+        static native String greetInArena(GreetingArena arena, Person john);
+
+        static native GreetingSet.InArena renderGreetingsInArena(GreetingArena arena);
+
+        static native GreetingStream openGreetingStream(Pointer names, int count, int chunkSize);
+
+        static native int pumpGreetingStream(GreetingStream stream, GreetingChunkCallback callback);
+
+        static native GreetingWorkers createGreetingWorkers(int numberOfThreads, int queueCapacity, GreetingCompletionCallback callback);
+
+        static native int submitGreeting(GreetingWorkers workers, long id, String name);
+
+        static native void dropGreeting(Greeting greeting);
+
+        static native void dropGreetingSet(GreetingSet greetingSet);
+
+        static native void dropSizedGreetingSet(SizedGreetingSet greetingSet);
+
+        static native void dropPackedGreetings(PackedGreetings greetings);
+
+        static native void dropString(RustString string);
+
+        static native void dropGreetingStream(GreetingStream stream);
+
+        static native void dropGreetingArena(GreetingArena arena);
+
+        static native void dropGreetingWorkers(GreetingWorkers workers);
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Pointer;
+
+import static com.github.drrb.javarust.Owners.owned;
+
+/**
+ * A {@link Greetings} that passes every call on to another one.
+ *
+ * Extend this to change what happens for some calls (e.g. to cache them, see
+ * {@link CachingGreetings}) without having to write out all the others.
+ */
+public abstract class ForwardingGreetings implements Greetings {
+
+    private final Greetings delegate;
+
+    protected ForwardingGreetings(Greetings delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate");
+        }
+        this.delegate = delegate;
+    }
+
+    /**
+     * The Greetings that calls are passed on to
+     */
+    protected Greetings delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void printGreeting(String name) {
+        delegate.printGreeting(name);
+    }
+
+    @Override
+    public String renderGreeting(String name) {
+        return delegate.renderGreeting(name);
+    }
+
+    @Override
+    public RustString renderGreetingOwned(String name) {
+        return owned(this, delegate.renderGreetingOwned(name), RustString::setOwner);
+    }
+
+    @Override
+    public int renderGreetingInto(Pointer name, int nameLength, Pointer greeting, int capacity) {
+        return delegate.renderGreetingInto(name, nameLength, greeting, capacity);
+    }
+
+    @Override
+    public String greet(Person john) {
+        return delegate.greet(john);
+    }
+
+    @Override
+    public String greet(PersonBuffer john) {
+        return delegate.greet(john);
+    }
+
+    @Override
+    public RustString greetOwned(Person john) {
+        return owned(this, delegate.greetOwned(john), RustString::setOwner);
+    }
+
+    @Override
+    public Greeting getGreetingByReference() {
+        return owned(this, delegate.getGreetingByReference(), Greeting::setOwner);
+    }
+
+    @Override
+    public Greeting.ByValue getGreetingByValue() {
+        return owned(this, delegate.getGreetingByValue(), Greeting::setOwner);
+    }
+
+    @Override
+    public GreetingSet renderGreetings() {
+        return owned(this, delegate.renderGreetings(), GreetingSet::setOwner);
+    }
+
+    @Override
+    public GreetingSet renderGreetingsFor(String[] names, int count) {
+        return owned(this, delegate.renderGreetingsFor(names, count), GreetingSet::setOwner);
+    }
+
+    @Override
+    public void callMeBack(GreetingCallback callback) {
+        delegate.callMeBack(callback);
+    }
+
+    @Override
+    public void sendGreetings(GreetingSetCallback callback) {
+        delegate.sendGreetings(callback);
+    }
+
+    @Override
+    public int registerGreetingCallback(GreetingCallback callback) {
+        return delegate.registerGreetingCallback(callback);
+    }
+
+    @Override
+    public void unregisterGreetingCallback(int handle) {
+        delegate.unregisterGreetingCallback(handle);
+    }
+
+    @Override
+    public int callMeBackWith(int handle) {
+        return delegate.callMeBackWith(handle);
+    }
+
+    @Override
+    public int registerGreetingSetCallback(GreetingSetCallback callback) {
+        return delegate.registerGreetingSetCallback(callback);
+    }
+
+    @Override
+    public void unregisterGreetingSetCallback(int handle) {
+        delegate.unregisterGreetingSetCallback(handle);
+    }
+
+    @Override
+    public int sendGreetingsWith(int handle) {
+        return delegate.sendGreetingsWith(handle);
+    }
+
+    @Override
+    public GreetingStream openGreetingStream(String[] names, int count, int chunkSize) {
+        return owned(this, delegate.openGreetingStream(names, count, chunkSize), GreetingStream::setOwner);
+    }
+
+    @Override
+    public int pumpGreetingStream(GreetingStream stream, GreetingChunkCallback callback) {
+        return delegate.pumpGreetingStream(stream, callback);
+    }
+
+    @Override
+    public SizedGreetingSet renderSizedGreetingsFor(String[] names, int count) {
+        return owned(this, delegate.renderSizedGreetingsFor(names, count), SizedGreetingSet::setOwner);
+    }
+
+    @Override
+    public LineProgress.ByValue renderGreetingLines(Pointer input, int inputLength, boolean endOfInput, Pointer output, int capacity) {
+        return delegate.renderGreetingLines(input, inputLength, endOfInput, output, capacity);
+    }
+
+    @Override
+    public PackedGreetings greetPacked(Pointer firstNames, Pointer firstNameOffsets, Pointer lastNames, Pointer lastNameOffsets, int count) {
+        return owned(this, delegate.greetPacked(firstNames, firstNameOffsets, lastNames, lastNameOffsets, count), PackedGreetings::setOwner);
+    }
+
+    @Override
+    public NativeStats.ByValue getNativeStats() {
+        return delegate.getNativeStats();
+    }
+
+    @Override
+    public int getNativeCallCounts(long[] counts, int capacity) {
+        return delegate.getNativeCallCounts(counts, capacity);
+    }
+
+    @Override
+    public String getNativeExportName(int index) {
+        return delegate.getNativeExportName(index);
+    }
+
+    @Override
+    public void setNativeLogLevel(int level) {
+        delegate.setNativeLogLevel(level);
+    }
+
+    @Override
+    public int drainNativeLog(Pointer buffer, int capacity) {
+        return delegate.drainNativeLog(buffer, capacity);
+    }
+
+    @Override
+    public long getNativeLogDropped() {
+        return delegate.getNativeLogDropped();
+    }
+
+    @Override
+    public GreetingArena createGreetingArena() {
+        return owned(this, delegate.createGreetingArena(), GreetingArena::setOwner);
+    }
+
+    @Override
+    public String renderGreetingInArena(GreetingArena arena, String name) {
+        return delegate.renderGreetingInArena(arena, name);
+    }
+
+    @Override
+    public String greetInArena(GreetingArena arena, Person john) {
+        return delegate.greetInArena(arena, john);
+    }
+
+    @Override
+    public GreetingSet.InArena renderGreetingsInArena(GreetingArena arena) {
+        return delegate.renderGreetingsInArena(arena);
+    }
+
+    @Override
+    public GreetingWorkers createGreetingWorkers(int numberOfThreads, int queueCapacity, GreetingCompletionCallback callback) {
+        return delegate.createGreetingWorkers(numberOfThreads, queueCapacity, callback);
+    }
+
+    @Override
+    public int submitGreeting(GreetingWorkers workers, long id, String name) {
+        return delegate.submitGreeting(workers, id, name);
+    }
+
+    @Override
+    public void dropGreeting(Greeting greeting) {
+        delegate.dropGreeting(greeting);
+    }
+
+    @Override
+    public void dropGreetingSet(GreetingSet greetingSet) {
+        delegate.dropGreetingSet(greetingSet);
+    }
+
+    @Override
+    public void dropSizedGreetingSet(SizedGreetingSet greetingSet) {
+        delegate.dropSizedGreetingSet(greetingSet);
+    }
+
+    @Override
+    public void dropPackedGreetings(PackedGreetings greetings) {
+        delegate.dropPackedGreetings(greetings);
+    }
+
+    @Override
+    public void dropString(RustString string) {
+        delegate.dropString(string);
+    }
+
+    @Override
+    public void dropGreetingStream(GreetingStream stream) {
+        delegate.dropGreetingStream(stream);
+    }
+
+    @Override
+    public void dropGreetingArena(GreetingArena arena) {
+        delegate.dropGreetingArena(arena);
+    }
+
+    @Override
+    public void dropGreetingWorkers(GreetingWorkers workers) {
+        delegate.dropGreetingWorkers(workers);
+    }
+}
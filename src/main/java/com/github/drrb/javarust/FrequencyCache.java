@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache that keeps the entries that are used most often.
+ *
+ * This is a simplified version of the "Window TinyLFU" policy. New entries go
+ * into a small window (1% of the cache), where they're kept in order of use.
+ * When an entry falls out of the window, it only gets into the main part of
+ * the cache if it's been used more often (see {@link FrequencySketch}) than
+ * the entry that would be evicted to make room for it. That keeps one-off
+ * keys from pushing out popular ones. The main part is split into a
+ * "probation" segment, for entries that have only been used once since they
+ * got in, and a "protected" segment (80%) for entries that have been used again.
+ *
+ * Lookups read from a ConcurrentHashMap, so they never wait. Keeping the
+ * policy up to date does need a lock, but a lookup only records its hit if the
+ * lock is free. Under contention some hits go uncounted, which only makes the
+ * frequencies a little less accurate.
+ */
+final class FrequencyCache<K, V> {
+
+    private final int maximumSize;
+    private final int windowSize;
+    private final int mainSize;
+    private final int protectedSize;
+
+    private final ConcurrentMap<K, V> values = new ConcurrentHashMap<>();
+
+    // The policy: guarded by the lock. Each segment is a LinkedHashMap in
+    // access order, used as an LRU list (least recently used first).
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<K, Boolean> window = lruList();
+    private final LinkedHashMap<K, Boolean> probation = lruList();
+    private final LinkedHashMap<K, Boolean> protectedSegment = lruList();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    FrequencyCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Cache needs room for at least one entry, but got " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+        this.windowSize = Math.max(1, maximumSize / 100);
+        this.mainSize = maximumSize - windowSize;
+        this.protectedSize = (int) (mainSize * 0.8);
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * The cached value, or null (counting a hit or a miss)
+     */
+    V get(K key) {
+        V value = values.get(key);
+        if (value == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if (lock.tryLock()) {
+            try {
+                recordHit(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Add a value to the cache (unless it's already there).
+     *
+     * This may evict the value straight away, if its key isn't used often enough.
+     */
+    void put(K key, V value) {
+        lock.lock();
+        try {
+            sketch.increment(key);
+            if (values.putIfAbsent(key, value) != null) {
+                // Another thread got here first
+                return;
+            }
+            window.put(key, Boolean.TRUE);
+            if (window.size() > windowSize) {
+                admit(removeEldest(window));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long hitCount() {
+        return hits.get();
+    }
+
+    long missCount() {
+        return misses.get();
+    }
+
+    long evictionCount() {
+        return evictions.get();
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    int maximumSize() {
+        return maximumSize;
+    }
+
+    private void recordHit(K key) {
+        sketch.increment(key);
+        if (window.get(key) != null || protectedSegment.get(key) != null) {
+            // get() moved it to the most recently used end
+            return;
+        }
+        if (probation.remove(key) != null) {
+            // Used again: promote it, making room by demoting the least recently used protected entry
+            protectedSegment.put(key, Boolean.TRUE);
+            if (protectedSegment.size() > protectedSize) {
+                probation.put(removeEldest(protectedSegment), Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Let an entry that's fallen out of the window into the main part of the
+     * cache, if it's used more often than what it would replace
+     */
+    private void admit(K candidate) {
+        if (mainSize == 0) {
+            // The cache is so small that it's all window
+            evict(candidate);
+            return;
+        }
+        if (probation.size() + protectedSegment.size() < mainSize) {
+            probation.put(candidate, Boolean.TRUE);
+            return;
+        }
+        LinkedHashMap<K, Boolean> victims = probation.isEmpty() ? protectedSegment : probation;
+        K victim = victims.keySet().iterator().next();
+        if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+            victims.remove(victim);
+            evict(victim);
+            probation.put(candidate, Boolean.TRUE);
+        } else {
+            evict(candidate);
+        }
+    }
+
+    private void evict(K key) {
+        values.remove(key);
+        evictions.incrementAndGet();
+    }
+
+    private static <K> K removeEldest(LinkedHashMap<K, Boolean> segment) {
+        Iterator<K> keys = segment.keySet().iterator();
+        K eldest = keys.next();
+        keys.remove();
+        return eldest;
+    }
+
+    private static <K> LinkedHashMap<K, Boolean> lruList() {
+        return new LinkedHashMap<>(16, 0.75f, true);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+/**
+ * Roughly how often each key has been seen recently.
+ *
+ * This is a count-min sketch: each key is hashed to four 4-bit counters, and
+ * its frequency is the smallest of them (the others may have been bumped by
+ * other keys too). It takes a fixed amount of memory however many keys there
+ * are. Once it's counted ten times as many keys as the cache holds, all of the
+ * counters are halved, so that keys that were popular a long time ago
+ * gradually lose out to keys that are popular now.
+ *
+ * This isn't thread safe: {@link FrequencyCache} only uses it under its lock.
+ */
+final class FrequencySketch {
+
+    // Mixing constants, one per hash function (from the 64 bit golden ratio and friends)
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+    // The low three bits of each 4-bit counter, for halving them all at once
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    // 16 4-bit counters in each long
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maximumSize) {
+        // (Beyond a few million keys, sharing counters is the lesser evil)
+        int size = Math.min(Math.max(maximumSize, 16), 1 << 22);
+        // Sixteen counters per key, so that keys don't share counters too often
+        this.table = new long[Integer.highestOneBit(size - 1) << 1];
+        this.counterMask = table.length * 16 - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * Count one more sighting of the key
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(hash, i));
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Roughly how many times the key has been seen (at most 15)
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            frequency = Math.min(frequency, counterAt(indexOf(hash, i)));
+        }
+        return frequency;
+    }
+
+    private int indexOf(int hash, int i) {
+        long mixed = (hash + SEEDS[i]) * SEEDS[i];
+        return (int) (mixed >>> 32) & counterMask;
+    }
+
+    private int counterAt(int index) {
+        return (int) (table[index >>> 4] >>> shiftOf(index)) & 0xF;
+    }
+
+    private boolean incrementAt(int index) {
+        int shift = shiftOf(index);
+        long counter = (table[index >>> 4] >>> shift) & 0xF;
+        if (counter == 0xF) {
+            return false;
+        }
+        table[index >>> 4] += 1L << shift;
+        return true;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private static int shiftOf(int index) {
+        return (index & 15) << 2;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xED5AD4BB;
+        hash ^= hash >>> 11;
+        hash *= 0xAC4C1B51;
+        hash ^= hash >>> 15;
+        return hash;
+    }
+}
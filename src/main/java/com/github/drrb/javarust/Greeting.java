@@ -16,10 +16,12 @@
  */
 package com.github.drrb.javarust;
 
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 
 import java.io.Closeable;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.util.Arrays.asList;
 
@@ -34,27 +36,154 @@ public class Greeting extends Structure implements Closeable {
     }
 
     public static class ByValue extends Greeting implements Structure.ByValue {
+
+        /**
+         * Only the greeting's text needs to go back to Rust to be freed.
+         *
+         * A struct returned by value gets copied into memory that JNA owns, so
+         * the struct itself mustn't be freed by Rust.
+         */
+        @Override
+        Runnable freeNativeMemory() {
+            return new DropText(owner(), textPointer());
+        }
+
+        @Override
+        long nativeSize() {
+            return textSize();
+        }
     }
 
     public String text;
-    
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private NativeReclaimer.Registration registration;
+    // The Greetings that returned this, which frees it (see Owners)
+    private Greetings owner;
+
+    public Greeting() {
+    }
+
+    Greeting(Pointer pointer) {
+        super(pointer);
+    }
+
     public String getText() {
         return text;
     }
 
+    void setOwner(Greetings owner) {
+        this.owner = owner;
+    }
+
+    Greetings owner() {
+        return Owners.orDefault(owner);
+    }
+
+    /**
+     * Have the greeting freed automatically once it's garbage collected, in
+     * case it's never closed.
+     *
+     * @see NativeReclaimer
+     */
+    public Greeting manage() {
+        synchronized (closed) {
+            if (registration == null && !closed.get()) {
+                registration = NativeReclaimer.register(this, freeNativeMemory(), nativeSize());
+            }
+        }
+        return this;
+    }
+
     @Override
     protected List<String> getFieldOrder() {
         return asList("text");
     }
 
+    /**
+     * Send the struct back to Rust to be freed.
+     *
+     * Closing it again afterwards does nothing (freeing it twice would crash).
+     */
     @Override
     public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
         // Turn off "auto-synch". If it is on, JNA will automatically read all fields
         // from the struct's memory and update them on the Java object. This synchronization
         // occurs after every native method call. If it occurs after we drop the struct, JNA
         // will try to read from the freed memory and cause a segmentation fault.
         setAutoSynch(false);
-        // Send the struct back to rust for the memory to be freed
-        Greetings.INSTANCE.dropGreeting(this);
+        synchronized (closed) {
+            if (registration == null) {
+                freeNativeMemory().run();
+            } else {
+                registration.clean();
+            }
+        }
+    }
+
+    /**
+     * How to free this greeting's native memory.
+     *
+     * This mustn't keep a reference to the greeting, so that it can run after
+     * the greeting is garbage collected (see {@link #manage()}).
+     */
+    Runnable freeNativeMemory() {
+        return new DropGreeting(owner(), getPointer());
+    }
+
+    /**
+     * Roughly how much native memory this greeting uses.
+     */
+    long nativeSize() {
+        return size() + textSize();
+    }
+
+    long textSize() {
+        Pointer text = textPointer();
+        return text == null ? 0 : text.indexOf(0, (byte) 0) + 1;
+    }
+
+    Pointer textPointer() {
+        return getPointer().getPointer(fieldOffset("text"));
+    }
+
+    private static class DropGreeting implements Runnable {
+
+        private final Greetings library;
+        private final Pointer pointer;
+
+        DropGreeting(Greetings library, Pointer pointer) {
+            this.library = library;
+            this.pointer = pointer;
+        }
+
+        @Override
+        public void run() {
+            // Send the struct back to rust for the memory to be freed. We use a new
+            // Greeting pointing to the same memory, in case the original is gone. Its
+            // fields haven't been read, so auto-synch needs to be off for this one too.
+            Greeting greeting = new Greeting(pointer);
+            greeting.setAutoSynch(false);
+            library.dropGreeting(greeting);
+        }
+    }
+
+    private static class DropText implements Runnable {
+
+        private final Greetings library;
+        private final Pointer text;
+
+        DropText(Greetings library, Pointer text) {
+            this.library = library;
+            this.text = text;
+        }
+
+        @Override
+        public void run() {
+            library.dropString(new RustString(text));
+        }
     }
 }
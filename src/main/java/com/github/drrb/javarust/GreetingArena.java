@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.PointerType;
+
+import java.io.Closeable;
+
+/**
+ * A handle to a region of memory in Rust that greetings can be allocated in.
+ *
+ * Everything allocated in the arena (see the "InArena" methods on
+ * {@link Greetings}) is freed at once when the arena is closed, instead of
+ * being freed one by one. Nothing allocated in it can be used after that.
+ *
+ * An arena isn't thread safe. Use a separate one for each thread (e.g. one per
+ * request).
+ */
+public class GreetingArena extends PointerType implements Closeable {
+
+    // The Greetings that returned this, which frees it (see Owners)
+    private Greetings owner;
+
+    void setOwner(Greetings owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Send the arena back to Rust, to free it and everything in it.
+     *
+     * Closing it again afterwards (even from another thread) does nothing.
+     */
+    @Override
+    public synchronized void close() {
+        if (getPointer() != null) {
+            Owners.orDefault(owner).dropGreetingArena(this);
+            setPointer(null);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Rendering greetings straight into direct ByteBuffers.
+ *
+ * This wraps {@link Greetings#renderGreetingInto}, taking care of the buffers'
+ * positions and limits. The greeting never becomes a Java String, so it can be
+ * written to a channel (e.g. a socket) without any decoding or copying.
+ */
+public final class GreetingBuffers {
+
+    private GreetingBuffers() {
+    }
+
+    /**
+     * Render a greeting for the name between the name buffer's position and limit
+     * into the greeting buffer, starting at its position.
+     *
+     * If the greeting fits, the greeting buffer's position is moved past it.
+     * Otherwise, neither buffer is changed.
+     *
+     * @return the length of the greeting in bytes. If this is more than
+     * greeting.remaining() was, nothing was written.
+     * @throws IllegalArgumentException if the name is so long that the
+     * greeting's length wouldn't fit in an int
+     */
+    public static int renderGreeting(Greetings library, ByteBuffer name, ByteBuffer greeting) {
+        int capacity = greeting.remaining();
+        int length = library.renderGreetingInto(pointerTo(name), name.remaining(), pointerTo(greeting), capacity);
+        if (length < 0) {
+            throw new IllegalArgumentException("Name is too long to greet (" + name.remaining() + " bytes)");
+        }
+        if (length <= capacity) {
+            greeting.position(greeting.position() + length);
+        }
+        return length;
+    }
+
+    private static Pointer pointerTo(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer needs to be direct, so that Rust can access it");
+        }
+        return Native.getDirectBufferPointer(buffer).share(buffer.position());
+    }
+}
@@ -16,11 +16,17 @@
  */
 package com.github.drrb.javarust;
 
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 
 import java.io.Closeable;
+import java.util.AbstractList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A struct that contains an array of structs. This is the Java representation
@@ -34,6 +40,23 @@ public class GreetingSet extends Structure implements Closeable {
     public static class ByValue extends GreetingSet implements Structure.ByValue {
     }
 
+    /**
+     * A GreetingSet that was allocated in a {@link GreetingArena}.
+     *
+     * It gets freed along with the arena, so closing it does nothing.
+     */
+    public static class InArena extends GreetingSet {
+
+        @Override
+        public GreetingSet manage() {
+            return this;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
     /**
      * An array of Greetings returned from Rust.
      * 
@@ -57,6 +80,20 @@ public class GreetingSet extends Structure implements Closeable {
      */
     public int numberOfGreetings;
 
+    private static final int GREETING_SIZE = Native.getNativeSize(Greeting.class);
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private NativeReclaimer.Registration registration;
+    // The Greetings that returned this, which frees it (see Owners)
+    private Greetings owner;
+
+    public GreetingSet() {
+    }
+
+    GreetingSet(Pointer pointer) {
+        super(pointer);
+    }
+
     /**
      * Get the greetings this struct's pointer is pointing to.
      * 
@@ -64,10 +101,46 @@ public class GreetingSet extends Structure implements Closeable {
      * to work with in Java.
      */
     public List<Greeting> getGreetings() {
+        if (numberOfGreetings == 0) {
+            // Rust passes a null pointer for an empty array, so there's nothing to cast
+            return Collections.emptyList();
+        }
         Greeting[] array = (Greeting[]) greetings.toArray(numberOfGreetings);
         return Arrays.asList(array);
     }
 
+    /**
+     * Get a lazy view of the greetings this struct's pointer is pointing to.
+     *
+     * {@link #getGreetings()} creates (and reads) a Java object for every
+     * greeting in the array up front. This view doesn't read anything until
+     * it's asked to: each Greeting is created when it's accessed, from the
+     * array's address and the size of a Greeting, and its text is only read
+     * from native memory when {@link Greeting#getText()} is called.
+     *
+     * Because it reads from the native array as it goes, the view (and the
+     * greetings from it) can't be used after the set is closed. They hold on
+     * to the set, so a managed set isn't freed while any of them are in use.
+     */
+    public List<Greeting> getGreetingsView() {
+        return new GreetingsView(this, getPointer().getPointer(fieldOffset("greetings")), numberOfGreetings);
+    }
+
+    /**
+     * Have the set freed automatically once it's garbage collected, in case
+     * it's never closed.
+     *
+     * @see NativeReclaimer
+     */
+    public GreetingSet manage() {
+        synchronized (closed) {
+            if (registration == null && !closed.get()) {
+                registration = NativeReclaimer.register(this, new DropGreetingSet(Owners.orDefault(owner), getPointer()), nativeSize());
+            }
+        }
+        return this;
+    }
+
     /**
      * Specify the order of the struct's fields.
      * 
@@ -87,15 +160,128 @@ public class GreetingSet extends Structure implements Closeable {
      * Send the GreetingSet back to Rust to be dropped.
      *
      * We do this because JNA doesn't free the memory when the object is garbage collected.
+     * Closing it again afterwards does nothing (freeing it twice would crash).
      */
     @Override
     public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
         // Turn off "auto-synch". If it is on, JNA will automatically read all fields
         // from the struct's memory and update them on the Java object. This synchronization
         // occurs after every native method call. If it occurs after we drop the struct, JNA
         // will try to read from the freed memory and cause a segmentation fault.
         setAutoSynch(false);
-        // Send the struct back to rust for the memory to be freed
-        Greetings.INSTANCE.dropGreetingSet(this);
+        synchronized (closed) {
+            if (registration == null) {
+                // Send the struct back to rust for the memory to be freed
+                Owners.orDefault(owner).dropGreetingSet(this);
+            } else {
+                registration.clean();
+            }
+        }
+    }
+
+    void setOwner(Greetings owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Roughly how much native memory this set uses: the structs, and their text.
+     */
+    private long nativeSize() {
+        long nativeSize = size() + (long) numberOfGreetings * GREETING_SIZE;
+        Pointer array = getPointer().getPointer(fieldOffset("greetings"));
+        for (int i = 0; i < numberOfGreetings; i++) {
+            Pointer text = array.getPointer((long) i * GREETING_SIZE);
+            if (text != null) {
+                nativeSize += text.indexOf(0, (byte) 0) + 1;
+            }
+        }
+        return nativeSize;
+    }
+
+    private static class GreetingsView extends AbstractList<Greeting> implements RandomAccess {
+
+        // Holding on to the set means a managed set won't be freed while its view is in use
+        private final GreetingSet greetingSet;
+        private final Pointer array;
+        private final int size;
+
+        GreetingsView(GreetingSet greetingSet, Pointer array, int size) {
+            this.greetingSet = greetingSet;
+            this.array = array;
+            this.size = size;
+        }
+
+        @Override
+        public Greeting get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, size));
+            }
+            return new LazyGreeting(greetingSet, array.share((long) index * GREETING_SIZE));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * A greeting in a set's array, whose text is read the first time it's needed.
+     */
+    private static class LazyGreeting extends Greeting {
+
+        // The greeting points into the set's array, so (like the view) it holds
+        // on to the set, to stop a managed set being freed while it's in use
+        private final GreetingSet greetingSet;
+        private boolean textRead;
+
+        LazyGreeting(GreetingSet greetingSet, Pointer pointer) {
+            super(pointer);
+            this.greetingSet = greetingSet;
+        }
+
+        @Override
+        public String getText() {
+            if (!textRead) {
+                readField("text");
+                textRead = true;
+            }
+            return text;
+        }
+
+        /**
+         * The greeting belongs to the set, so it gets freed along with the set.
+         */
+        @Override
+        public Greeting manage() {
+            return this;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class DropGreetingSet implements Runnable {
+
+        private final Greetings library;
+        private final Pointer pointer;
+
+        DropGreetingSet(Greetings library, Pointer pointer) {
+            this.library = library;
+            this.pointer = pointer;
+        }
+
+        @Override
+        public void run() {
+            // Send the struct back to rust for the memory to be freed. We use a new
+            // GreetingSet pointing to the same memory, in case the original is gone.
+            GreetingSet greetingSet = new GreetingSet(pointer);
+            greetingSet.setAutoSynch(false);
+            library.dropGreetingSet(greetingSet);
+        }
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.PointerType;
+
+import java.io.Closeable;
+
+/**
+ * A handle to a stream of greetings in Rust.
+ *
+ * Rust renders the greetings a chunk at a time, and passes each chunk to a
+ * {@link Greetings.GreetingChunkCallback} (see
+ * {@link Greetings#pumpGreetingStream}). The chunk's memory is reused for the
+ * next one, so a chunk (and the greetings in it) can only be read while the
+ * callback is running.
+ */
+public class GreetingStream extends PointerType implements Closeable {
+
+    /**
+     * Returned by a callback to get the next chunk
+     */
+    public static final int CONTINUE = 0;
+    /**
+     * Returned by a callback to return from pumpGreetingStream. Pumping the
+     * stream again carries on from the next chunk.
+     */
+    public static final int PAUSE = 1;
+    /**
+     * Returned by a callback to stop the stream for good
+     */
+    public static final int CANCEL = 2;
+
+    /**
+     * Returned by pumpGreetingStream when all of the greetings have been sent
+     */
+    public static final int FINISHED = 0;
+    /**
+     * Returned by pumpGreetingStream when the callback paused the stream
+     */
+    public static final int PAUSED = 1;
+    /**
+     * Returned by pumpGreetingStream when the callback cancelled the stream
+     */
+    public static final int CANCELLED = 2;
+
+    // The Greetings that returned this, which frees it (see Owners)
+    private Greetings owner;
+
+    void setOwner(Greetings owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Send the stream back to Rust to be freed.
+     *
+     * Closing it again afterwards (even from another thread) does nothing.
+     */
+    @Override
+    public synchronized void close() {
+        if (getPointer() != null) {
+            Owners.orDefault(owner).dropGreetingStream(this);
+            setPointer(null);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.PointerType;
+
+/**
+ * A handle to a pool of threads in Rust that render greetings.
+ *
+ * See {@link AsyncGreetings}, which looks after one of these.
+ */
+public class GreetingWorkers extends PointerType {
+
+    /**
+     * Returned by submitGreeting when the name has been queued
+     */
+    public static final int SUBMITTED = 0;
+    /**
+     * Returned by submitGreeting when there's no room left in the queue
+     */
+    public static final int QUEUE_FULL = 1;
+    /**
+     * Returned by submitGreeting when the threads have stopped
+     */
+    public static final int SHUT_DOWN = 2;
+
+    /**
+     * The id the completion callback gets called with when the thread it's
+     * being called from is about to exit
+     */
+    public static final long WORKER_EXITING = -1;
+}
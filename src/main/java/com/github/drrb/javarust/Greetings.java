@@ -20,10 +20,11 @@ import com.sun.jna.Callback;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
 import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
 
 public interface Greetings extends Library {
-    String JNA_LIBRARY_NAME = "greetings";
-    NativeLibrary JNA_NATIVE_LIB = NativeLibrary.getInstance(JNA_LIBRARY_NAME);
+    String JNA_LIBRARY_NAME = RustLibrary.NAME;
+    NativeLibrary JNA_NATIVE_LIB = RustLibrary.get();
     
     /**
      * JNA will load this library (a Rust crate) from the classpath.
@@ -35,8 +36,12 @@ public interface Greetings extends Library {
      * src/main/rust/com/github/drrb/javarust/lib/greetings.rs . During the build,
      * Maven will run scripts/rust-compile.sh, which will compile the crate and
      * copy it into target/classes/&lt;platform-specific-name&gt;.
+     *
+     * When it's in a jar, it gets copied out into a cache the first time, and
+     * loaded from there afterwards (see {@link RustLibrary}). Nothing is loaded
+     * until something here is used.
      */
-    Greetings INSTANCE = (Greetings) Native.loadLibrary(JNA_LIBRARY_NAME, Greetings.class);
+    Greetings INSTANCE = (Greetings) Native.loadLibrary(RustLibrary.location(), Greetings.class);
 
     /**
      * Passing a parameter to a Rust function
@@ -48,11 +53,52 @@ public interface Greetings extends Library {
      */
     String renderGreeting(String name);
 
+    /**
+     * Getting a string back from Rust that we can free.
+     *
+     * This is the same as {@link #renderGreeting(String)}, but the native
+     * string isn't leaked. Close the result when finished with it.
+     */
+    RustString renderGreetingOwned(String name);
+
+    /**
+     * Getting Rust to write into memory we own, instead of returning a new string.
+     *
+     * The name is read from the first nameLength bytes at the name pointer, and
+     * the greeting is written to the greeting pointer. Both are UTF-8, without
+     * null characters at the end. Nothing is allocated in Rust, and the text is
+     * never copied into a Java String, so this works well with direct
+     * ByteBuffers (see {@link GreetingBuffers}) or JNA
+     * {@link com.sun.jna.Memory}. (Java still needs a Pointer object for each
+     * buffer, though.)
+     *
+     * @return the length of the greeting, in bytes. If this is more than the
+     * capacity, nothing was written, and we need to call again with more room.
+     * A null greeting pointer or a capacity of zero or less has no room, so
+     * it just returns the length. It's -1 if the greeting would be too long
+     * for its length to fit in an int.
+     */
+    int renderGreetingInto(Pointer name, int nameLength, Pointer greeting, int capacity);
+
     /**
      * Passing a struct into Rust
      */
     String greet(Person john);
 
+    /**
+     * The same as {@link #greet(Person)}, but with a reusable struct that JNA
+     * doesn't need to allocate anything for (see {@link PersonBuffer})
+     */
+    String greet(PersonBuffer john);
+
+    /**
+     * Passing a struct into Rust, and getting a string back that we can free.
+     *
+     * This is the same as {@link #greet(Person)}, but the native string isn't
+     * leaked. Close the result when finished with it.
+     */
+    RustString greetOwned(Person john);
+
     /**
      * Getting a pointer to a struct from Rust.
      * 
@@ -78,6 +124,21 @@ public interface Greetings extends Library {
      */
     GreetingSet renderGreetings();
 
+    /**
+     * Passing an array of strings into Rust, and getting a struct back that
+     * contains a greeting for each of them.
+     *
+     * This renders all of the greetings in one call, instead of calling
+     * {@link #renderGreeting(String)} for each name. The set needs to be closed
+     * like the one from {@link #renderGreetings()}.
+     *
+     * Rust only sees the count, not the length of the array, so the count
+     * mustn't be more than the number of names. {@link DirectGreetings} checks
+     * this (throwing an IllegalArgumentException). This interface can't, but
+     * JNA puts a null after the last name, and Rust stops there.
+     */
+    GreetingSet renderGreetingsFor(String[] names, int count);
+
     /**
      * Passing a callback that will be called from Rust with individual strings
      */
@@ -88,6 +149,66 @@ public interface Greetings extends Library {
      */
     void sendGreetings(GreetingSetCallback callback);
 
+    /**
+     * Registering a callback with Rust once, so that it can be called back
+     * later by handle (see {@link RegisteredGreetingCallback}).
+     *
+     * @return a handle for the callback
+     */
+    int registerGreetingCallback(GreetingCallback callback);
+
+    /**
+     * Forgetting a callback registered with {@link #registerGreetingCallback}
+     */
+    void unregisterGreetingCallback(int handle);
+
+    /**
+     * The same as {@link #callMeBack}, but with a registered callback
+     *
+     * @return 0, or -1 if the handle isn't registered
+     */
+    int callMeBackWith(int handle);
+
+    /**
+     * Registering a callback with Rust once, so that it can be called back
+     * later by handle (see {@link RegisteredGreetingSetCallback}).
+     *
+     * @return a handle for the callback
+     */
+    int registerGreetingSetCallback(GreetingSetCallback callback);
+
+    /**
+     * Forgetting a callback registered with {@link #registerGreetingSetCallback}
+     */
+    void unregisterGreetingSetCallback(int handle);
+
+    /**
+     * The same as {@link #sendGreetings}, but with a registered callback
+     *
+     * @return 0, or -1 if the handle isn't registered
+     */
+    int sendGreetingsWith(int handle);
+
+    /**
+     * Starting a stream of greetings for some names, that Rust will send back
+     * in chunks of (at most) chunkSize greetings.
+     *
+     * Close the stream when finished with it.
+     */
+    GreetingStream openGreetingStream(String[] names, int count, int chunkSize);
+
+    /**
+     * Passing a callback that will be called from Rust with each chunk of a
+     * stream of greetings.
+     *
+     * This returns when the stream is finished, or when the callback pauses or
+     * cancels it.
+     *
+     * @return {@link GreetingStream#FINISHED}, {@link GreetingStream#PAUSED}
+     * or {@link GreetingStream#CANCELLED}
+     */
+    int pumpGreetingStream(GreetingStream stream, GreetingChunkCallback callback);
+
     /**
      * A callback function to pass to Rust
      *
@@ -108,6 +229,157 @@ public interface Greetings extends Library {
         void apply(GreetingSet.ByReference greetingSet);
     }
 
+    /**
+     * The same as {@link #renderGreetingsFor(String[], int)}, but each greeting
+     * comes with its length, so it can be read without scanning for the end.
+     */
+    SizedGreetingSet renderSizedGreetingsFor(String[] names, int count);
+
+    /**
+     * Greet every line of names in the input, writing the greetings (one per
+     * line) into the output until it's full.
+     *
+     * Only whole lines are used, unless this is the end of the input, so the
+     * input can be a window of a bigger file (see {@link BatchGreeter}).
+     */
+    LineProgress.ByValue renderGreetingLines(Pointer input, int inputLength, boolean endOfInput, Pointer output, int capacity);
+
+    /**
+     * Greet a column of people in one call, like {@link #greet(Person)} does
+     * for one.
+     *
+     * Each column of names is a region of UTF-8 bytes, with count + 1 offsets
+     * saying where each name starts and ends. The greetings come back in the
+     * same layout, in one buffer. Use {@link PackedPeople} to pack the names.
+     *
+     * Each greeting is 9 bytes longer than the names in it, so the greetings
+     * can be too big for int offsets (more than 2 GiB) even when the names
+     * aren't. Rust returns null in that case. Greet the people in smaller
+     * batches instead.
+     */
+    PackedGreetings greetPacked(Pointer firstNames, Pointer firstNameOffsets, Pointer lastNames, Pointer lastNameOffsets, int count);
+
+    /**
+     * A snapshot of what Rust has allocated and freed (see {@link NativeStatsMonitor})
+     */
+    NativeStats.ByValue getNativeStats();
+
+    /**
+     * Copy the number of times each Rust function has been called into the
+     * array (as much as fits).
+     *
+     * @return how many functions there are. Pass a null array (and 0) to find
+     * out how big it needs to be.
+     */
+    int getNativeCallCounts(long[] counts, int capacity);
+
+    /**
+     * The name of the Rust function whose calls are at this index in
+     * {@link #getNativeCallCounts}
+     */
+    String getNativeExportName(int index);
+
+    /**
+     * Keep Rust's log messages at or below this level (one of the levels in
+     * {@link NativeLog}). Logging is off until this is called.
+     */
+    void setNativeLogLevel(int level);
+
+    /**
+     * Move as many log messages from Rust as fit into the buffer, oldest
+     * first. Each is written as its level and length (native ints), then its
+     * UTF-8 bytes. Use {@link NativeLog} to read them.
+     *
+     * @return how many bytes were written
+     */
+    int drainNativeLog(Pointer buffer, int capacity);
+
+    /**
+     * How many log messages Rust has dropped because they weren't drained
+     * quickly enough
+     */
+    long getNativeLogDropped();
+
+    /**
+     * Creating a region of memory in Rust to allocate greetings in.
+     *
+     * Pass it to the "InArena" methods, and then close it to free everything
+     * they allocated at once.
+     */
+    GreetingArena createGreetingArena();
+
+    /**
+     * The same as {@link #renderGreeting(String)}, but allocating the native
+     * string in an arena.
+     */
+    String renderGreetingInArena(GreetingArena arena, String name);
+
+    /**
+     * The same as {@link #greet(Person)}, but allocating the native string in
+     * an arena.
+     */
+    String greetInArena(GreetingArena arena, Person john);
+
+    /**
+     * The same as {@link #renderGreetings()}, but allocating the set (and its
+     * greetings) in an arena. The set is freed with the arena.
+     */
+    GreetingSet.InArena renderGreetingsInArena(GreetingArena arena);
+
+    /**
+     * A callback function to pass to Rust
+     *
+     * The chunk is only valid until the callback returns.
+     *
+     * @see #pumpGreetingStream
+     */
+    interface GreetingChunkCallback extends Callback {
+
+        /**
+         * @return {@link GreetingStream#CONTINUE}, {@link GreetingStream#PAUSE}
+         * or {@link GreetingStream#CANCEL}
+         */
+        int apply(GreetingSet.ByReference chunk);
+    }
+
+    /**
+     * Starting a pool of Rust threads to render greetings on.
+     *
+     * Names submitted with {@link #submitGreeting} wait in a queue of (at
+     * most) queueCapacity names, and the callback is called (from one of the
+     * threads) with each greeting once it's rendered. See
+     * {@link AsyncGreetings}, which wraps this up in CompletableFutures.
+     */
+    GreetingWorkers createGreetingWorkers(int numberOfThreads, int queueCapacity, GreetingCompletionCallback callback);
+
+    /**
+     * Handing a name to a pool of Rust threads to render a greeting for.
+     *
+     * This doesn't wait for the greeting, or for room in the queue.
+     *
+     * @return {@link GreetingWorkers#SUBMITTED}, {@link GreetingWorkers#QUEUE_FULL}
+     * or {@link GreetingWorkers#SHUT_DOWN}
+     */
+    int submitGreeting(GreetingWorkers workers, long id, String name);
+
+    /**
+     * A callback function to pass to Rust
+     *
+     * This is called from Rust's threads, not from the thread that submitted
+     * the name.
+     *
+     * @see #createGreetingWorkers
+     */
+    interface GreetingCompletionCallback extends Callback {
+
+        /**
+         * @param id the id the name was submitted with, or
+         * {@link GreetingWorkers#WORKER_EXITING} (with a null greeting) when
+         * the calling thread is about to exit
+         */
+        void apply(long id, String greeting);
+    }
+
     /**
      * Free the memory used by a Greeting
      */
@@ -117,4 +389,34 @@ public interface Greetings extends Library {
      * Free the memory used by a GreetingSet
      */
     void dropGreetingSet(GreetingSet greetingSet);
+
+    /**
+     * Free the memory used by a SizedGreetingSet
+     */
+    void dropSizedGreetingSet(SizedGreetingSet greetingSet);
+
+    /**
+     * Free the memory used by PackedGreetings
+     */
+    void dropPackedGreetings(PackedGreetings greetings);
+
+    /**
+     * Free the memory used by a string returned from Rust
+     */
+    void dropString(RustString string);
+
+    /**
+     * Free a stream of greetings
+     */
+    void dropGreetingStream(GreetingStream stream);
+
+    /**
+     * Free an arena, and everything allocated in it
+     */
+    void dropGreetingArena(GreetingArena arena);
+
+    /**
+     * Stop a pool of threads, once they've rendered everything in their queue
+     */
+    void dropGreetingWorkers(GreetingWorkers workers);
 }
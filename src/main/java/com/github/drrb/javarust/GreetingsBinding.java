@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.util.Locale;
+
+/**
+ * The different ways of binding the Rust library to Java.
+ *
+ * They all implement {@link Greetings}, so callers can pick one at runtime (e.g.
+ * by setting the "greetings.binding" system property to "direct") without
+ * changing any other code.
+ */
+public enum GreetingsBinding {
+    /**
+     * JNA's interface mapping: a dynamic proxy around the library interface
+     */
+    INTERFACE {
+        @Override
+        public Greetings library() {
+            return Greetings.INSTANCE;
+        }
+    },
+    /**
+     * JNA's direct mapping: static native methods bound straight to the Rust functions
+     */
+    DIRECT {
+        @Override
+        public Greetings library() {
+            return DirectGreetings.INSTANCE;
+        }
+    },
+    /**
+     * Java's Foreign Function &amp; Memory API, instead of JNA.
+     *
+     * The implementation needs Java 22, so it's only built by the "ffm"
+     * profile, and we load it by name so that nothing else depends on it.
+     */
+    FFM {
+        @Override
+        public Greetings library() {
+            try {
+                return (Greetings) Class.forName(FFM_IMPLEMENTATION).getField("INSTANCE").get(null);
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                throw new IllegalStateException("The FFM binding isn't available. It needs to be built with the 'ffm' profile, and run on Java 22 or later.", ex);
+            }
+        }
+
+        @Override
+        public boolean isAvailable() {
+            try {
+                Class.forName(FFM_IMPLEMENTATION, false, GreetingsBinding.class.getClassLoader());
+                return true;
+            } catch (ClassNotFoundException | LinkageError ex) {
+                return false;
+            }
+        }
+    };
+
+    public static final String SYSTEM_PROPERTY = "greetings.binding";
+
+    private static final String FFM_IMPLEMENTATION = "com.github.drrb.javarust.FfmGreetings";
+
+    public abstract Greetings library();
+
+    /**
+     * Whether this binding was built, and can run on this JVM
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * The library, bound the way the "greetings.binding" system property says
+     * (defaulting to {@link #INTERFACE}).
+     */
+    public static Greetings configuredLibrary() {
+        return configured().library();
+    }
+
+    public static GreetingsBinding configured() {
+        String binding = System.getProperty(SYSTEM_PROPERTY, INTERFACE.name());
+        try {
+            return valueOf(binding.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(String.format("Unknown value for %s: '%s'", SYSTEM_PROPERTY, binding), ex);
+        }
+    }
+}
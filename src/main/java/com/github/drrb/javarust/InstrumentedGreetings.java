@@ -0,0 +1,916 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Pointer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Greetings} that times every call, for watching a library in
+ * production.
+ *
+ * Each method gets its own latency histogram (see
+ * {@link ConcurrentLatencyHistogram}) and error count (calls that threw).
+ * Recording a call doesn't lock or allocate anything, so this can wrap the
+ * library everywhere:
+ * <pre>
+ *   InstrumentedGreetings library = new InstrumentedGreetings(Greetings.INSTANCE);
+ *   library.registerMBean("default");
+ *   library.startReporting(1, TimeUnit.MINUTES);
+ * </pre>
+ *
+ * A call's time includes converting its arguments and results (e.g. copying
+ * strings) as well as the time in Rust, and the time in any callbacks Rust
+ * calls. To see how much of it is spent in callbacks, wrap them with
+ * {@link #timedGreetingCallback} (or one of the other "timed...Callback"
+ * methods), and they get histograms of their own. Comparing the timings of
+ * the different bindings (see {@link GreetingsBinding}), or of calls that
+ * convert less (e.g. {@link #renderGreetingInto}), shows how much is spent
+ * converting.
+ */
+public class InstrumentedGreetings extends ForwardingGreetings implements InstrumentedGreetingsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(InstrumentedGreetings.class.getName());
+
+    private final Map<String, Timer> timers = new LinkedHashMap<>();
+
+    private final Timer printGreeting = timer("printGreeting");
+    private final Timer renderGreeting = timer("renderGreeting");
+    private final Timer renderGreetingOwned = timer("renderGreetingOwned");
+    private final Timer renderGreetingInto = timer("renderGreetingInto");
+    private final Timer greet = timer("greet(Person)");
+    private final Timer greetBuffer = timer("greet(PersonBuffer)");
+    private final Timer greetOwned = timer("greetOwned");
+    private final Timer getGreetingByReference = timer("getGreetingByReference");
+    private final Timer getGreetingByValue = timer("getGreetingByValue");
+    private final Timer renderGreetings = timer("renderGreetings");
+    private final Timer renderGreetingsFor = timer("renderGreetingsFor");
+    private final Timer callMeBack = timer("callMeBack");
+    private final Timer sendGreetings = timer("sendGreetings");
+    private final Timer registerGreetingCallback = timer("registerGreetingCallback");
+    private final Timer unregisterGreetingCallback = timer("unregisterGreetingCallback");
+    private final Timer callMeBackWith = timer("callMeBackWith");
+    private final Timer registerGreetingSetCallback = timer("registerGreetingSetCallback");
+    private final Timer unregisterGreetingSetCallback = timer("unregisterGreetingSetCallback");
+    private final Timer sendGreetingsWith = timer("sendGreetingsWith");
+    private final Timer openGreetingStream = timer("openGreetingStream");
+    private final Timer pumpGreetingStream = timer("pumpGreetingStream");
+    private final Timer renderSizedGreetingsFor = timer("renderSizedGreetingsFor");
+    private final Timer renderGreetingLines = timer("renderGreetingLines");
+    private final Timer greetPacked = timer("greetPacked");
+    private final Timer getNativeStats = timer("getNativeStats");
+    private final Timer getNativeCallCounts = timer("getNativeCallCounts");
+    private final Timer getNativeExportName = timer("getNativeExportName");
+    private final Timer setNativeLogLevel = timer("setNativeLogLevel");
+    private final Timer drainNativeLog = timer("drainNativeLog");
+    private final Timer getNativeLogDropped = timer("getNativeLogDropped");
+    private final Timer createGreetingArena = timer("createGreetingArena");
+    private final Timer renderGreetingInArena = timer("renderGreetingInArena");
+    private final Timer greetInArena = timer("greetInArena");
+    private final Timer renderGreetingsInArena = timer("renderGreetingsInArena");
+    private final Timer createGreetingWorkers = timer("createGreetingWorkers");
+    private final Timer submitGreeting = timer("submitGreeting");
+    private final Timer dropGreeting = timer("dropGreeting");
+    private final Timer dropGreetingSet = timer("dropGreetingSet");
+    private final Timer dropSizedGreetingSet = timer("dropSizedGreetingSet");
+    private final Timer dropPackedGreetings = timer("dropPackedGreetings");
+    private final Timer dropString = timer("dropString");
+    private final Timer dropGreetingStream = timer("dropGreetingStream");
+    private final Timer dropGreetingArena = timer("dropGreetingArena");
+    private final Timer dropGreetingWorkers = timer("dropGreetingWorkers");
+
+    private final Timer greetingCallback = timer("callback:GreetingCallback");
+    private final Timer greetingSetCallback = timer("callback:GreetingSetCallback");
+    private final Timer greetingChunkCallback = timer("callback:GreetingChunkCallback");
+    private final Timer greetingCompletionCallback = timer("callback:GreetingCompletionCallback");
+
+    private final Interval jmxInterval = new Interval();
+
+    public InstrumentedGreetings(Greetings delegate) {
+        super(delegate);
+    }
+
+    private Timer timer(String name) {
+        Timer timer = new Timer();
+        timers.put(name, timer);
+        return timer;
+    }
+
+    /**
+     * Every call so far, by method (and callback).
+     */
+    @Override
+    public Map<String, MethodLatency> getLatencies() {
+        Map<String, MethodLatency> latencies = new LinkedHashMap<>();
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            latencies.put(timer.getKey(), MethodLatency.of(timer.getValue().latencies.snapshot(), timer.getValue().errors.sum()));
+        }
+        return Collections.unmodifiableMap(latencies);
+    }
+
+    /**
+     * The calls since this was last read over JMX (or since the start).
+     */
+    @Override
+    public Map<String, MethodLatency> getIntervalLatencies() {
+        return jmxInterval.next();
+    }
+
+    @Override
+    public long getTotalCalls() {
+        long calls = 0;
+        for (Timer timer : timers.values()) {
+            calls += timer.latencies.snapshot().count();
+        }
+        return calls;
+    }
+
+    @Override
+    public long getTotalErrors() {
+        long errors = 0;
+        for (Timer timer : timers.values()) {
+            errors += timer.errors.sum();
+        }
+        return errors;
+    }
+
+    /**
+     * Publish the timings over JMX, as
+     * "com.github.drrb.javarust:type=InstrumentedGreetings,name=&lt;name&gt;".
+     */
+    public ObjectName registerMBean(String name) {
+        try {
+            ObjectName objectName = new ObjectName("com.github.drrb.javarust:type=InstrumentedGreetings,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Couldn't register greetings timings with JMX", e);
+        }
+    }
+
+    /**
+     * Log the timings of the calls made in each period (at INFO level), on a
+     * background thread, until the returned Closeable is closed.
+     *
+     * Methods that weren't called in the period are left out.
+     */
+    public Closeable startReporting(long period, TimeUnit unit) {
+        final Interval interval = new Interval();
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "greetings-latency-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (Map.Entry<String, MethodLatency> latency : interval.next().entrySet()) {
+                    if (latency.getValue().getCalls() > 0) {
+                        LOGGER.log(Level.INFO, "{0}: {1}", new Object[] { latency.getKey(), latency.getValue() });
+                    }
+                }
+            }
+        }, period, period, unit);
+        return new Closeable() {
+            @Override
+            public void close() {
+                reporter.shutdownNow();
+            }
+        };
+    }
+
+    /**
+     * Time a callback's calls (under "callback:GreetingCallback").
+     *
+     * Wrap the callback once, and pass the wrapped one to Rust each time:
+     * JNA has to set up each new callback object it sees.
+     */
+    public GreetingCallback timedGreetingCallback(final GreetingCallback callback) {
+        return new GreetingCallback() {
+            @Override
+            public void apply(String greeting) {
+                long start = System.nanoTime();
+                try {
+                    callback.apply(greeting);
+                } catch (RuntimeException | Error e) {
+                    greetingCallback.failed();
+                    throw e;
+                } finally {
+                    greetingCallback.record(start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Time a callback's calls (under "callback:GreetingSetCallback").
+     *
+     * @see #timedGreetingCallback(GreetingCallback)
+     */
+    public GreetingSetCallback timedGreetingSetCallback(final GreetingSetCallback callback) {
+        return new GreetingSetCallback() {
+            @Override
+            public void apply(GreetingSet.ByReference greetingSet) {
+                long start = System.nanoTime();
+                try {
+                    callback.apply(greetingSet);
+                } catch (RuntimeException | Error e) {
+                    greetingSetCallback.failed();
+                    throw e;
+                } finally {
+                    greetingSetCallback.record(start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Time a callback's calls (under "callback:GreetingChunkCallback").
+     *
+     * @see #timedGreetingCallback(GreetingCallback)
+     */
+    public GreetingChunkCallback timedChunkCallback(final GreetingChunkCallback callback) {
+        return new GreetingChunkCallback() {
+            @Override
+            public int apply(GreetingSet.ByReference chunk) {
+                long start = System.nanoTime();
+                try {
+                    return callback.apply(chunk);
+                } catch (RuntimeException | Error e) {
+                    greetingChunkCallback.failed();
+                    throw e;
+                } finally {
+                    greetingChunkCallback.record(start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Time a callback's calls (under "callback:GreetingCompletionCallback").
+     *
+     * @see #timedGreetingCallback(GreetingCallback)
+     */
+    public GreetingCompletionCallback timedCompletionCallback(final GreetingCompletionCallback callback) {
+        return new GreetingCompletionCallback() {
+            @Override
+            public void apply(long id, String greeting) {
+                long start = System.nanoTime();
+                try {
+                    callback.apply(id, greeting);
+                } catch (RuntimeException | Error e) {
+                    greetingCompletionCallback.failed();
+                    throw e;
+                } finally {
+                    greetingCompletionCallback.record(start);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void printGreeting(String name) {
+        long start = System.nanoTime();
+        try {
+            super.printGreeting(name);
+        } catch (RuntimeException | Error e) {
+            printGreeting.failed();
+            throw e;
+        } finally {
+            printGreeting.record(start);
+        }
+    }
+
+    @Override
+    public String renderGreeting(String name) {
+        long start = System.nanoTime();
+        try {
+            return super.renderGreeting(name);
+        } catch (RuntimeException | Error e) {
+            renderGreeting.failed();
+            throw e;
+        } finally {
+            renderGreeting.record(start);
+        }
+    }
+
+    @Override
+    public RustString renderGreetingOwned(String name) {
+        long start = System.nanoTime();
+        try {
+            return super.renderGreetingOwned(name);
+        } catch (RuntimeException | Error e) {
+            renderGreetingOwned.failed();
+            throw e;
+        } finally {
+            renderGreetingOwned.record(start);
+        }
+    }
+
+    @Override
+    public int renderGreetingInto(Pointer name, int nameLength, Pointer greeting, int capacity) {
+        long start = System.nanoTime();
+        try {
+            return super.renderGreetingInto(name, nameLength, greeting, capacity);
+        } catch (RuntimeException | Error e) {
+            renderGreetingInto.failed();
+            throw e;
+        } finally {
+            renderGreetingInto.record(start);
+        }
+    }
+
+    @Override
+    public String greet(Person john) {
+        long start = System.nanoTime();
+        try {
+            return super.greet(john);
+        } catch (RuntimeException | Error e) {
+            greet.failed();
+            throw e;
+        } finally {
+            greet.record(start);
+        }
+    }
+
+    @Override
+    public String greet(PersonBuffer john) {
+        long start = System.nanoTime();
+        try {
+            return super.greet(john);
+        } catch (RuntimeException | Error e) {
+            greetBuffer.failed();
+            throw e;
+        } finally {
+            greetBuffer.record(start);
+        }
+    }
+
+    @Override
+    public RustString greetOwned(Person john) {
+        long start = System.nanoTime();
+        try {
+            return super.greetOwned(john);
+        } catch (RuntimeException | Error e) {
+            greetOwned.failed();
+            throw e;
+        } finally {
+            greetOwned.record(start);
+        }
+    }
+
+    @Override
+    public Greeting getGreetingByReference() {
+        long start = System.nanoTime();
+        try {
+            return super.getGreetingByReference();
+        } catch (RuntimeException | Error e) {
+            getGreetingByReference.failed();
+            throw e;
+        } finally {
+            getGreetingByReference.record(start);
+        }
+    }
+
+    @Override
+    public Greeting.ByValue getGreetingByValue() {
+        long start = System.nanoTime();
+        try {
+            return super.getGreetingByValue();
+        } catch (RuntimeException | Error e) {
+            getGreetingByValue.failed();
+            throw e;
+        } finally {
+            getGreetingByValue.record(start);
+        }
+    }
+
+    @Override
+    public GreetingSet renderGreetings() {
+        long start = System.nanoTime();
+        try {
+            return super.renderGreetings();
+        } catch (RuntimeException | Error e) {
+            renderGreetings.failed();
+            throw e;
+        } finally {
+            renderGreetings.record(start);
+        }
+    }
+
+    @Override
+    public GreetingSet renderGreetingsFor(String[] names, int count) {
+        long start = System.nanoTime();
+        try {
+            return super.renderGreetingsFor(names, count);
+        } catch (RuntimeException | Error e) {
+            renderGreetingsFor.failed();
+            throw e;
+        } finally {
+            renderGreetingsFor.record(start);
+        }
+    }
+
+    @Override
+    public void callMeBack(GreetingCallback callback) {
+        long start = System.nanoTime();
+        try {
+            super.callMeBack(callback);
+        } catch (RuntimeException | Error e) {
+            callMeBack.failed();
+            throw e;
+        } finally {
+            callMeBack.record(start);
+        }
+    }
+
+    @Override
+    public void sendGreetings(GreetingSetCallback callback) {
+        long start = System.nanoTime();
+        try {
+            super.sendGreetings(callback);
+        } catch (RuntimeException | Error e) {
+            sendGreetings.failed();
+            throw e;
+        } finally {
+            sendGreetings.record(start);
+        }
+    }
+
+    @Override
+    public int registerGreetingCallback(GreetingCallback callback) {
+        long start = System.nanoTime();
+        try {
+            return super.registerGreetingCallback(callback);
+        } catch (RuntimeException | Error e) {
+            registerGreetingCallback.failed();
+            throw e;
+        } finally {
+            registerGreetingCallback.record(start);
+        }
+    }
+
+    @Override
+    public void unregisterGreetingCallback(int handle) {
+        long start = System.nanoTime();
+        try {
+            super.unregisterGreetingCallback(handle);
+        } catch (RuntimeException | Error e) {
+            unregisterGreetingCallback.failed();
+            throw e;
+        } finally {
+            unregisterGreetingCallback.record(start);
+        }
+    }
+
+    @Override
+    public int callMeBackWith(int handle) {
+        long start = System.nanoTime();
+        try {
+            return super.callMeBackWith(handle);
+        } catch (RuntimeException | Error e) {
+            callMeBackWith.failed();
+            throw e;
+        } finally {
+            callMeBackWith.record(start);
+        }
+    }
+
+    @Override
+    public int registerGreetingSetCallback(GreetingSetCallback callback) {
+        long start = System.nanoTime();
+        try {
+            return super.registerGreetingSetCallback(callback);
+        } catch (RuntimeException | Error e) {
+            registerGreetingSetCallback.failed();
+            throw e;
+        } finally {
+            registerGreetingSetCallback.record(start);
+        }
+    }
+
+    @Override
+    public void unregisterGreetingSetCallback(int handle) {
+        long start = System.nanoTime();
+        try {
+            super.unregisterGreetingSetCallback(handle);
+        } catch (RuntimeException | Error e) {
+            unregisterGreetingSetCallback.failed();
+            throw e;
+        } finally {
+            unregisterGreetingSetCallback.record(start);
+        }
+    }
+
+    @Override
+    public int sendGreetingsWith(int handle) {
+        long start = System.nanoTime();
+        try {
+            return super.sendGreetingsWith(handle);
+        } catch (RuntimeException | Error e) {
+            sendGreetingsWith.failed();
+            throw e;
+        } finally {
+            sendGreetingsWith.record(start);
+        }
+    }
+
+    @Override
+    public GreetingStream openGreetingStream(String[] names, int count, int chunkSize) {
+        long start = System.nanoTime();
+        try {
+            return super.openGreetingStream(names, count, chunkSize);
+        } catch (RuntimeException | Error e) {
+            openGreetingStream.failed();
+            throw e;
+        } finally {
+            openGreetingStream.record(start);
+        }
+    }
+
+    @Override
+    public int pumpGreetingStream(GreetingStream stream, GreetingChunkCallback callback) {
+        long start = System.nanoTime();
+        try {
+            return super.pumpGreetingStream(stream, callback);
+        } catch (RuntimeException | Error e) {
+            pumpGreetingStream.failed();
+            throw e;
+        } finally {
+            pumpGreetingStream.record(start);
+        }
+    }
+
+    @Override
+    public SizedGreetingSet renderSizedGreetingsFor(String[] names, int count) {
+        long start = System.nanoTime();
+        try {
+            return super.renderSizedGreetingsFor(names, count);
+        } catch (RuntimeException | Error e) {
+            renderSizedGreetingsFor.failed();
+            throw e;
+        } finally {
+            renderSizedGreetingsFor.record(start);
+        }
+    }
+
+    @Override
+    public LineProgress.ByValue renderGreetingLines(Pointer input, int inputLength, boolean endOfInput, Pointer output, int capacity) {
+        long start = System.nanoTime();
+        try {
+            return super.renderGreetingLines(input, inputLength, endOfInput, output, capacity);
+        } catch (RuntimeException | Error e) {
+            renderGreetingLines.failed();
+            throw e;
+        } finally {
+            renderGreetingLines.record(start);
+        }
+    }
+
+    @Override
+    public PackedGreetings greetPacked(Pointer firstNames, Pointer firstNameOffsets, Pointer lastNames, Pointer lastNameOffsets, int count) {
+        long start = System.nanoTime();
+        try {
+            return super.greetPacked(firstNames, firstNameOffsets, lastNames, lastNameOffsets, count);
+        } catch (RuntimeException | Error e) {
+            greetPacked.failed();
+            throw e;
+        } finally {
+            greetPacked.record(start);
+        }
+    }
+
+    @Override
+    public NativeStats.ByValue getNativeStats() {
+        long start = System.nanoTime();
+        try {
+            return super.getNativeStats();
+        } catch (RuntimeException | Error e) {
+            getNativeStats.failed();
+            throw e;
+        } finally {
+            getNativeStats.record(start);
+        }
+    }
+
+    @Override
+    public int getNativeCallCounts(long[] counts, int capacity) {
+        long start = System.nanoTime();
+        try {
+            return super.getNativeCallCounts(counts, capacity);
+        } catch (RuntimeException | Error e) {
+            getNativeCallCounts.failed();
+            throw e;
+        } finally {
+            getNativeCallCounts.record(start);
+        }
+    }
+
+    @Override
+    public String getNativeExportName(int index) {
+        long start = System.nanoTime();
+        try {
+            return super.getNativeExportName(index);
+        } catch (RuntimeException | Error e) {
+            getNativeExportName.failed();
+            throw e;
+        } finally {
+            getNativeExportName.record(start);
+        }
+    }
+
+    @Override
+    public void setNativeLogLevel(int level) {
+        long start = System.nanoTime();
+        try {
+            super.setNativeLogLevel(level);
+        } catch (RuntimeException | Error e) {
+            setNativeLogLevel.failed();
+            throw e;
+        } finally {
+            setNativeLogLevel.record(start);
+        }
+    }
+
+    @Override
+    public int drainNativeLog(Pointer buffer, int capacity) {
+        long start = System.nanoTime();
+        try {
+            return super.drainNativeLog(buffer, capacity);
+        } catch (RuntimeException | Error e) {
+            drainNativeLog.failed();
+            throw e;
+        } finally {
+            drainNativeLog.record(start);
+        }
+    }
+
+    @Override
+    public long getNativeLogDropped() {
+        long start = System.nanoTime();
+        try {
+            return super.getNativeLogDropped();
+        } catch (RuntimeException | Error e) {
+            getNativeLogDropped.failed();
+            throw e;
+        } finally {
+            getNativeLogDropped.record(start);
+        }
+    }
+
+    @Override
+    public GreetingArena createGreetingArena() {
+        long start = System.nanoTime();
+        try {
+            return super.createGreetingArena();
+        } catch (RuntimeException | Error e) {
+            createGreetingArena.failed();
+            throw e;
+        } finally {
+            createGreetingArena.record(start);
+        }
+    }
+
+    @Override
+    public String renderGreetingInArena(GreetingArena arena, String name) {
+        long start = System.nanoTime();
+        try {
+            return super.renderGreetingInArena(arena, name);
+        } catch (RuntimeException | Error e) {
+            renderGreetingInArena.failed();
+            throw e;
+        } finally {
+            renderGreetingInArena.record(start);
+        }
+    }
+
+    @Override
+    public String greetInArena(GreetingArena arena, Person john) {
+        long start = System.nanoTime();
+        try {
+            return super.greetInArena(arena, john);
+        } catch (RuntimeException | Error e) {
+            greetInArena.failed();
+            throw e;
+        } finally {
+            greetInArena.record(start);
+        }
+    }
+
+    @Override
+    public GreetingSet.InArena renderGreetingsInArena(GreetingArena arena) {
+        long start = System.nanoTime();
+        try {
+            return super.renderGreetingsInArena(arena);
+        } catch (RuntimeException | Error e) {
+            renderGreetingsInArena.failed();
+            throw e;
+        } finally {
+            renderGreetingsInArena.record(start);
+        }
+    }
+
+    @Override
+    public GreetingWorkers createGreetingWorkers(int numberOfThreads, int queueCapacity, GreetingCompletionCallback callback) {
+        long start = System.nanoTime();
+        try {
+            return super.createGreetingWorkers(numberOfThreads, queueCapacity, callback);
+        } catch (RuntimeException | Error e) {
+            createGreetingWorkers.failed();
+            throw e;
+        } finally {
+            createGreetingWorkers.record(start);
+        }
+    }
+
+    @Override
+    public int submitGreeting(GreetingWorkers workers, long id, String name) {
+        long start = System.nanoTime();
+        try {
+            return super.submitGreeting(workers, id, name);
+        } catch (RuntimeException | Error e) {
+            submitGreeting.failed();
+            throw e;
+        } finally {
+            submitGreeting.record(start);
+        }
+    }
+
+    @Override
+    public void dropGreeting(Greeting greeting) {
+        long start = System.nanoTime();
+        try {
+            super.dropGreeting(greeting);
+        } catch (RuntimeException | Error e) {
+            dropGreeting.failed();
+            throw e;
+        } finally {
+            dropGreeting.record(start);
+        }
+    }
+
+    @Override
+    public void dropGreetingSet(GreetingSet greetingSet) {
+        long start = System.nanoTime();
+        try {
+            super.dropGreetingSet(greetingSet);
+        } catch (RuntimeException | Error e) {
+            dropGreetingSet.failed();
+            throw e;
+        } finally {
+            dropGreetingSet.record(start);
+        }
+    }
+
+    @Override
+    public void dropSizedGreetingSet(SizedGreetingSet greetingSet) {
+        long start = System.nanoTime();
+        try {
+            super.dropSizedGreetingSet(greetingSet);
+        } catch (RuntimeException | Error e) {
+            dropSizedGreetingSet.failed();
+            throw e;
+        } finally {
+            dropSizedGreetingSet.record(start);
+        }
+    }
+
+    @Override
+    public void dropPackedGreetings(PackedGreetings greetings) {
+        long start = System.nanoTime();
+        try {
+            super.dropPackedGreetings(greetings);
+        } catch (RuntimeException | Error e) {
+            dropPackedGreetings.failed();
+            throw e;
+        } finally {
+            dropPackedGreetings.record(start);
+        }
+    }
+
+    @Override
+    public void dropString(RustString string) {
+        long start = System.nanoTime();
+        try {
+            super.dropString(string);
+        } catch (RuntimeException | Error e) {
+            dropString.failed();
+            throw e;
+        } finally {
+            dropString.record(start);
+        }
+    }
+
+    @Override
+    public void dropGreetingStream(GreetingStream stream) {
+        long start = System.nanoTime();
+        try {
+            super.dropGreetingStream(stream);
+        } catch (RuntimeException | Error e) {
+            dropGreetingStream.failed();
+            throw e;
+        } finally {
+            dropGreetingStream.record(start);
+        }
+    }
+
+    @Override
+    public void dropGreetingArena(GreetingArena arena) {
+        long start = System.nanoTime();
+        try {
+            super.dropGreetingArena(arena);
+        } catch (RuntimeException | Error e) {
+            dropGreetingArena.failed();
+            throw e;
+        } finally {
+            dropGreetingArena.record(start);
+        }
+    }
+
+    @Override
+    public void dropGreetingWorkers(GreetingWorkers workers) {
+        long start = System.nanoTime();
+        try {
+            super.dropGreetingWorkers(workers);
+        } catch (RuntimeException | Error e) {
+            dropGreetingWorkers.failed();
+            throw e;
+        } finally {
+            dropGreetingWorkers.record(start);
+        }
+    }
+
+    /**
+     * The latencies and errors of one method
+     */
+    private static final class Timer {
+        final ConcurrentLatencyHistogram latencies = new ConcurrentLatencyHistogram();
+        final LongAdder errors = new LongAdder();
+
+        void record(long start) {
+            latencies.record(System.nanoTime() - start);
+        }
+
+        void failed() {
+            errors.increment();
+        }
+    }
+
+    /**
+     * Something reading the timings an interval at a time (e.g. the
+     * reporter, or JMX), and where its last interval ended
+     */
+    private final class Interval {
+        private final Map<String, ConcurrentLatencyHistogram.Snapshot> lastLatencies = new HashMap<>();
+        private final Map<String, Long> lastErrors = new HashMap<>();
+
+        synchronized Map<String, MethodLatency> next() {
+            Map<String, MethodLatency> latencies = new LinkedHashMap<>();
+            for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+                String name = timer.getKey();
+                ConcurrentLatencyHistogram.Snapshot snapshot = timer.getValue().latencies.snapshot();
+                long errors = timer.getValue().errors.sum();
+                ConcurrentLatencyHistogram.Snapshot last = lastLatencies.get(name);
+                Long lastErrorCount = lastErrors.get(name);
+                latencies.put(name, MethodLatency.of(
+                        snapshot.minus(last == null ? ConcurrentLatencyHistogram.Snapshot.EMPTY : last),
+                        errors - (lastErrorCount == null ? 0 : lastErrorCount)));
+                lastLatencies.put(name, snapshot);
+                lastErrors.put(name, errors);
+            }
+            return Collections.unmodifiableMap(latencies);
+        }
+    }
+}
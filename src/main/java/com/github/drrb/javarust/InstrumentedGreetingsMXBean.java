@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.util.Map;
+
+/**
+ * The timings from an {@link InstrumentedGreetings}, as seen over JMX.
+ */
+public interface InstrumentedGreetingsMXBean {
+
+    /**
+     * Every call so far, by method (and callback)
+     */
+    Map<String, MethodLatency> getLatencies();
+
+    /**
+     * The calls since this was last read over JMX, by method (and callback)
+     */
+    Map<String, MethodLatency> getIntervalLatencies();
+
+    long getTotalCalls();
+
+    long getTotalErrors();
+}
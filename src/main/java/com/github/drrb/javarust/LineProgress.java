@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Structure;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * How far Rust got through a window of lines. This is the Java
+ * representation of the LineProgress struct in Rust.
+ *
+ * @see Greetings#renderGreetingLines
+ */
+public class LineProgress extends Structure {
+
+    public static class ByValue extends LineProgress implements Structure.ByValue {
+    }
+
+    /**
+     * How many bytes of the input were used up (always whole lines).
+     */
+    public int consumed;
+    /**
+     * How many bytes of greetings were written to the output.
+     */
+    public int produced;
+    /**
+     * How many lines were greeted.
+     */
+    public int lines;
+    /**
+     * If Rust stopped because the next greeting didn't fit in the output, how
+     * many bytes it needs. Otherwise, Rust stopped because the rest of the
+     * input isn't a whole line, and this is 0.
+     */
+    public int needed;
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return Arrays.asList("consumed", "produced", "lines", "needed");
+    }
+}
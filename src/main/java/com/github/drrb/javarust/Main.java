@@ -17,23 +17,66 @@
 package com.github.drrb.javarust;
 
 import static java.util.Arrays.asList;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 
 /**
  * An entry point that says hello from Rust code
+ *
+ * Usage:
+ * <pre>
+ *   java -jar greeter.jar [name]
+ *   java -jar greeter.jar --batch names.txt [greetings.txt]
+ * </pre>
+ *
+ * In batch mode, every line of the input file is greeted, and the greetings
+ * are written to the output file (or stdout). A report of how many names were
+ * greeted, and how quickly, is printed to stderr at the end.
  */
 public class Main {
     
     private static String name;
     
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         List<String> arguments = asList(args);
+        if (!arguments.isEmpty() && arguments.get(0).equals("--batch")) {
+            batch(arguments.subList(1, arguments.size()));
+            return;
+        }
         if (arguments.isEmpty()) {
             name = "World";
         } else {
             name = arguments.get(0);
         }
-        Greetings.INSTANCE.printGreeting(name);
+        GreetingsBinding.configuredLibrary().printGreeting(name);
+    }
+
+    private static void batch(List<String> arguments) throws IOException {
+        if (arguments.isEmpty() || arguments.size() > 2) {
+            System.err.println("Usage: --batch <names file> [<greetings file>]");
+            System.exit(1);
+        }
+        Greetings library = GreetingsBinding.configuredLibrary();
+        // Let the job be watched over JMX while it runs
+        NativeStatsMonitor.register(library);
+        BatchGreeter greeter = new BatchGreeter(library);
+        Path input = Paths.get(arguments.get(0));
+        BatchGreeter.Report report;
+        if (arguments.size() == 2) {
+            report = greeter.greetLines(input, Paths.get(arguments.get(1)));
+        } else {
+            // Write to stdout's channel, rather than through System.out's buffers
+            try (FileChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel()) {
+                report = greeter.greetLines(input, stdout);
+            }
+        }
+        System.err.println(report);
     }
     
 }
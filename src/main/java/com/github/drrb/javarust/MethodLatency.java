@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * How many calls a method got, how many of them failed, and how long they
+ * took (in nanoseconds), over some period.
+ *
+ * @see InstrumentedGreetings
+ */
+public class MethodLatency {
+
+    private final long calls;
+    private final long errors;
+    private final double meanNanos;
+    private final long p50Nanos;
+    private final long p90Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    @ConstructorProperties({"calls", "errors", "meanNanos", "p50Nanos", "p90Nanos", "p99Nanos", "p999Nanos", "maxNanos"})
+    public MethodLatency(long calls, long errors, double meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos, long maxNanos) {
+        this.calls = calls;
+        this.errors = errors;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p90Nanos = p90Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    static MethodLatency of(ConcurrentLatencyHistogram.Snapshot latencies, long errors) {
+        return new MethodLatency(latencies.count(), errors, latencies.mean(),
+                latencies.valueAtPercentile(0.5), latencies.valueAtPercentile(0.9),
+                latencies.valueAtPercentile(0.99), latencies.valueAtPercentile(0.999),
+                latencies.max());
+    }
+
+    public long getCalls() {
+        return calls;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public double getMeanNanos() {
+        return meanNanos;
+    }
+
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    public long getP90Nanos() {
+        return p90Nanos;
+    }
+
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    public long getP999Nanos() {
+        return p999Nanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d calls, %,d errors, mean %s, p50 %s, p90 %s, p99 %s, p99.9 %s, max %s",
+                calls, errors, micros(meanNanos), micros(p50Nanos), micros(p90Nanos), micros(p99Nanos), micros(p999Nanos), micros(maxNanos));
+    }
+
+    private static String micros(double nanos) {
+        return String.format("%,.1fus", nanos / 1000);
+    }
+}
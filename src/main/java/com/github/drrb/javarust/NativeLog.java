@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Memory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the log messages from Rust.
+ *
+ * Rust doesn't print its log messages (printing makes every thread wait for
+ * stdout). Instead, it puts them in a fixed-size buffer, and they're moved
+ * into Java in batches, either by calling {@link #drain(Listener)} now and
+ * then, or by {@link #forwardTo(Logger, long, TimeUnit)} on a background
+ * thread:
+ * <pre>
+ *   NativeLog log = new NativeLog(Greetings.INSTANCE);
+ *   log.setLevel(NativeLog.DEBUG);
+ *   log.forwardTo(Logger.getLogger("rust"), 100, TimeUnit.MILLISECONDS);
+ * </pre>
+ *
+ * Logging is off until a level is set. If messages aren't drained quickly
+ * enough, the buffer fills up and Rust drops new ones (see
+ * {@link #getDropped()}) rather than waiting.
+ */
+public class NativeLog {
+
+    /**
+     * The levels, from least to most detailed. They match the ones in the
+     * logging module in Rust.
+     */
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+    public static final int TRACE = 5;
+
+    /**
+     * The most a message takes up in the buffer: its level and length (as
+     * native ints), then up to 240 bytes (Rust cuts longer ones short)
+     */
+    static final int MAX_MESSAGE_SIZE = 8 + 240;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Something to receive log messages from Rust
+     */
+    public interface Listener {
+
+        void message(int level, String message);
+    }
+
+    private final Greetings library;
+    private final Memory buffer;
+    private final ByteBuffer bytes;
+
+    public NativeLog(Greetings library) {
+        this(library, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize how many bytes to drain from Rust at a time (at least
+     * enough for one message)
+     */
+    public NativeLog(Greetings library, int bufferSize) {
+        if (bufferSize < MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("Buffer needs to be at least " + MAX_MESSAGE_SIZE + " bytes, but was " + bufferSize);
+        }
+        this.library = library;
+        this.buffer = new Memory(bufferSize);
+        this.bytes = buffer.getByteBuffer(0, bufferSize).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Keep Rust's messages at or below this level (e.g. {@link #DEBUG} keeps
+     * everything but {@link #TRACE}). {@link #OFF} turns logging off.
+     */
+    public void setLevel(int level) {
+        library.setNativeLogLevel(level);
+    }
+
+    /**
+     * How many messages Rust has dropped because the buffer was full
+     */
+    public long getDropped() {
+        return library.getNativeLogDropped();
+    }
+
+    /**
+     * Pass all the messages Rust has logged so far to the listener, oldest
+     * first.
+     *
+     * @return how many messages there were
+     */
+    public synchronized int drain(Listener listener) {
+        int messages = 0;
+        int length;
+        while ((length = library.drainNativeLog(buffer, (int) buffer.size())) > 0) {
+            bytes.clear();
+            while (bytes.position() < length) {
+                int level = bytes.getInt();
+                int messageLength = bytes.getInt();
+                byte[] message = new byte[messageLength];
+                bytes.get(message);
+                listener.message(level, new String(message, UTF_8));
+                messages++;
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Log Rust's messages to the logger, draining them on a background thread
+     * every period, until the returned Closeable is closed.
+     *
+     * Closing it drains the last of the messages, and turns logging off.
+     */
+    public Closeable forwardTo(final Logger logger, long period, TimeUnit unit) {
+        final Listener forwarder = new Listener() {
+            @Override
+            public void message(int level, String message) {
+                logger.log(toLoggerLevel(level), message);
+            }
+        };
+        final ScheduledExecutorService drainer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "greetings-native-log");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        drainer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                drain(forwarder);
+            }
+        }, period, period, unit);
+        return new Closeable() {
+            @Override
+            public void close() {
+                drainer.shutdownNow();
+                setLevel(OFF);
+                drain(forwarder);
+            }
+        };
+    }
+
+    static Level toLoggerLevel(int level) {
+        switch (level) {
+            case ERROR:
+                return Level.SEVERE;
+            case WARN:
+                return Level.WARNING;
+            case INFO:
+                return Level.INFO;
+            case DEBUG:
+                return Level.FINE;
+            default:
+                return Level.FINER;
+        }
+    }
+}
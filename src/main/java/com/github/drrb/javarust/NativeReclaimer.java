@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Frees memory allocated in Rust when the Java objects pointing to it are
+ * garbage collected.
+ *
+ * Structs returned from Rust are normally freed by closing them (see
+ * {@link Greeting#close()}). Calling manage() on them registers them here as
+ * well, so that if they're never closed, their memory still gets freed after
+ * they become unreachable. This uses phantom references, which (unlike
+ * finalizers) don't hold up the garbage collector. The memory is freed on a
+ * background daemon thread.
+ *
+ * It also keeps count of how many managed objects (and roughly how many bytes
+ * of native memory) are still alive.
+ */
+public final class NativeReclaimer {
+
+    private static final Logger LOGGER = Logger.getLogger(NativeReclaimer.class.getName());
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+    // The references need to stay reachable themselves until they're cleaned
+    private static final Set<Registration> REGISTRATIONS = Collections.newSetFromMap(new ConcurrentHashMap<Registration, Boolean>());
+    private static final AtomicLong LIVE_OBJECTS = new AtomicLong();
+    private static final AtomicLong LIVE_BYTES = new AtomicLong();
+
+    static {
+        Thread reclaimer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        ((Registration) QUEUE.remove()).clean();
+                    } catch (InterruptedException ex) {
+                        return;
+                    } catch (RuntimeException ex) {
+                        // Keep going, so that one failure doesn't stop everything else being freed
+                        LOGGER.log(Level.WARNING, "Couldn't free native memory", ex);
+                    }
+                }
+            }
+        }, "greetings-reclaimer");
+        reclaimer.setDaemon(true);
+        reclaimer.start();
+    }
+
+    private NativeReclaimer() {
+    }
+
+    /**
+     * The number of managed objects whose native memory hasn't been freed yet.
+     */
+    public static long liveObjects() {
+        return LIVE_OBJECTS.get();
+    }
+
+    /**
+     * Roughly how many bytes of native memory the managed objects are holding on to.
+     */
+    public static long liveBytes() {
+        return LIVE_BYTES.get();
+    }
+
+    /**
+     * Arrange for the native memory to be freed once the object is no longer reachable.
+     *
+     * @param referent the Java object pointing to the native memory
+     * @param free frees the native memory. It mustn't hold a reference to the
+     * referent, or the referent will never become unreachable.
+     * @param bytes roughly how much native memory the object holds on to
+     */
+    static Registration register(Object referent, Runnable free, long bytes) {
+        Registration registration = new Registration(referent, free, bytes);
+        REGISTRATIONS.add(registration);
+        LIVE_OBJECTS.incrementAndGet();
+        LIVE_BYTES.addAndGet(bytes);
+        return registration;
+    }
+
+    static class Registration extends PhantomReference<Object> {
+
+        private final Runnable free;
+        private final long bytes;
+        private final AtomicBoolean cleaned = new AtomicBoolean();
+
+        private Registration(Object referent, Runnable free, long bytes) {
+            super(referent, QUEUE);
+            this.free = free;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Free the native memory, if it hasn't been freed already.
+         */
+        void clean() {
+            if (cleaned.compareAndSet(false, true)) {
+                REGISTRATIONS.remove(this);
+                clear();
+                free.run();
+                LIVE_OBJECTS.decrementAndGet();
+                LIVE_BYTES.addAndGet(-bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Structure;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A snapshot of what the Rust library has allocated and freed. This is the
+ * Java representation of the NativeStats struct in Rust.
+ *
+ * The counts only ever go up. Something that's allocated and never freed
+ * shows up as a difference between the two that keeps growing.
+ *
+ * @see Greetings#getNativeStats()
+ * @see NativeStatsMonitor
+ */
+public class NativeStats extends Structure {
+
+    public static class ByValue extends NativeStats implements Structure.ByValue {
+    }
+
+    public long greetingsAllocated;
+    public long greetingsFreed;
+    public long greetingSetsAllocated;
+    public long greetingSetsFreed;
+    public long stringsAllocated;
+    public long stringsFreed;
+    public long bytesAllocated;
+    public long bytesFreed;
+    /**
+     * Bytes allocated, but not freed yet.
+     */
+    public long liveBytes;
+
+    public long getLiveGreetings() {
+        return greetingsAllocated - greetingsFreed;
+    }
+
+    public long getLiveGreetingSets() {
+        return greetingSetsAllocated - greetingSetsFreed;
+    }
+
+    public long getLiveStrings() {
+        return stringsAllocated - stringsFreed;
+    }
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return Arrays.asList("greetingsAllocated", "greetingsFreed",
+                "greetingSetsAllocated", "greetingSetsFreed",
+                "stringsAllocated", "stringsFreed",
+                "bytesAllocated", "bytesFreed", "liveBytes");
+    }
+}
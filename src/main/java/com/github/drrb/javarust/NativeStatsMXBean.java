@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.util.Map;
+
+/**
+ * The Rust library's allocation and call counters, as seen over JMX.
+ *
+ * Each attribute is read from Rust when it's asked for (see
+ * {@link NativeStatsMonitor}).
+ */
+public interface NativeStatsMXBean {
+
+    long getGreetingsAllocated();
+
+    long getGreetingsFreed();
+
+    long getLiveGreetings();
+
+    long getGreetingSetsAllocated();
+
+    long getGreetingSetsFreed();
+
+    long getLiveGreetingSets();
+
+    long getStringsAllocated();
+
+    long getStringsFreed();
+
+    long getLiveStrings();
+
+    long getBytesAllocated();
+
+    long getBytesFreed();
+
+    long getLiveBytes();
+
+    /**
+     * How many times each Rust function has been called, by name.
+     */
+    Map<String, Long> getCallCounts();
+}
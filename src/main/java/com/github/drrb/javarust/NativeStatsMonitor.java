@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Publishes the Rust library's counters (see {@link NativeStats}) over JMX,
+ * so that native memory leaks and growth can be watched (and alerted on)
+ * with the usual JMX tools, without a debugger.
+ *
+ * Register it once, with {@link #register(Greetings)}. It shows up as
+ * "com.github.drrb.javarust:type=NativeStats".
+ */
+public class NativeStatsMonitor implements NativeStatsMXBean {
+
+    public static final String OBJECT_NAME = "com.github.drrb.javarust:type=NativeStats";
+
+    private final Greetings library;
+    private volatile String[] exportNames;
+
+    public NativeStatsMonitor(Greetings library) {
+        this.library = library;
+    }
+
+    /**
+     * Register a monitor with the platform MBean server, unless there's one
+     * there already.
+     */
+    public static ObjectName register(Greetings library) {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.registerMBean(new NativeStatsMonitor(library), name);
+            } catch (InstanceAlreadyExistsException e) {
+                // There's only one Rust library, so the one that's there will do
+            }
+            return name;
+        } catch (JMException e) {
+            throw new IllegalStateException("Couldn't register native stats with JMX", e);
+        }
+    }
+
+    public NativeStats stats() {
+        return library.getNativeStats();
+    }
+
+    @Override
+    public long getGreetingsAllocated() {
+        return stats().greetingsAllocated;
+    }
+
+    @Override
+    public long getGreetingsFreed() {
+        return stats().greetingsFreed;
+    }
+
+    @Override
+    public long getLiveGreetings() {
+        return stats().getLiveGreetings();
+    }
+
+    @Override
+    public long getGreetingSetsAllocated() {
+        return stats().greetingSetsAllocated;
+    }
+
+    @Override
+    public long getGreetingSetsFreed() {
+        return stats().greetingSetsFreed;
+    }
+
+    @Override
+    public long getLiveGreetingSets() {
+        return stats().getLiveGreetingSets();
+    }
+
+    @Override
+    public long getStringsAllocated() {
+        return stats().stringsAllocated;
+    }
+
+    @Override
+    public long getStringsFreed() {
+        return stats().stringsFreed;
+    }
+
+    @Override
+    public long getLiveStrings() {
+        return stats().getLiveStrings();
+    }
+
+    @Override
+    public long getBytesAllocated() {
+        return stats().bytesAllocated;
+    }
+
+    @Override
+    public long getBytesFreed() {
+        return stats().bytesFreed;
+    }
+
+    @Override
+    public long getLiveBytes() {
+        return stats().liveBytes;
+    }
+
+    @Override
+    public Map<String, Long> getCallCounts() {
+        String[] names = exportNames();
+        long[] counts = new long[names.length];
+        library.getNativeCallCounts(counts, counts.length);
+        Map<String, Long> callCounts = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            callCounts.put(names[i], counts[i]);
+        }
+        return Collections.unmodifiableMap(callCounts);
+    }
+
+    /**
+     * The names of the Rust functions that are counted. They never change,
+     * so we only ask for them once.
+     */
+    private String[] exportNames() {
+        String[] names = exportNames;
+        if (names == null) {
+            names = new String[library.getNativeCallCounts(null, 0)];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = library.getNativeExportName(i);
+            }
+            exportNames = names;
+        }
+        return names;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.util.function.BiConsumer;
+
+/**
+ * Keeping track of which {@link Greetings} returned something that was
+ * allocated in Rust (e.g. a {@link GreetingSet}), so that closing it frees it
+ * through the same one.
+ *
+ * Otherwise, everything would be freed through {@link Greetings#INSTANCE},
+ * whichever binding allocated it (see {@link GreetingsBinding}), and wrappers
+ * like {@link InstrumentedGreetings} would never see it being freed. Things
+ * that JNA's interface mapping returns don't have an owner set, so they're
+ * freed through {@link Greetings#INSTANCE}, which is where they came from.
+ */
+final class Owners {
+
+    private Owners() {
+    }
+
+    /**
+     * Set the owner of something returned from Rust, and return it.
+     *
+     * @param setOwner the resource's (package-private) setOwner method
+     */
+    static <T> T owned(Greetings owner, T resource, BiConsumer<? super T, Greetings> setOwner) {
+        if (resource != null) {
+            setOwner.accept(resource, owner);
+        }
+        return resource;
+    }
+
+    /**
+     * The Greetings to free something through
+     */
+    static Greetings orDefault(Greetings owner) {
+        return owner == null ? Greetings.INSTANCE : owner;
+    }
+}
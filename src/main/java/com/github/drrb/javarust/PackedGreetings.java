@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Greetings for a column of people, packed into one buffer. This is the Java
+ * representation of the PackedGreetings struct in Rust.
+ *
+ * The text of all the greetings is back to back in one region of UTF-8
+ * bytes, and greeting i is the bytes between offsets i and i + 1 (the same
+ * layout as the names in {@link PackedPeople}). The greetings can be read by
+ * index, or all at once with {@link #getTextBuffer()}, until they're closed.
+ */
+public class PackedGreetings extends Structure implements Closeable {
+
+    /**
+     * The count + 1 offsets of the greetings in the text.
+     */
+    public Pointer offsets;
+    /**
+     * The text of all the greetings. This is in the same allocation as the
+     * offsets, so it gets freed along with them.
+     */
+    public Pointer text;
+    public int count;
+    public int textLength;
+    /**
+     * How big Rust's allocation is, so that it can free it.
+     */
+    public int allocationLength;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // The Greetings that returned this, which frees it (see Owners)
+    private Greetings owner;
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Copy a greeting's bytes into a Java array.
+     */
+    public byte[] getBytes(int index) {
+        int start = startOf(index);
+        return text.getByteArray(start, offsets.getInt((index + 1L) * 4) - start);
+    }
+
+    /**
+     * A direct ByteBuffer over a greeting's bytes, without copying them.
+     */
+    public ByteBuffer getByteBuffer(int index) {
+        int start = startOf(index);
+        return text.getByteBuffer(start, offsets.getInt((index + 1L) * 4) - start);
+    }
+
+    public String getText(int index) {
+        return new String(getBytes(index), UTF_8);
+    }
+
+    /**
+     * A direct ByteBuffer over the text of all the greetings, without copying
+     * it. E.g. to write them all to a channel at once.
+     */
+    public ByteBuffer getTextBuffer() {
+        return text.getByteBuffer(0, textLength);
+    }
+
+    private int startOf(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, count));
+        }
+        return offsets.getInt(index * 4L);
+    }
+
+    void setOwner(Greetings owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return Arrays.asList("offsets", "text", "count", "textLength", "allocationLength");
+    }
+
+    /**
+     * Send the greetings back to Rust to be dropped.
+     *
+     * Closing them again afterwards does nothing.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            // Turn off "auto-synch" for the same reason as in GreetingSet.close()
+            setAutoSynch(false);
+            Owners.orDefault(owner).dropPackedGreetings(this);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Memory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A column of people, packed into native memory to be greeted all at once
+ * (see {@link Greetings#greetPacked}).
+ *
+ * Instead of a struct (and two strings) for each person, all the first names
+ * are encoded back to back into one region of UTF-8 bytes, with an array of
+ * offsets saying where each one starts and ends (first name i is the bytes
+ * between offsets i and i + 1), and the same for the last names. Rust can
+ * read the whole column without chasing a pointer per name, and the greetings
+ * come back in the same layout (see {@link PackedGreetings}).
+ *
+ * The memory is kept when the column is cleared, so a PackedPeople can be
+ * filled over and over without allocating anything once it's big enough. It
+ * mustn't be used by more than one thread at a time.
+ */
+public class PackedPeople {
+
+    // "Hello, " + first name + " " + last name + "!"
+    private static final int GREETING_OVERHEAD = "Hello, ".length() + " ".length() + "!".length();
+
+    private final Column firstNames = new Column();
+    private final Column lastNames = new Column();
+    private int count;
+
+    /**
+     * Add a person to the end of the column.
+     */
+    public PackedPeople add(String firstName, String lastName) {
+        if (firstName == null || lastName == null) {
+            throw new NullPointerException("Packed names can't be null");
+        }
+        firstNames.add(firstName, count);
+        lastNames.add(lastName, count);
+        count++;
+        return this;
+    }
+
+    public PackedPeople add(Person person) {
+        return add(person.firstName, person.lastName);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Empty the column, keeping its memory to be filled again.
+     */
+    public PackedPeople clear() {
+        firstNames.clear();
+        lastNames.clear();
+        count = 0;
+        return this;
+    }
+
+    /**
+     * Greet everyone in the column, in one call to Rust.
+     *
+     * @throws IllegalStateException if the greetings would be more than 2 GiB
+     * (see {@link Greetings#greetPacked}), so the people need to be greeted in
+     * smaller batches
+     */
+    public PackedGreetings greet(Greetings library) {
+        long greetingsLength = firstNames.length() + lastNames.length() + (long) count * GREETING_OVERHEAD;
+        if (greetingsLength > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Greetings for " + count + " packed people would be " + greetingsLength + " bytes, which is too big to greet in one batch");
+        }
+        return library.greetPacked(firstNames.bytes, firstNames.offsets, lastNames.bytes, lastNames.offsets, count);
+    }
+
+    /**
+     * The bytes and offsets of one column of names, in native memory that
+     * grows when it needs to.
+     */
+    private static class Column {
+        private static final int INITIAL_NAMES = 16;
+        private static final int INITIAL_BYTES = 256;
+
+        private Memory bytes = new Memory(INITIAL_BYTES);
+        private ByteBuffer byteBuffer = buffer(bytes);
+        private Memory offsets = new Memory((INITIAL_NAMES + 1) * 4L);
+
+        Column() {
+            offsets.setInt(0, 0);
+        }
+
+        void add(String name, int index) {
+            // Make sure there's room for the name (at its longest) and its end offset
+            ensureBytes(byteBuffer.position() + (long) name.length() * Utf8.MAX_BYTES_PER_CHAR);
+            ensureOffsets((index + 2) * 4L);
+            Utf8.encode(name, byteBuffer);
+            offsets.setInt((index + 1) * 4L, byteBuffer.position());
+        }
+
+        void clear() {
+            byteBuffer.clear();
+        }
+
+        long length() {
+            return byteBuffer.position();
+        }
+
+        private void ensureBytes(long capacity) {
+            if (bytes.size() < capacity) {
+                Memory grown = new Memory(Math.max(capacity, bytes.size() * 2));
+                ByteBuffer grownBuffer = buffer(grown);
+                byteBuffer.flip();
+                grownBuffer.put(byteBuffer);
+                bytes = grown;
+                byteBuffer = grownBuffer;
+            }
+        }
+
+        private void ensureOffsets(long capacity) {
+            if (offsets.size() < capacity) {
+                Memory grown = new Memory(Math.max(capacity, offsets.size() * 2));
+                buffer(grown).put(buffer(offsets));
+                offsets = grown;
+            }
+        }
+
+        private static ByteBuffer buffer(Memory memory) {
+            return memory.getByteBuffer(0, memory.size()).order(ByteOrder.nativeOrder());
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link Person} that can be used over and over without allocating anything.
+ *
+ * When a {@link Person} is passed to Rust, JNA allocates native memory for
+ * each name, copies the names into it, writes the struct, and then reads the
+ * struct back again afterwards (in case Rust changed it). A PersonBuffer keeps
+ * its own native memory for each name, and encodes new names straight into
+ * it, so nothing is allocated unless a name is longer than any before it.
+ * Rust doesn't change the struct, so it's never read back either.
+ *
+ * This has the same layout as Person (see the Rust code), but the fields are
+ * pointers to the names' memory, rather than Strings.
+ *
+ * A PersonBuffer mustn't be used by more than one thread at a time. Use
+ * {@link #forCurrentThread()} to get one for each thread.
+ */
+public class PersonBuffer extends Structure {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final ThreadLocal<PersonBuffer> FOR_CURRENT_THREAD = new ThreadLocal<PersonBuffer>() {
+        @Override
+        protected PersonBuffer initialValue() {
+            return new PersonBuffer();
+        }
+    };
+
+    public Pointer firstName;
+    public Pointer lastName;
+
+    private final NameBuffer firstNameBuffer = new NameBuffer();
+    private final NameBuffer lastNameBuffer = new NameBuffer();
+
+    public PersonBuffer() {
+        // We write the fields ourselves when they change (see setNames), and
+        // Rust doesn't change them, so JNA doesn't need to do either
+        setAutoSynch(false);
+    }
+
+    /**
+     * This thread's PersonBuffer
+     */
+    public static PersonBuffer forCurrentThread() {
+        return FOR_CURRENT_THREAD.get();
+    }
+
+    /**
+     * Encode new names into the buffer (as null terminated UTF-8).
+     */
+    public PersonBuffer setNames(String firstName, String lastName) {
+        Pointer newFirstName = firstNameBuffer.encode(firstName);
+        Pointer newLastName = lastNameBuffer.encode(lastName);
+        // The pointers only change if a buffer had to grow (or a name was null)
+        if (!same(newFirstName, this.firstName)) {
+            this.firstName = newFirstName;
+            writeField("firstName");
+        }
+        if (!same(newLastName, this.lastName)) {
+            this.lastName = newLastName;
+            writeField("lastName");
+        }
+        return this;
+    }
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return Arrays.asList("firstName", "lastName");
+    }
+
+    private static boolean same(Pointer a, Pointer b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Native memory for a name, that grows when it needs to
+     */
+    private static class NameBuffer {
+        private Memory memory;
+        private ByteBuffer bytes;
+
+        /**
+         * @return a pointer to the encoded name, or null if the name is null
+         */
+        Pointer encode(String name) {
+            if (name == null) {
+                return null;
+            }
+            // Leave room for the null character too
+            ensureCapacity((long) name.length() * Utf8.MAX_BYTES_PER_CHAR + 1);
+            bytes.clear();
+            Utf8.encode(name, bytes);
+            bytes.put((byte) 0);
+            return memory;
+        }
+
+        private void ensureCapacity(long capacity) {
+            if (memory == null || memory.size() < capacity) {
+                long size = Math.max(capacity, memory == null ? INITIAL_CAPACITY : memory.size() * 2);
+                memory = new Memory(size);
+                bytes = memory.getByteBuffer(0, size);
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.Greetings.GreetingCallback;
+import com.sun.jna.CallbackThreadInitializer;
+import com.sun.jna.Native;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A GreetingCallback that has been registered with Rust, so that it can be called back
+ * by handle.
+ *
+ * Every time a callback is passed to {@link Greetings#callMeBack}, JNA has to
+ * look up its native function pointer (and create one the first time it sees
+ * that callback object). Registering the callback does that once, and later
+ * calls just pass Rust a number.
+ *
+ * Rust only keeps the native function pointer, so this object holds on to the
+ * callback to stop it (and its function pointer) being garbage collected while
+ * it's registered. Close it to unregister the callback.
+ */
+public final class RegisteredGreetingCallback implements Closeable {
+
+    /**
+     * How JNA should set up native threads that call into registered callbacks.
+     *
+     * By default, JNA attaches a native thread to the JVM before each call into
+     * Java, and detaches it again afterwards. Here, threads stay attached (as
+     * daemon threads, so they don't stop the JVM exiting), so only their first
+     * call pays for it.
+     */
+    static final CallbackThreadInitializer ATTACHED_DAEMON_THREADS = new CallbackThreadInitializer(true, false, "greetings-callback");
+
+    private final Greetings library;
+    private final GreetingCallback callback;
+    private final int handle;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private RegisteredGreetingCallback(Greetings library, GreetingCallback callback, int handle) {
+        this.library = library;
+        this.callback = callback;
+        this.handle = handle;
+    }
+
+    /**
+     * Register a callback with Rust.
+     */
+    public static RegisteredGreetingCallback register(Greetings library, GreetingCallback callback) {
+        // This needs to happen before JNA creates the callback's native function pointer
+        Native.setCallbackThreadInitializer(callback, RegisteredGreetingCallback.ATTACHED_DAEMON_THREADS);
+        return new RegisteredGreetingCallback(library, callback, library.registerGreetingCallback(callback));
+    }
+
+    public GreetingCallback getCallback() {
+        return callback;
+    }
+
+    /**
+     * The same as {@link Greetings#callMeBack}, with this callback.
+     */
+    public void callMeBack() {
+        if (closed.get()) {
+            throw new IllegalStateException("Callback has been unregistered");
+        }
+        if (library.callMeBackWith(handle) != 0) {
+            throw new IllegalStateException("Callback isn't registered in Rust (handle: " + handle + ")");
+        }
+    }
+
+    /**
+     * Unregister the callback. Closing it again afterwards does nothing.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            library.unregisterGreetingCallback(handle);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.Greetings.GreetingSetCallback;
+import com.sun.jna.CallbackThreadInitializer;
+import com.sun.jna.Native;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A GreetingSetCallback that has been registered with Rust, so that it can be called back
+ * by handle.
+ *
+ * Every time a callback is passed to {@link Greetings#sendGreetings}, JNA has to
+ * look up its native function pointer (and create one the first time it sees
+ * that callback object). Registering the callback does that once, and later
+ * calls just pass Rust a number.
+ *
+ * Rust only keeps the native function pointer, so this object holds on to the
+ * callback to stop it (and its function pointer) being garbage collected while
+ * it's registered. Close it to unregister the callback.
+ */
+public final class RegisteredGreetingSetCallback implements Closeable {
+
+    private final Greetings library;
+    private final GreetingSetCallback callback;
+    private final int handle;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private RegisteredGreetingSetCallback(Greetings library, GreetingSetCallback callback, int handle) {
+        this.library = library;
+        this.callback = callback;
+        this.handle = handle;
+    }
+
+    /**
+     * Register a callback with Rust.
+     */
+    public static RegisteredGreetingSetCallback register(Greetings library, GreetingSetCallback callback) {
+        // This needs to happen before JNA creates the callback's native function pointer
+        Native.setCallbackThreadInitializer(callback, RegisteredGreetingCallback.ATTACHED_DAEMON_THREADS);
+        return new RegisteredGreetingSetCallback(library, callback, library.registerGreetingSetCallback(callback));
+    }
+
+    public GreetingSetCallback getCallback() {
+        return callback;
+    }
+
+    /**
+     * The same as {@link Greetings#sendGreetings}, with this callback.
+     */
+    public void sendGreetings() {
+        if (closed.get()) {
+            throw new IllegalStateException("Callback has been unregistered");
+        }
+        if (library.sendGreetingsWith(handle) != 0) {
+            throw new IllegalStateException("Callback isn't registered in Rust (handle: " + handle + ")");
+        }
+    }
+
+    /**
+     * Unregister the callback. Closing it again afterwards does nothing.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            library.unregisterGreetingSetCallback(handle);
+        }
+    }
+}
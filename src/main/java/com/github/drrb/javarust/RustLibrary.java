@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Platform;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * Finds and loads the Rust library, the first time it's needed.
+ *
+ * When the library is in a jar (e.g. target/greeter.jar), it needs to be
+ * copied out into a file before it can be loaded. JNA does that on its own,
+ * but into a new temporary file every time the JVM starts. Here, it's copied
+ * once into a cache directory, under the hash of its contents, and later
+ * starts just check that it's there. Because the directory is named after the
+ * contents, a new build of the library gets a new directory, and an old copy
+ * is never loaded by mistake.
+ *
+ * The hash is computed at build time (see CompileRustCrates), and put next to
+ * the library, so we don't even need to read the library to find it.
+ *
+ * The cache directory is ~/.cache/java-rust-example (or under XDG_CACHE_HOME),
+ * or the directory in the "greetings.library.cache" system property. If it
+ * can't be used, we fall back to letting JNA find the library.
+ *
+ * On x86-64, release builds come with versions of the library for newer CPUs
+ * too (see {@link Variant}), and we load the best one this CPU can run.
+ */
+final class RustLibrary {
+
+    private static final Logger LOGGER = Logger.getLogger(RustLibrary.class.getName());
+
+    static final String NAME = "greetings";
+    static final String CACHE_DIRECTORY_PROPERTY = "greetings.library.cache";
+    static final String HASH_SUFFIX = ".sha256";
+    static final String VARIANT_PROPERTY = "greetings.library.variant";
+    private static final String CPU_LEVEL_NAME = "cpulevel";
+    private static final String BUILD_INFO = "rust-build.properties";
+
+    private RustLibrary() {
+    }
+
+    /**
+     * The library, which is loaded the first time this is called
+     */
+    static NativeLibrary get() {
+        return Holder.LIBRARY;
+    }
+
+    /**
+     * What to pass to JNA to load the library: the path to the file, or just
+     * its name if we're leaving it to JNA to find it
+     */
+    static String location() {
+        return Holder.LOCATION;
+    }
+
+    /**
+     * The library is found and loaded when this class is, which the JVM does
+     * (once, and thread-safely) the first time it's needed.
+     */
+    private static class Holder {
+        static final String LOCATION = find();
+        static final NativeLibrary LIBRARY = NativeLibrary.getInstance(LOCATION);
+
+        static {
+            LOGGER.log(Level.FINE, "Loaded Rust library ({0} build) from {1}", new Object[] { buildProfile(), LOCATION });
+        }
+    }
+
+    /**
+     * How the library was built ("debug", "release" or "release-native"), as
+     * recorded in the jar by CompileRustCrates
+     */
+    static String buildProfile() {
+        URL buildInfo = RustLibrary.class.getResource(BUILD_INFO);
+        if (buildInfo == null) {
+            return "unknown";
+        }
+        try (InputStream input = buildInfo.openStream()) {
+            Properties properties = new Properties();
+            properties.load(input);
+            return properties.getProperty("profile", "unknown");
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    private static String find() {
+        final ClassLoader classLoader = RustLibrary.class.getClassLoader();
+        Variant variant = chooseVariant(System.getProperty(VARIANT_PROPERTY), availableVariants(classLoader), new IntSupplier() {
+            @Override
+            public int getAsInt() {
+                return cpuLevel(classLoader);
+            }
+        });
+        LOGGER.log(Level.FINE, "Using the {0} version of the Rust library", variant);
+        String resourceName = variant.resourceName(NAME);
+        URL resource = classLoader.getResource(resourceName);
+        if (resource != null) {
+            try {
+                return libraryFile(resource, resourceName, classLoader, cacheDirectory()).getAbsolutePath();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Couldn't cache the Rust library. Leaving it to JNA.", e);
+            }
+        }
+        return NAME;
+    }
+
+    /**
+     * Pick the version of the library to load: the one named in the
+     * "greetings.library.variant" system property, or else the best one there
+     * is that the CPU can run.
+     *
+     * The property is for trying out (or avoiding) a version. It isn't
+     * checked against the CPU, so naming one the CPU can't run will crash
+     * when a function uses an instruction the CPU doesn't have. Naming one
+     * that doesn't exist (or wasn't built) just logs a warning, and uses the
+     * baseline version: this runs while the library is being loaded, where an
+     * exception would stop it ever loading.
+     */
+    static Variant chooseVariant(String override, Set<Variant> available, IntSupplier cpuLevel) {
+        if (override != null) {
+            Variant chosen = Variant.named(override);
+            if (chosen == null) {
+                LOGGER.log(Level.WARNING, "There''s no such version of the Rust library as ''{0}'' (expected one of {1}). Using the baseline version.", new Object[] { override, EnumSet.allOf(Variant.class) });
+                return Variant.BASELINE;
+            }
+            if (available.contains(chosen)) {
+                return chosen;
+            }
+            LOGGER.log(Level.WARNING, "There''s no {0} version of the Rust library (only {1}). Using the baseline version.", new Object[] { chosen, available });
+            return Variant.BASELINE;
+        }
+        if (available.size() <= 1) {
+            // Nothing to choose from, so don't bother asking the CPU
+            return Variant.BASELINE;
+        }
+        int level = cpuLevel.getAsInt();
+        Variant best = Variant.BASELINE;
+        for (Variant variant : available) {
+            if (variant.level <= level && variant.level > best.level) {
+                best = variant;
+            }
+        }
+        return best;
+    }
+
+    private static Set<Variant> availableVariants(ClassLoader classLoader) {
+        Set<Variant> available = EnumSet.noneOf(Variant.class);
+        for (Variant variant : Variant.values()) {
+            if (classLoader.getResource(variant.resourceName(NAME)) != null) {
+                available.add(variant);
+            }
+        }
+        return available;
+    }
+
+    /**
+     * Ask the cpulevel library (which runs on any CPU) which level of x86-64
+     * this CPU supports. If we can't, assume it's only the baseline.
+     */
+    private static int cpuLevel(ClassLoader classLoader) {
+        String resourceName = Variant.BASELINE.resourceName(CPU_LEVEL_NAME);
+        URL resource = classLoader.getResource(resourceName);
+        if (resource == null) {
+            return Variant.BASELINE.level;
+        }
+        try {
+            String location = libraryFile(resource, resourceName, classLoader, cacheDirectory()).getAbsolutePath();
+            int level = NativeLibrary.getInstance(location).getFunction("detectX86Level").invokeInt(new Object[0]);
+            LOGGER.log(Level.FINE, "This CPU supports x86-64 level {0}", level);
+            return level;
+        } catch (IOException | RuntimeException | UnsatisfiedLinkError e) {
+            LOGGER.log(Level.WARNING, "Couldn't tell what this CPU supports. Using the baseline version of the Rust library.", e);
+            return Variant.BASELINE.level;
+        }
+    }
+
+    /**
+     * A version of the library, built for a level of x86-64 CPU (see
+     * CompileRustCrates). Each one can use more instructions than the last,
+     * and is in a directory named after its level, next to the baseline
+     * version (e.g. linux-x86-64/x86-64-v3/libgreetings.so).
+     */
+    enum Variant {
+        BASELINE("baseline", 1),
+        X86_64_V2("x86-64-v2", 2),
+        X86_64_V3("x86-64-v3", 3);
+
+        private final String name;
+        private final int level;
+
+        Variant(String name, int level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        String resourceName(String libraryName) {
+            String directory = this == BASELINE ? Platform.RESOURCE_PREFIX : Platform.RESOURCE_PREFIX + "/" + name;
+            return directory + "/" + System.mapLibraryName(libraryName);
+        }
+
+        /**
+         * The variant with this name (e.g. "x86-64-v3"), or null if there isn't one
+         */
+        static Variant named(String name) {
+            for (Variant variant : values()) {
+                if (variant.name.equals(name)) {
+                    return variant;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A file containing the library, which is the resource itself if it's
+     * already a file (e.g. in target/classes), or else a copy in the cache.
+     */
+    static File libraryFile(URL resource, String resourceName, ClassLoader classLoader, Path cacheDirectory) throws IOException {
+        if ("file".equals(resource.getProtocol())) {
+            try {
+                return new File(resource.toURI());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // Not a file we can use after all, so copy it like any other
+            }
+        }
+        byte[] contents = null;
+        String hash = readHash(classLoader, resourceName + HASH_SUFFIX);
+        if (hash == null) {
+            // Built without a hash (e.g. by an IDE), so we have to read the library to get one
+            contents = read(resource);
+            hash = sha256(contents);
+        }
+        Path cached = cacheDirectory.resolve(hash).resolve(resourceName.substring(resourceName.lastIndexOf('/') + 1));
+        if (Files.isRegularFile(cached)) {
+            return cached.toFile();
+        }
+        if (contents == null) {
+            contents = read(resource);
+        }
+        install(contents, cached);
+        return cached.toFile();
+    }
+
+    /**
+     * Write the library into the cache.
+     *
+     * It's written to a temporary file first, and then moved into place, so
+     * another JVM starting at the same time never sees half a library.
+     */
+    private static void install(byte[] contents, Path cached) throws IOException {
+        Path directory = cached.getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, cached.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temporary, contents);
+            try {
+                Files.move(temporary, cached, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, cached, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // Another JVM might have got there first (on Windows, we can't
+            // replace it if it's loaded). Its copy is just as good as ours.
+            if (!Files.isRegularFile(cached)) {
+                throw e;
+            }
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    static Path cacheDirectory() {
+        String configured = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+        Path cacheHome = xdgCacheHome == null || xdgCacheHome.isEmpty()
+                ? Paths.get(System.getProperty("user.home"), ".cache")
+                : Paths.get(xdgCacheHome);
+        return cacheHome.resolve("java-rust-example");
+    }
+
+    private static String readHash(ClassLoader classLoader, String hashResourceName) throws IOException {
+        URL hashResource = classLoader.getResource(hashResourceName);
+        if (hashResource == null) {
+            return null;
+        }
+        String hash = new String(read(hashResource), US_ASCII).trim();
+        // It's used as a directory name, so make sure it's only a hash
+        return hash.matches("[0-9a-f]{64}") ? hash : null;
+    }
+
+    private static byte[] read(URL resource) throws IOException {
+        try (InputStream input = resource.openStream()) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    static String sha256(byte[] contents) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(contents);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.PointerType;
+
+import java.io.Closeable;
+
+/**
+ * A string that was allocated in Rust and returned to Java.
+ *
+ * When a Rust function's return type is mapped to String, JNA copies the
+ * characters into a new Java String, and nothing ever frees the native one.
+ * Mapping it to this type instead gives us the pointer itself, so that we can
+ * read the string and then send it back to Rust to be freed.
+ */
+public class RustString extends PointerType implements Closeable {
+
+    // The Greetings that returned this, which frees it (see Owners)
+    private Greetings owner;
+
+    /**
+     * Used by JNA to create instances for return values.
+     */
+    public RustString() {
+    }
+
+    RustString(Pointer pointer) {
+        super(pointer);
+    }
+
+    void setOwner(Greetings owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Read the string (it's UTF-8 encoded in Rust).
+     */
+    public String getString() {
+        Pointer pointer = getPointer();
+        if (pointer == null) {
+            throw new IllegalStateException("String has already been freed");
+        }
+        return pointer.getString(0, "UTF-8");
+    }
+
+    /**
+     * Send the string back to Rust to be freed.
+     *
+     * Closing it again afterwards (even from another thread) does nothing.
+     */
+    @Override
+    public synchronized void close() {
+        if (getPointer() != null) {
+            Owners.orDefault(owner).dropString(this);
+            setPointer(null);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+
+/**
+ * A greeting that comes with the length of its text.
+ *
+ * This is the Java representation of the SizedGreeting struct in Rust. Unlike
+ * {@link Greeting}, the text is a pointer to some UTF-8 bytes (not a String),
+ * and we're told how many there are. That means JNA doesn't need to scan the
+ * text for a null character to find the end, and we can decode it with the
+ * right charset.
+ */
+public class SizedGreeting extends Structure {
+
+    static final int SIZE;
+    static final int TEXT_OFFSET;
+    static final int LENGTH_OFFSET;
+
+    static {
+        SizedGreeting layout = new SizedGreeting();
+        SIZE = layout.size();
+        TEXT_OFFSET = layout.fieldOffset("text");
+        LENGTH_OFFSET = layout.fieldOffset("length");
+    }
+
+    public Pointer text;
+    public int length;
+
+    public SizedGreeting() {
+    }
+
+    SizedGreeting(Pointer pointer) {
+        super(pointer);
+    }
+
+    /**
+     * Copy the text's bytes into a Java array.
+     */
+    public byte[] getBytes() {
+        return text.getByteArray(0, length);
+    }
+
+    /**
+     * A direct ByteBuffer over the text's bytes, without copying them.
+     *
+     * It's only valid until the set the greeting came from is closed.
+     */
+    public ByteBuffer getByteBuffer() {
+        return text.getByteBuffer(0, length);
+    }
+
+    public String getText() {
+        return new String(getBytes(), UTF_8);
+    }
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return asList("text", "length");
+    }
+}
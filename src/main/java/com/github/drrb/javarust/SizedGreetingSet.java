@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A set of {@link SizedGreeting}s. This is the Java representation of the
+ * SizedGreetingSet struct in Rust.
+ *
+ * The greetings can be read one at a time by index without creating a
+ * Structure for each one (see {@link #getText(int)}), or through a lazy list
+ * (see {@link #getGreetings()}). Either way, they can only be read until the
+ * set is closed.
+ */
+public class SizedGreetingSet extends Structure implements Closeable {
+
+    /**
+     * A pointer to the array of greetings.
+     *
+     * Unlike {@link GreetingSet#greetings}, this is a plain pointer, so that JNA
+     * doesn't read the first greeting when it reads the set.
+     */
+    public Pointer greetings;
+    public int numberOfGreetings;
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // The Greetings that returned this, which frees it (see Owners)
+    private Greetings owner;
+
+    public int getNumberOfGreetings() {
+        return numberOfGreetings;
+    }
+
+    /**
+     * Copy a greeting's bytes into a Java array.
+     */
+    public byte[] getBytes(int index) {
+        long offset = offsetOf(index);
+        return greetings.getPointer(offset + SizedGreeting.TEXT_OFFSET).getByteArray(0, greetings.getInt(offset + SizedGreeting.LENGTH_OFFSET));
+    }
+
+    /**
+     * A direct ByteBuffer over a greeting's bytes, without copying them.
+     */
+    public ByteBuffer getByteBuffer(int index) {
+        long offset = offsetOf(index);
+        return greetings.getPointer(offset + SizedGreeting.TEXT_OFFSET).getByteBuffer(0, greetings.getInt(offset + SizedGreeting.LENGTH_OFFSET));
+    }
+
+    public String getText(int index) {
+        return new String(getBytes(index), UTF_8);
+    }
+
+    /**
+     * A lazy list of the greetings: each one is only read when it's accessed.
+     */
+    public List<SizedGreeting> getGreetings() {
+        return new SizedGreetings();
+    }
+
+    private long offsetOf(int index) {
+        if (index < 0 || index >= numberOfGreetings) {
+            throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, numberOfGreetings));
+        }
+        return (long) index * SizedGreeting.SIZE;
+    }
+
+    void setOwner(Greetings owner) {
+        this.owner = owner;
+    }
+
+    @Override
+    protected List<String> getFieldOrder() {
+        return Arrays.asList("greetings", "numberOfGreetings");
+    }
+
+    /**
+     * Send the set back to Rust to be dropped.
+     *
+     * Closing it again afterwards does nothing.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            // Turn off "auto-synch" for the same reason as in GreetingSet.close()
+            setAutoSynch(false);
+            Owners.orDefault(owner).dropSizedGreetingSet(this);
+        }
+    }
+
+    private class SizedGreetings extends AbstractList<SizedGreeting> implements RandomAccess {
+
+        @Override
+        public SizedGreeting get(int index) {
+            SizedGreeting greeting = new SizedGreeting(greetings.share(offsetOf(index)));
+            greeting.read();
+            return greeting;
+        }
+
+        @Override
+        public int size() {
+            return numberOfGreetings;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding Strings as UTF-8 straight into a buffer.
+ *
+ * String.getBytes() allocates a new array every time, which is what the
+ * reusable buffers (see {@link PersonBuffer} and {@link PackedPeople}) are
+ * trying to avoid.
+ */
+final class Utf8 {
+
+    /**
+     * A char takes up at most 3 bytes in UTF-8 (characters that take 4 bytes
+     * are made of 2 chars).
+     */
+    static final int MAX_BYTES_PER_CHAR = 3;
+
+    private Utf8() {
+    }
+
+    /**
+     * Encode a string into the buffer, starting at its position. The buffer
+     * needs to have at least string.length() * {@link #MAX_BYTES_PER_CHAR}
+     * bytes remaining.
+     */
+    static void encode(String string, ByteBuffer bytes) {
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                bytes.put((byte) c);
+            } else if (c < 0x800) {
+                bytes.put((byte) (0xC0 | (c >> 6)));
+                bytes.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                bytes.put((byte) (0xF0 | (codePoint >> 18)));
+                bytes.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                bytes.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                bytes.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Half of a pair on its own isn't valid UTF-16, so it can't be encoded
+                bytes.put((byte) '?');
+            } else {
+                bytes.put((byte) (0xE0 | (c >> 12)));
+                bytes.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                bytes.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
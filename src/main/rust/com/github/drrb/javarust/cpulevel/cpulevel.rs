@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// A tiny library that tells Java what the CPU can do, so that it can load the best version of the
+// greetings library (see RustLibrary in Java, and CompileRustCrates). It's only built for the
+// baseline CPU, because it needs to run on all of them.
+#![crate_type = "cdylib"]
+
+use std::os::raw::c_int;
+
+/// The highest level of x86-64 this CPU (and OS) supports: 1 for the baseline, 2 for x86-64-v2, or
+/// 3 for x86-64-v3. Returns 0 on other CPUs.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn detectX86Level() -> c_int {
+    level()
+}
+
+#[cfg(target_arch = "x86_64")]
+fn level() -> c_int {
+    // These ask the CPU (with the CPUID instruction) the first time, and remember the answers.
+    // For AVX, they also check that the OS saves the AVX registers when it switches threads.
+    let v2 = is_x86_feature_detected!("cmpxchg16b")
+        && is_x86_feature_detected!("popcnt")
+        && is_x86_feature_detected!("sse3")
+        && is_x86_feature_detected!("ssse3")
+        && is_x86_feature_detected!("sse4.1")
+        && is_x86_feature_detected!("sse4.2")
+        && is_x86_feature_detected!("lahfsahf");
+    let v3 = v2
+        && is_x86_feature_detected!("avx")
+        && is_x86_feature_detected!("avx2")
+        && is_x86_feature_detected!("bmi1")
+        && is_x86_feature_detected!("bmi2")
+        && is_x86_feature_detected!("f16c")
+        && is_x86_feature_detected!("fma")
+        && is_x86_feature_detected!("lzcnt")
+        && is_x86_feature_detected!("movbe")
+        && is_x86_feature_detected!("xsave");
+    if v3 {
+        3
+    } else if v2 {
+        2
+    } else {
+        1
+    }
+}
+
+#[cfg(not(target_arch = "x86_64"))]
+fn level() -> c_int {
+    0
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Arena allocation: letting Java free a whole request's worth of greetings at once.
+//
+// Normally, every string, Greeting and GreetingSet that Rust returns is allocated separately, and
+// has to be freed separately too. Here, Java creates a GreetingArena, passes it to the "InArena"
+// functions, and then passes it to dropGreetingArena when it's done. Everything allocated in the
+// arena gets freed at that point, in one go.
+//
+// The arena hands out memory by bumping an offset along a big chunk of memory, so allocating a
+// greeting doesn't involve the allocator (or contend for its locks) at all. An arena mustn't be
+// used by more than one thread at a time, but each thread can have its own.
+
+use std::cmp;
+use std::ffi::CStr;
+use std::mem;
+use std::ptr;
+use std::os::raw::c_char;
+use super::{Greeting, Person};
+use super::stats::{self, Export};
+
+// The size of each chunk of memory the arena allocates from
+const CHUNK_SIZE: usize = 64 * 1024;
+
+pub struct GreetingArena {
+    // The memory we allocate from. The chunks are made of u64s so that they're aligned well
+    // enough for anything we put in them. We never push anything into the Vecs: we use their
+    // capacity, and keep track of how much of the last one we've used.
+    chunks: Vec<Vec<u64>>,
+    used: usize
+}
+
+// ArenaGreetingSet has the same layout as GreetingSet (and so also corresponds to
+// com.github.drrb.javarust.GreetingSet in Java), but it doesn't own its greetings. They belong to
+// the arena.
+#[repr(C)]
+pub struct ArenaGreetingSet {
+    greetings: *const Greeting,
+    number_of_greetings: usize
+}
+
+impl GreetingArena {
+    fn new() -> GreetingArena {
+        GreetingArena { chunks: Vec::new(), used: 0 }
+    }
+
+    // Allocate some uninitialized memory from the arena
+    fn allocate(&mut self, size: usize, align: usize) -> *mut u8 {
+        let mut start = (self.used + align - 1) & !(align - 1);
+        let fits = match self.chunks.last() {
+            Some(chunk) => start + size <= chunk.capacity() * mem::size_of::<u64>(),
+            None => false
+        };
+        if !fits {
+            let chunk_size = cmp::max(size, CHUNK_SIZE);
+            let words = (chunk_size + mem::size_of::<u64>() - 1) / mem::size_of::<u64>();
+            self.chunks.push(Vec::with_capacity(words));
+            start = 0;
+        }
+        self.used = start + size;
+        let chunk = self.chunks.last_mut().unwrap();
+        unsafe { (chunk.as_mut_ptr() as *mut u8).offset(start as isize) }
+    }
+
+    // Copy some strings into the arena, one after the other, as a single native string
+    fn allocate_string(&mut self, parts: &[&[u8]]) -> *const c_char {
+        let length = parts.iter().fold(0, |length, part| length + part.len());
+        let string = self.allocate(length + 1, 1);
+        let mut offset = 0;
+        for part in parts {
+            unsafe { ptr::copy_nonoverlapping(part.as_ptr(), string.offset(offset as isize), part.len()) };
+            offset += part.len();
+        }
+        // Native strings end with a null character
+        unsafe { *string.offset(length as isize) = 0 };
+        string as *const c_char
+    }
+
+    // Move some greetings into the arena, along with a set that points to them
+    fn allocate_greeting_set(&mut self, texts: &[*const c_char]) -> *const ArenaGreetingSet {
+        let greetings = self.allocate(texts.len() * mem::size_of::<Greeting>(), mem::align_of::<Greeting>()) as *mut Greeting;
+        for (i, &text) in texts.iter().enumerate() {
+            // ptr::write moves the greeting into the arena without dropping anything. The greetings
+            // never get dropped, so they don't try to free text that belongs to the arena.
+            unsafe { ptr::write(greetings.offset(i as isize), Greeting { text: text }) };
+        }
+        let set = self.allocate(mem::size_of::<ArenaGreetingSet>(), mem::align_of::<ArenaGreetingSet>()) as *mut ArenaGreetingSet;
+        unsafe { ptr::write(set, ArenaGreetingSet { greetings: greetings, number_of_greetings: texts.len() }) };
+        set
+    }
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn createGreetingArena() -> Box<GreetingArena> {
+    stats::called(Export::CreateGreetingArena);
+    Box::new(GreetingArena::new())
+}
+
+/// Example of rendering a string into an arena
+/// The string belongs to the arena, so there's nothing to free here. It gets freed along with the
+/// arena.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn renderGreetingInArena(arena: &mut GreetingArena, name: *const c_char) -> *const c_char {
+    stats::called(Export::RenderGreetingInArena);
+    let name = unsafe { CStr::from_ptr(name).to_bytes() };
+    let parts: [&[u8]; 3] = [b"Hello, ", name, b"!"];
+    arena.allocate_string(&parts)
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn greetInArena(arena: &mut GreetingArena, person: &Person) -> *const c_char {
+    stats::called(Export::GreetInArena);
+    let first_name = unsafe { CStr::from_ptr(person.first_name).to_bytes() };
+    let last_name = unsafe { CStr::from_ptr(person.last_name).to_bytes() };
+    let parts: [&[u8]; 5] = [b"Hello, ", first_name, b" ", last_name, b"!"];
+    arena.allocate_string(&parts)
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn renderGreetingsInArena(arena: &mut GreetingArena) -> *const ArenaGreetingSet {
+    stats::called(Export::RenderGreetingsInArena);
+    let texts = [
+        arena.allocate_string(&["Hello!".as_bytes()]),
+        arena.allocate_string(&["Hello again!".as_bytes()])
+    ];
+    arena.allocate_greeting_set(&texts)
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn dropGreetingArena(_: Box<GreetingArena>) {
+    stats::called(Export::DropGreetingArena);
+    // Dropping the arena drops its chunks, which frees everything that was allocated in it
+}
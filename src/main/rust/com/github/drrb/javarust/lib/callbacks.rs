@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Registering callbacks once, and calling them by handle.
+//
+// When Java passes a callback object to Rust, JNA has to find (or create) a native function
+// pointer for it on every call. Here, Java registers its callback once, and gets a handle back.
+// Rust keeps the function pointer in a table, and Java just passes the handle on later calls.
+
+use std::os::raw::{c_char,c_int};
+use std::sync::RwLock;
+use super::GreetingSet;
+use super::stats::{self, Export};
+
+#[cfg(not(windows))]
+type GreetingCallback = extern "C" fn(*const c_char);
+
+// Windows uses the "stdcall" calling convention for callbacks (see callMeBack)
+#[cfg(windows)]
+type GreetingCallback = extern "stdcall" fn(*const c_char);
+
+type GreetingSetCallback = extern "C" fn(&GreetingSet);
+
+// What we return to Java when it calls back with a handle we don't know about
+const UNKNOWN_HANDLE: c_int = -1;
+
+// A table of registered callbacks. A callback's handle is its index in the table. Unregistering
+// one leaves a gap, which gets reused by the next one registered.
+struct Registry<F> {
+    callbacks: RwLock<Vec<Option<F>>>
+}
+
+impl<F> Registry<F> {
+    const fn new() -> Registry<F> {
+        Registry { callbacks: RwLock::new(Vec::new()) }
+    }
+}
+
+impl<F: Copy> Registry<F> {
+    fn register(&self, callback: F) -> c_int {
+        let mut callbacks = self.callbacks.write().unwrap();
+        match callbacks.iter().position(|slot| slot.is_none()) {
+            Some(handle) => {
+                callbacks[handle] = Some(callback);
+                handle as c_int
+            },
+            None => {
+                callbacks.push(Some(callback));
+                (callbacks.len() - 1) as c_int
+            }
+        }
+    }
+
+    fn get(&self, handle: c_int) -> Option<F> {
+        if handle < 0 {
+            return None;
+        }
+        // Copy the function pointer out, so that we're not holding the lock while Java runs
+        self.callbacks.read().unwrap().get(handle as usize).and_then(|slot| *slot)
+    }
+
+    fn unregister(&self, handle: c_int) {
+        if handle >= 0 {
+            if let Some(slot) = self.callbacks.write().unwrap().get_mut(handle as usize) {
+                *slot = None;
+            }
+        }
+    }
+}
+
+static GREETING_CALLBACKS: Registry<GreetingCallback> = Registry::new();
+static GREETING_SET_CALLBACKS: Registry<GreetingSetCallback> = Registry::new();
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn registerGreetingCallback(callback: GreetingCallback) -> c_int {
+    stats::called(Export::RegisterGreetingCallback);
+    GREETING_CALLBACKS.register(callback)
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn unregisterGreetingCallback(handle: c_int) {
+    stats::called(Export::UnregisterGreetingCallback);
+    GREETING_CALLBACKS.unregister(handle)
+}
+
+/// The same as callMeBack, but with a registered callback
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn callMeBackWith(handle: c_int) -> c_int {
+    stats::called(Export::CallMeBackWith);
+    match GREETING_CALLBACKS.get(handle) {
+        Some(callback) => {
+            super::call_me_back(|greeting| callback(greeting));
+            0
+        },
+        None => UNKNOWN_HANDLE
+    }
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn registerGreetingSetCallback(callback: GreetingSetCallback) -> c_int {
+    stats::called(Export::RegisterGreetingSetCallback);
+    GREETING_SET_CALLBACKS.register(callback)
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn unregisterGreetingSetCallback(handle: c_int) {
+    stats::called(Export::UnregisterGreetingSetCallback);
+    GREETING_SET_CALLBACKS.unregister(handle)
+}
+
+/// The same as sendGreetings, but with a registered callback
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn sendGreetingsWith(handle: c_int) -> c_int {
+    stats::called(Export::SendGreetingsWith);
+    match GREETING_SET_CALLBACKS.get(handle) {
+        Some(callback) => {
+            super::send_greetings(callback);
+            0
+        },
+        None => UNKNOWN_HANDLE
+    }
+}
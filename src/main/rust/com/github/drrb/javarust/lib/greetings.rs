@@ -15,28 +15,73 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
-// Create a library, not an executable binary
-#![crate_type = "dylib"]
+// Create a library, not an executable binary. It's a "cdylib" (a library for other languages to
+// load) rather than a "dylib" (for other Rust code to link against), so that only our extern
+// functions are exported, and so that it can be optimised as a whole (see CompileRustCrates).
+#![crate_type = "cdylib"]
 
 use std::ffi::{CStr,CString};
-use std::str;
 use std::mem;
-use std::os::raw::c_char;
+use std::ptr;
+use std::str;
+use std::slice;
+use std::os::raw::{c_char,c_int};
+
+// The logging module comes first, so that its native_log! macro can be used in the others
+#[macro_use]
+pub mod logging;
+
+// More examples live in their own modules
+pub mod arena;
+pub mod callbacks;
+pub mod lines;
+pub mod packed;
+pub mod sized;
+pub mod stats;
+pub mod stream;
+pub mod workers;
+
+use stats::{Export, Kind};
 
 // GreetingSet corresponds to com.github.drrb.javarust.GreetingSet in Java. It is marked with
 // repr(c), as are all the structs passed back to Java. This makes sure the structs are represented
 // in memory in a way JNA can read them.
 #[repr(C)]
 pub struct GreetingSet {
-    // A struct that includes a pointer to an array of Greetings and a size. JNA will convert this
-    // to two fields: a Greeting.ByReference and an int.
-    greetings: Box<[Greeting]>
+    // A pointer to an array of Greetings, and its size. JNA will convert these to two fields: a
+    // Greeting.ByReference and an int. We own the array, and free it when the set is dropped.
+    greetings: *mut Greeting,
+    number_of_greetings: usize
+}
+
+impl GreetingSet {
+    fn new(greetings: Vec<Greeting>) -> GreetingSet {
+        // Count the set, so that we can tell if it's never freed (see the stats module)
+        stats::allocated(Kind::GreetingSet, mem::size_of::<GreetingSet>());
+        let number_of_greetings = greetings.len();
+        // An empty Rust array doesn't have any memory behind it, but its pointer isn't null (it's
+        // a made-up address). JNA reads the Greeting at any pointer that isn't null, so an empty
+        // set's pointer has to be null, or JNA would read from that made-up address and crash.
+        let greetings = if greetings.is_empty() {
+            ptr::null_mut()
+        } else {
+            // Tell Rust not to free the array when it goes out of scope: we free it in drop
+            Box::into_raw(greetings.into_boxed_slice()) as *mut Greeting
+        };
+        GreetingSet { greetings: greetings, number_of_greetings: number_of_greetings }
+    }
 }
 
 impl Drop for GreetingSet {
     fn drop(&mut self) {
-        // Print a message when we drop the object, so that we know we're not leaking memory
-        println!("Dropping GreetingSet");
+        // Log a message when we drop the object, so that we know we're not leaking memory. We
+        // don't print it, because then every thread freeing greetings would queue up for stdout.
+        native_log!(DEBUG, "Dropping GreetingSet");
+        if !self.greetings.is_null() {
+            // Take back ownership of the array, so that Rust frees it (and the greetings in it)
+            drop(unsafe { Box::from_raw(slice::from_raw_parts_mut(self.greetings, self.number_of_greetings)) });
+        }
+        stats::freed(Kind::GreetingSet, mem::size_of::<GreetingSet>());
     }
 }
 
@@ -54,13 +99,17 @@ pub struct Greeting {
 impl Greeting {
     // A constructor, for convenience
     fn new(string: &str) -> Greeting {
+        stats::allocated(Kind::Greeting, mem::size_of::<Greeting>());
         Greeting { text: to_ptr(string.to_string()) }
     }
 }
 
 impl Drop for Greeting {
     fn drop(&mut self) {
-        println!("Dropping Greeting: {}", to_string(self.text));
+        native_log!(DEBUG, "Dropping Greeting: {}", to_string(self.text));
+        // The greeting owns its text, so free that too
+        drop_string(self.text);
+        stats::freed(Kind::Greeting, mem::size_of::<Greeting>());
     }
 }
 
@@ -79,6 +128,7 @@ pub struct Person {
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern fn printGreeting(name: *const c_char) {
+    stats::called(Export::PrintGreeting);
     // Convert the C string to a Rust one
     let name = to_string(name);
     println!("Hello from Rust, {}", name);
@@ -89,25 +139,93 @@ pub extern fn printGreeting(name: *const c_char) {
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern fn renderGreeting(name: *const c_char) -> *const c_char {
+    // Count the call (see the stats module)
+    stats::called(Export::RenderGreeting);
+    render_greeting(name)
+}
+
+fn render_greeting(name: *const c_char) -> *const c_char {
     let name = to_string(name);
 
     // Convert the Rust string back to a C string so that we can return it
     to_ptr(format!("Hello, {}!", name))
 }
 
+/// Example of returning a string that Java frees when it's done with it
+/// This is the same as renderGreeting, but Java keeps the pointer to the string (as a RustString)
+/// instead of a copy of it. When renderGreeting's string gets copied into a Java String, nothing
+/// ever frees the original. Java passes this one back to dropString instead.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn renderGreetingOwned(name: *const c_char) -> *const c_char {
+    stats::called(Export::RenderGreetingOwned);
+    render_greeting(name)
+}
+
+/// Example of writing into memory owned by Java
+/// Instead of allocating a new string for the greeting, we copy it straight into the buffer we're
+/// given. Like snprintf in C, we return the number of bytes the greeting takes up. If that's more
+/// than the buffer can hold, we don't write anything, and Java can call again with a bigger one.
+/// The strings here are just bytes (UTF-8, with no null character at the end), because we're told
+/// how long they are.
+/// A null buffer, or a capacity of zero or less, has no room for anything (like snprintf(NULL, 0)),
+/// so Java can use that to find out how long the greeting will be. If the greeting would be too
+/// long for its length to fit in an int, we don't write anything, and return -1.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn renderGreetingInto(name: *const u8, name_length: c_int, buffer: *mut u8, capacity: c_int) -> c_int {
+    stats::called(Export::RenderGreetingInto);
+    let name = to_slice(name, name_length);
+    let parts: [&[u8]; 3] = [b"Hello, ", name, b"!"];
+    let length = parts.iter().fold(0, |length, part| length + part.len());
+    if length > c_int::max_value() as usize {
+        return -1;
+    }
+
+    // (Checking the capacity's sign before converting it, because a negative one would become huge)
+    if !buffer.is_null() && capacity > 0 && length <= capacity as usize {
+        let buffer = unsafe { slice::from_raw_parts_mut(buffer, length) };
+        let mut offset = 0;
+        for part in parts.iter() {
+            buffer[offset..offset + part.len()].copy_from_slice(part);
+            offset += part.len();
+        }
+    }
+    length as c_int
+}
+
 /// Example of passing a struct to Rust
 #[no_mangle]
 pub extern fn greet(person: &Person) -> *const c_char {
+    stats::called(Export::Greet);
+    greet_person(person)
+}
+
+fn greet_person(person: &Person) -> *const c_char {
     let first_name = to_string(person.first_name);
     let last_name = to_string(person.last_name);
     to_ptr(format!("Hello, {} {}!", first_name, last_name))
 }
 
+/// Example of passing a struct to Rust, and returning a string that Java frees (see
+/// renderGreetingOwned)
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn greetOwned(person: &Person) -> *const c_char {
+    stats::called(Export::GreetOwned);
+    greet_person(person)
+}
+
 /// Example of returning a struct from Rust by value
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern fn getGreetingByValue() -> Greeting {
-    Greeting::new("Hello from Rust!")
+    stats::called(Export::GetGreetingByValue);
+    let greeting = Greeting::new("Hello from Rust!");
+    // The struct gets copied into Java's memory, so there's nothing of ours to free (and it's
+    // never dropped). Only its text is ours, and that's counted as a string.
+    stats::freed(Kind::Greeting, mem::size_of::<Greeting>());
+    greeting
 }
 
 /// Example of returning a struct from Rust by reference
@@ -117,6 +235,7 @@ pub extern fn getGreetingByValue() -> Greeting {
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern fn getGreetingByReference() -> Box<Greeting> {
+    stats::called(Export::GetGreetingByReference);
     Box::new(Greeting::new("Hello from Rust!"))
 }
 
@@ -127,8 +246,9 @@ pub extern fn getGreetingByReference() -> Box<Greeting> {
 #[cfg(not(windows))]
 #[allow(non_snake_case)]
 pub extern fn callMeBack(callback: extern "C" fn(*const c_char)) { // The function argument here is an "extern" one, so that we can pass it in from Java
+    stats::called(Export::CallMeBack);
     // Call the Java method
-    callback(to_ptr("Hello there!".to_string()));
+    call_me_back(|greeting| callback(greeting));
 }
 
 /// Example of passing a callback (Windows version)
@@ -138,7 +258,15 @@ pub extern fn callMeBack(callback: extern "C" fn(*const c_char)) { // The functi
 #[cfg(windows)]
 #[allow(non_snake_case)]
 pub extern fn callMeBack(callback: extern "stdcall" fn(*const c_char)) {
-    callback(to_ptr("Hello there!".to_string()));
+    stats::called(Export::CallMeBack);
+    call_me_back(|greeting| callback(greeting));
+}
+
+/// What callMeBack does, whichever calling convention the callback uses (see also callMeBackWith)
+fn call_me_back<F: Fn(*const c_char)>(callback: F) {
+    // Keep hold of the string, so that Rust cleans it up after the callback returns
+    let greeting = CString::new("Hello there!").unwrap();
+    callback(greeting.as_ptr());
 }
 
 /// More complicated callback example
@@ -146,12 +274,16 @@ pub extern fn callMeBack(callback: extern "stdcall" fn(*const c_char)) {
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern fn sendGreetings(callback: extern "C" fn(&GreetingSet)) {
+    stats::called(Export::SendGreetings);
+    send_greetings(callback);
+}
+
+/// What sendGreetings does (see also sendGreetingsWith)
+fn send_greetings(callback: extern "C" fn(&GreetingSet)) {
     let greetings = vec![ Greeting::new("Hello!"), Greeting::new("Hello again!") ];
 
-    let set = GreetingSet {
-      // Get a pointer to the vector as an array, so that we can pass it back to Java
-      greetings: greetings.into_boxed_slice()
-    };
+    // Get a pointer to the vector as an array, so that we can pass it back to Java
+    let set = GreetingSet::new(greetings);
     callback(&set); // Let the callback "borrow" the set. Rust will destroy it after calling the callback
 }
 
@@ -159,16 +291,32 @@ pub extern fn sendGreetings(callback: extern "C" fn(&GreetingSet)) {
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern fn renderGreetings() -> Box<GreetingSet> {
+    stats::called(Export::RenderGreetings);
     let greetings = vec![ Greeting::new("Hello!"), Greeting::new("Hello again!") ];
 
-    Box::new(GreetingSet {
-        greetings: greetings.into_boxed_slice()
-    })
+    Box::new(GreetingSet::new(greetings))
+}
+
+/// Example of passing an array of strings to Rust
+/// JNA passes a String[] as a pointer to an array of native strings. Just like with the
+/// GreetingSet, there's no way to tell how long the array is, so the length is passed separately.
+/// Rendering a whole batch of greetings in one call means we only cross from Java to Rust once.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn renderGreetingsFor(names: *const *const c_char, count: c_int) -> Box<GreetingSet> {
+    stats::called(Export::RenderGreetingsFor);
+    let names = to_names(names, count);
+    let greetings: Vec<Greeting> = names.iter()
+        .map(|&name| Greeting::new(&format!("Hello, {}!", to_string(name))))
+        .collect();
+
+    Box::new(GreetingSet::new(greetings))
 }
 
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern fn dropGreeting(_: Box<Greeting>) {
+    stats::called(Export::DropGreeting);
     // Do nothing here. Because we own the Greeting here (we're using a Box) and we're not
     // returning it, Rust will assume we don't want it anymore and clean it up.
 }
@@ -176,22 +324,59 @@ pub extern fn dropGreeting(_: Box<Greeting>) {
 #[no_mangle]
 #[allow(non_snake_case)]
 pub extern fn dropGreetingSet(_: Box<GreetingSet>) {
+    stats::called(Export::DropGreetingSet);
     // Do nothing here. Because we own the GreetingSet here and we're not
     // returning it, Rust will assume we don't want it anymore and clean it up.
 }
 
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn dropString(string: *const c_char) {
+    stats::called(Export::DropString);
+    drop_string(string);
+}
+
 /// Convert a native string to a Rust string
 fn to_string(pointer: *const c_char) -> String {
     let slice = unsafe { CStr::from_ptr(pointer).to_bytes() };
     str::from_utf8(slice).unwrap().to_string()
 }
 
+/// View a native array of a known length as a Rust slice
+fn to_slice<'a, T>(pointer: *const T, length: c_int) -> &'a [T] {
+    if pointer.is_null() || length <= 0 {
+        &[]
+    } else {
+        unsafe { slice::from_raw_parts(pointer, length as usize) }
+    }
+}
+
+/// View a native array of names as a Rust slice.
+///
+/// JNA puts a null pointer after the last string when it passes a String[], so we stop there in
+/// case Java's count is too big. Otherwise, we'd read past the end of the array.
+fn to_names<'a>(names: *const *const c_char, count: c_int) -> &'a [*const c_char] {
+    let names = to_slice(names, count);
+    match names.iter().position(|name| name.is_null()) {
+        Some(end) => &names[..end],
+        None => names
+    }
+}
+
 /// Convert a Rust string to a native string
 fn to_ptr(string: String) -> *const c_char {
     let cs = CString::new(string.as_bytes()).unwrap();
-    let ptr = cs.as_ptr();
+    stats::allocated(Kind::String, cs.as_bytes_with_nul().len());
     // Tell Rust not to clean up the string while we still have a pointer to it.
-    // Otherwise, we'll get a segfault.
-    mem::forget(cs);
-    ptr
+    // Otherwise, we'll get a segfault. It gets cleaned up in drop_string.
+    cs.into_raw()
+}
+
+/// Free a native string that was created by to_ptr
+fn drop_string(pointer: *const c_char) {
+    if !pointer.is_null() {
+        // Take back ownership of the string, so that Rust cleans it up when it goes out of scope
+        let string = unsafe { CString::from_raw(pointer as *mut c_char) };
+        stats::freed(Kind::String, string.as_bytes_with_nul().len());
+    }
 }
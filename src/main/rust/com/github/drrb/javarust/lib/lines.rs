@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Greeting a file of names, one per line, a window at a time.
+//
+// Java maps the file into memory and passes a window of it straight to Rust, along with a buffer
+// to write the greetings into. The names never become Java Strings (or Rust Strings): each line is
+// copied straight from the input into the output between "Hello, " and "!\n".
+
+use std::os::raw::c_int;
+use std::slice;
+use super::to_slice;
+use super::stats::{self, Export};
+
+const HELLO: &'static [u8] = b"Hello, ";
+const END: &'static [u8] = b"!\n";
+
+// LineProgress corresponds to com.github.drrb.javarust.LineProgress in Java. It's returned by
+// value, so there's nothing to free.
+#[repr(C)]
+pub struct LineProgress {
+    // How many bytes of the input were used up (always whole lines)
+    consumed: c_int,
+    // How many bytes of greetings were written to the output
+    produced: c_int,
+    // How many lines were greeted
+    lines: c_int,
+    // If we stopped because the next greeting didn't fit in the output, how big it is. Otherwise,
+    // we stopped because the rest of the input isn't a whole line, and this is 0.
+    needed: c_int
+}
+
+/// Greet each line in the input, writing the greetings into the output until it's full.
+///
+/// Only whole lines are greeted, so a line that runs off the end of the input is left for the next
+/// call (with the next window of the file), unless this is the end of the input. A "\r" at the end
+/// of a line is left out of the greeting.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn renderGreetingLines(input: *const u8, input_length: c_int, end_of_input: c_int,
+                                  output: *mut u8, capacity: c_int) -> LineProgress {
+    stats::called(Export::RenderGreetingLines);
+    let input = to_slice(input, input_length);
+    let output: &mut [u8] = if output.is_null() || capacity <= 0 {
+        &mut []
+    } else {
+        unsafe { slice::from_raw_parts_mut(output, capacity as usize) }
+    };
+    let mut progress = LineProgress { consumed: 0, produced: 0, lines: 0, needed: 0 };
+
+    let mut consumed = 0;
+    let mut produced = 0;
+    while consumed < input.len() {
+        let rest = &input[consumed..];
+        let (line, line_length) = match rest.iter().position(|&b| b == b'\n') {
+            Some(end) => (&rest[..end], end + 1),
+            None if end_of_input != 0 => (rest, rest.len()),
+            None => break
+        };
+        let name = if line.last() == Some(&b'\r') { &line[..line.len() - 1] } else { line };
+
+        let greeting_length = HELLO.len() + name.len() + END.len();
+        if produced + greeting_length > output.len() {
+            progress.needed = greeting_length as c_int;
+            break;
+        }
+        for part in [HELLO, name, END].iter() {
+            output[produced..produced + part.len()].copy_from_slice(part);
+            produced += part.len();
+        }
+        consumed += line_length;
+        progress.lines += 1;
+    }
+
+    progress.consumed = consumed as c_int;
+    progress.produced = produced as c_int;
+    progress
+}
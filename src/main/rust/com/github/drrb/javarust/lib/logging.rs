@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Logging that doesn't block.
+//
+// Printing to stdout takes a process-wide lock and does a blocking write, so every thread that
+// prints waits for every other one. Instead, messages go into a fixed-size ring buffer, and Java
+// drains them in batches (see drainNativeLog, and NativeLog in Java).
+//
+// Writing a message only takes a slot with a compare-and-swap, and formats straight into it, so it
+// doesn't lock or allocate. If the buffer is full (because Java isn't draining it fast enough),
+// the message is dropped and counted rather than waiting. Logging is off until Java turns it on
+// with setNativeLogLevel, and then messages below the level cost one atomic load.
+
+use std::cell::UnsafeCell;
+use std::cmp;
+use std::fmt::{self, Write};
+use std::os::raw::c_int;
+use std::slice;
+use std::sync::Mutex;
+use std::sync::atomic::{AtomicI32, AtomicU64, AtomicUsize, Ordering};
+
+// The levels, from least to most detailed. They match the constants in NativeLog in Java.
+pub const OFF: c_int = 0;
+pub const ERROR: c_int = 1;
+pub const WARN: c_int = 2;
+pub const INFO: c_int = 3;
+pub const DEBUG: c_int = 4;
+pub const TRACE: c_int = 5;
+
+// How many messages the buffer holds (a power of two), and how long each one can be. Longer
+// messages are cut short.
+const SLOTS: usize = 1024;
+const MESSAGE_CAPACITY: usize = 240;
+
+// Each drained message is written to Java's buffer as its level and its length (both native
+// ints), then its UTF-8 bytes
+const HEADER_SIZE: usize = 8;
+
+/// Log a message (formatted like println!) at a level, e.g. native_log!(DEBUG, "Dropping {}", x).
+///
+/// The arguments aren't evaluated at all unless the level is turned on.
+macro_rules! native_log {
+    ($level:ident, $($arg:tt)*) => {
+        if $crate::logging::enabled($crate::logging::$level) {
+            $crate::logging::log($crate::logging::$level, format_args!($($arg)*));
+        }
+    }
+}
+
+static LEVEL: AtomicI32 = AtomicI32::new(OFF);
+
+// A slot in the ring buffer. This is Dmitry Vyukov's bounded queue: each slot's sequence number
+// says whether it's waiting to be written or read, and for which trip around the buffer. We store
+// the sequence number minus the slot's index, so that they can all start at zero.
+struct Slot {
+    sequence: AtomicUsize,
+    level: UnsafeCell<c_int>,
+    length: UnsafeCell<usize>,
+    message: UnsafeCell<[u8; MESSAGE_CAPACITY]>
+}
+
+struct Ring {
+    slots: [Slot; SLOTS],
+    // Where the next message will be written and read
+    tail: AtomicUsize,
+    head: AtomicUsize,
+    // How many messages didn't fit
+    dropped: AtomicU64
+}
+
+// The slots' contents are only touched by the thread that claimed them (see log and drain)
+unsafe impl Sync for Ring {}
+
+const EMPTY_SLOT: Slot = Slot {
+    sequence: AtomicUsize::new(0),
+    level: UnsafeCell::new(OFF),
+    length: UnsafeCell::new(0),
+    message: UnsafeCell::new([0; MESSAGE_CAPACITY])
+};
+
+static RING: Ring = Ring {
+    slots: [EMPTY_SLOT; SLOTS],
+    tail: AtomicUsize::new(0),
+    head: AtomicUsize::new(0),
+    dropped: AtomicU64::new(0)
+};
+
+// Only one thread drains the buffer at a time. Writers never wait for this.
+static DRAINING: Mutex<()> = Mutex::new(());
+
+impl Slot {
+    fn sequence(&self, index: usize) -> usize {
+        self.sequence.load(Ordering::Acquire).wrapping_add(index)
+    }
+
+    fn set_sequence(&self, index: usize, sequence: usize) {
+        self.sequence.store(sequence.wrapping_sub(index), Ordering::Release);
+    }
+}
+
+/// Whether messages at this level are being kept
+pub fn enabled(level: c_int) -> bool {
+    level <= LEVEL.load(Ordering::Relaxed)
+}
+
+/// Put a message in the buffer (use native_log! instead, so that the arguments are only evaluated
+/// when the level's on)
+pub fn log(level: c_int, message: fmt::Arguments) {
+    let mut position = RING.tail.load(Ordering::Relaxed);
+    loop {
+        let index = position % SLOTS;
+        let slot = &RING.slots[index];
+        let sequence = slot.sequence(index);
+        if sequence == position {
+            // The slot is free: try to claim it
+            match RING.tail.compare_exchange_weak(position, position + 1, Ordering::Relaxed, Ordering::Relaxed) {
+                Ok(_) => {
+                    let mut writer = SlotWriter { message: unsafe { &mut *slot.message.get() }, length: 0 };
+                    // SlotWriter never fails: it cuts the message short instead
+                    let _ = writer.write_fmt(message);
+                    unsafe {
+                        *slot.level.get() = level;
+                        *slot.length.get() = writer.length;
+                    }
+                    // Let the reader have it
+                    slot.set_sequence(index, position + 1);
+                    return;
+                },
+                Err(current) => position = current
+            }
+        } else if (sequence.wrapping_sub(position) as isize) < 0 {
+            // The slot still has last time around's message in it, so the buffer's full
+            RING.dropped.fetch_add(1, Ordering::Relaxed);
+            return;
+        } else {
+            // Another thread got this slot first
+            position = RING.tail.load(Ordering::Relaxed);
+        }
+    }
+}
+
+/// Formats into a slot's message, cutting it short if it doesn't fit
+struct SlotWriter<'a> {
+    message: &'a mut [u8; MESSAGE_CAPACITY],
+    length: usize
+}
+
+impl<'a> Write for SlotWriter<'a> {
+    fn write_str(&mut self, string: &str) -> fmt::Result {
+        let room = MESSAGE_CAPACITY - self.length;
+        let mut length = cmp::min(room, string.len());
+        // Don't cut a character in half
+        while !string.is_char_boundary(length) {
+            length -= 1;
+        }
+        self.message[self.length..self.length + length].copy_from_slice(&string.as_bytes()[..length]);
+        self.length += length;
+        Ok(())
+    }
+}
+
+/// Turn logging on (or off, with 0) for messages at or below a level
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn setNativeLogLevel(level: c_int) {
+    LEVEL.store(level, Ordering::Relaxed);
+}
+
+/// Move as many messages as fit from the buffer into Java's buffer, oldest first.
+///
+/// Each message is written as its level and length (native ints), then its bytes. Returns how many
+/// bytes were written.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn drainNativeLog(buffer: *mut u8, capacity: c_int) -> c_int {
+    if buffer.is_null() || capacity <= 0 {
+        return 0;
+    }
+    let buffer = unsafe { slice::from_raw_parts_mut(buffer, capacity as usize) };
+    let _draining = DRAINING.lock().unwrap_or_else(|poisoned| poisoned.into_inner());
+
+    let mut written = 0;
+    let mut position = RING.head.load(Ordering::Relaxed);
+    loop {
+        let index = position % SLOTS;
+        let slot = &RING.slots[index];
+        if slot.sequence(index) != position + 1 {
+            // Nothing (more) has been written
+            break;
+        }
+        let (level, length) = unsafe { (*slot.level.get(), *slot.length.get()) };
+        if written + HEADER_SIZE + length > buffer.len() {
+            // Leave it for next time
+            break;
+        }
+        write_int(&mut buffer[written..], level);
+        write_int(&mut buffer[written + 4..], length as c_int);
+        let message = unsafe { &*slot.message.get() };
+        buffer[written + HEADER_SIZE..written + HEADER_SIZE + length].copy_from_slice(&message[..length]);
+        written += HEADER_SIZE + length;
+
+        // Give the slot back to the writers, for their next time around
+        slot.set_sequence(index, position + SLOTS);
+        position += 1;
+    }
+    RING.head.store(position, Ordering::Relaxed);
+    written as c_int
+}
+
+/// How many messages have been dropped because the buffer was full
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn getNativeLogDropped() -> u64 {
+    RING.dropped.load(Ordering::Relaxed)
+}
+
+fn write_int(buffer: &mut [u8], value: c_int) {
+    buffer[..4].copy_from_slice(&value.to_ne_bytes());
+}
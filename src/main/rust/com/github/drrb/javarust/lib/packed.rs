@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Greetings for columns of people, packed into flat buffers.
+//
+// renderGreetingsFor and friends take an array of pointers to strings, and give back a struct (and
+// an allocation) for every greeting. Here, each column of names is one contiguous region of UTF-8
+// bytes, with an array of offsets saying where each name starts and ends, like an Arrow string
+// column: name i is bytes[offsets[i]..offsets[i + 1]], so there are count + 1 offsets. The
+// greetings come back in the same layout, with the offsets and the text in one allocation.
+
+use std::mem;
+use std::os::raw::c_int;
+use std::slice;
+use super::to_slice;
+use super::stats::{self, Export, Kind};
+
+const HELLO: &'static [u8] = b"Hello, ";
+
+// PackedGreetings corresponds to com.github.drrb.javarust.PackedGreetings in Java
+#[repr(C)]
+pub struct PackedGreetings {
+    // The count + 1 offsets of the greetings in the text. This is also the start of the allocation.
+    offsets: *const c_int,
+    // The UTF-8 bytes of all the greetings, back to back, with no null characters. This points
+    // into the same allocation, just after the offsets.
+    text: *const u8,
+    count: c_int,
+    text_length: c_int,
+    // How big the allocation is (in c_ints), so that we can free it
+    allocation_length: c_int
+}
+
+impl Drop for PackedGreetings {
+    fn drop(&mut self) {
+        // Take back ownership of the allocation, so that Rust cleans it up
+        drop(unsafe { Box::from_raw(slice::from_raw_parts_mut(self.offsets as *mut c_int, self.allocation_length as usize)) });
+        stats::freed(Kind::GreetingSet, allocation_size(self.allocation_length as usize));
+    }
+}
+
+/// A column of names: the bytes, and the offsets of each name in them
+struct Column<'a> {
+    bytes: &'a [u8],
+    offsets: &'a [c_int]
+}
+
+impl<'a> Column<'a> {
+    fn new(bytes: *const u8, offsets: &'a [c_int]) -> Column<'a> {
+        let length = offsets.last().map_or(0, |&end| end);
+        Column { bytes: to_slice(bytes, length), offsets: offsets }
+    }
+
+    fn get(&self, index: usize) -> &'a [u8] {
+        &self.bytes[self.offsets[index] as usize..self.offsets[index + 1] as usize]
+    }
+}
+
+/// How long the text of the greetings will be, and how many c_ints the allocation needs for the
+/// offsets and the text, or None if either won't fit in a c_int (which is what Java reads them
+/// as). Each greeting is the two names plus 9 bytes, so this can happen even when the names fit.
+///
+/// This only looks at the offsets: the names are all back to back, so together they're as long
+/// as the distance from the first offset to the last.
+fn packed_lengths(first_name_offsets: &[c_int], last_name_offsets: &[c_int], count: usize) -> Option<(usize, usize)> {
+    fn names_length(offsets: &[c_int]) -> u64 {
+        match (offsets.first(), offsets.last()) {
+            (Some(&start), Some(&end)) if end > start => (end as i64 - start as i64) as u64,
+            _ => 0
+        }
+    }
+    // "Hello, " + first name + " " + last name + "!"
+    let overhead = (HELLO.len() + 2) as u64;
+    let text_length = count as u64 * overhead + names_length(first_name_offsets) + names_length(last_name_offsets);
+    let int_size = mem::size_of::<c_int>() as u64;
+    let allocation_length = (count as u64 + 1) + (text_length + int_size - 1) / int_size;
+    if text_length > c_int::max_value() as u64 || allocation_length > c_int::max_value() as u64 {
+        None
+    } else {
+        Some((text_length as usize, allocation_length as usize))
+    }
+}
+
+/// Greet a column of people (like greet does for one Person), returning all the greetings in one
+/// packed buffer.
+///
+/// This works on bytes all the way through, so the names are never checked or decoded as UTF-8.
+/// If they're valid going in, the greetings are valid coming out.
+///
+/// Returns null (None) if the greetings would be too big to describe with c_int lengths and
+/// offsets (more than 2 GiB). Nothing is allocated in that case.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn greetPacked(first_names: *const u8, first_name_offsets: *const c_int,
+                          last_names: *const u8, last_name_offsets: *const c_int,
+                          count: c_int) -> Option<Box<PackedGreetings>> {
+    stats::called(Export::GreetPacked);
+    let count = if count < 0 { 0 } else { count };
+    // There are count + 1 offsets, so that many have to fit in a c_int too
+    if count == c_int::max_value() {
+        return too_big(count as usize);
+    }
+    let first_name_offsets = to_slice(first_name_offsets, count + 1);
+    let last_name_offsets = to_slice(last_name_offsets, count + 1);
+    let count = count as usize;
+
+    // Work out how big everything is first, so that we only allocate once
+    let (text_length, allocation_length) = match packed_lengths(first_name_offsets, last_name_offsets, count) {
+        Some(lengths) => lengths,
+        None => return too_big(count)
+    };
+    let first_names = Column::new(first_names, first_name_offsets);
+    let last_names = Column::new(last_names, last_name_offsets);
+    let offsets_length = count + 1;
+
+    // Allocating c_ints (rather than bytes) keeps the offsets aligned
+    let mut allocation = vec![0 as c_int; allocation_length].into_boxed_slice();
+    {
+        let (offsets, text) = allocation.split_at_mut(offsets_length);
+        let text = unsafe { slice::from_raw_parts_mut(text.as_mut_ptr() as *mut u8, text_length) };
+        let mut end = 0;
+        for i in 0..count {
+            offsets[i] = end as c_int;
+            let parts: [&[u8]; 5] = [HELLO, first_names.get(i), b" ", last_names.get(i), b"!"];
+            for part in parts.iter() {
+                text[end..end + part.len()].copy_from_slice(part);
+                end += part.len();
+            }
+        }
+        offsets[count] = end as c_int;
+    }
+
+    // Tell Rust not to clean up the allocation while Java has pointers into it. It gets cleaned
+    // up when the PackedGreetings is dropped.
+    let offsets = Box::into_raw(allocation) as *const c_int;
+    stats::allocated(Kind::GreetingSet, allocation_size(allocation_length));
+    Some(Box::new(PackedGreetings {
+        offsets: offsets,
+        text: unsafe { offsets.offset(offsets_length as isize) } as *const u8,
+        count: count as c_int,
+        text_length: text_length as c_int,
+        allocation_length: allocation_length as c_int
+    }))
+}
+
+fn too_big(count: usize) -> Option<Box<PackedGreetings>> {
+    native_log!(WARN, "Not greeting {} packed people: the greetings would be more than {} bytes", count, c_int::max_value());
+    None
+}
+
+/// How many bytes a PackedGreetings takes up, including its allocation (for the stats module)
+fn allocation_size(allocation_length: usize) -> usize {
+    mem::size_of::<PackedGreetings>() + allocation_length * mem::size_of::<c_int>()
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn dropPackedGreetings(_: Box<PackedGreetings>) {
+    stats::called(Export::DropPackedGreetings);
+    // Rust cleans up the greetings (and their allocation) when they go out of scope
+}
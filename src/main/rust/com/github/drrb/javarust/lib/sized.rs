@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Greetings that come with their length.
+//
+// A Greeting's text is a null-terminated string, so every time Java reads one, it has to scan
+// for the null character before it can decode it. A SizedGreeting says how long its text is, so
+// Java can copy the bytes straight out (and decode them as UTF-8).
+
+use std::mem;
+use std::os::raw::{c_char,c_int};
+use std::slice;
+use super::{to_names, to_string};
+use super::stats::{self, Export, Kind};
+
+// SizedGreeting corresponds to com.github.drrb.javarust.SizedGreeting in Java
+#[repr(C)]
+pub struct SizedGreeting {
+    // The UTF-8 bytes of the greeting. There's no null character at the end.
+    text: *const u8,
+    // How many bytes there are. It's a c_int, because it's an int in Java.
+    length: c_int
+}
+
+impl SizedGreeting {
+    fn new(string: String) -> SizedGreeting {
+        let bytes = string.into_bytes().into_boxed_slice();
+        let length = bytes.len() as c_int;
+        // Its text is counted as a string (see the stats module)
+        stats::allocated(Kind::String, bytes.len());
+        // Tell Rust not to clean up the bytes while we still have a pointer to them. They get
+        // cleaned up when the greeting is dropped.
+        let text = Box::into_raw(bytes) as *const u8;
+        SizedGreeting { text: text, length: length }
+    }
+}
+
+impl Drop for SizedGreeting {
+    fn drop(&mut self) {
+        // Take back ownership of the bytes, so that Rust cleans them up
+        drop(unsafe { Box::from_raw(slice::from_raw_parts_mut(self.text as *mut u8, self.length as usize)) });
+        stats::freed(Kind::String, self.length as usize);
+    }
+}
+
+// SizedGreetingSet corresponds to com.github.drrb.javarust.SizedGreetingSet in Java. It's just like
+// a GreetingSet.
+#[repr(C)]
+pub struct SizedGreetingSet {
+    greetings: Box<[SizedGreeting]>
+}
+
+impl Drop for SizedGreetingSet {
+    fn drop(&mut self) {
+        stats::freed(Kind::GreetingSet, mem::size_of::<SizedGreetingSet>());
+    }
+}
+
+/// Like renderGreetingsFor, but with the length of each greeting included
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn renderSizedGreetingsFor(names: *const *const c_char, count: c_int) -> Box<SizedGreetingSet> {
+    stats::called(Export::RenderSizedGreetingsFor);
+    let names = to_names(names, count);
+    let greetings: Vec<SizedGreeting> = names.iter()
+        .map(|&name| SizedGreeting::new(format!("Hello, {}!", to_string(name))))
+        .collect();
+
+    stats::allocated(Kind::GreetingSet, mem::size_of::<SizedGreetingSet>());
+    Box::new(SizedGreetingSet {
+        greetings: greetings.into_boxed_slice()
+    })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn dropSizedGreetingSet(_: Box<SizedGreetingSet>) {
+    stats::called(Export::DropSizedGreetingSet);
+    // Rust cleans up the set (and each greeting in it) when it goes out of scope
+}
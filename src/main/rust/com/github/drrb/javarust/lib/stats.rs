@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Counting what the library allocates and frees, and how often each function is called.
+//
+// The counters are plain atomics that only ever go up, so updating them never takes a lock, and
+// doesn't need any ordering with anything else (they're "Relaxed"). Java reads them with
+// getNativeStats and getNativeCallCounts, e.g. to publish them over JMX. Something allocated but
+// never freed shows up as a gap between the two counts that keeps growing.
+
+use std::os::raw::{c_char,c_int};
+use std::sync::atomic::{AtomicU64, Ordering};
+
+// What we count allocations of
+#[derive(Clone, Copy)]
+pub enum Kind {
+    // Greeting structs
+    Greeting,
+    // Sets of greetings (GreetingSet, SizedGreetingSet, PackedGreetings)
+    GreetingSet,
+    // Strings (and greeting text) handed to Java
+    String
+}
+
+const ZERO: AtomicU64 = AtomicU64::new(0);
+
+// Allocated and freed counts for each Kind, and the bytes allocated and freed
+static ALLOCATED: [AtomicU64; 3] = [ZERO; 3];
+static FREED: [AtomicU64; 3] = [ZERO; 3];
+static BYTES_ALLOCATED: AtomicU64 = ZERO;
+static BYTES_FREED: AtomicU64 = ZERO;
+
+// Declare the exported functions we count calls to: an Export for each one, and its name
+macro_rules! exports {
+    ($($export:ident => $name:expr),*) => {
+        #[derive(Clone, Copy)]
+        pub enum Export { $($export),* }
+
+        // The names are null-terminated, so that we can hand them straight to Java
+        const EXPORT_NAMES: &'static [&'static str] = &[$(concat!($name, "\0")),*];
+    }
+}
+
+exports! {
+    PrintGreeting => "printGreeting",
+    RenderGreeting => "renderGreeting",
+    RenderGreetingOwned => "renderGreetingOwned",
+    RenderGreetingInto => "renderGreetingInto",
+    RenderGreetingLines => "renderGreetingLines",
+    Greet => "greet",
+    GreetOwned => "greetOwned",
+    GreetPacked => "greetPacked",
+    GetGreetingByValue => "getGreetingByValue",
+    GetGreetingByReference => "getGreetingByReference",
+    RenderGreetings => "renderGreetings",
+    RenderGreetingsFor => "renderGreetingsFor",
+    RenderSizedGreetingsFor => "renderSizedGreetingsFor",
+    CallMeBack => "callMeBack",
+    SendGreetings => "sendGreetings",
+    RegisterGreetingCallback => "registerGreetingCallback",
+    UnregisterGreetingCallback => "unregisterGreetingCallback",
+    CallMeBackWith => "callMeBackWith",
+    RegisterGreetingSetCallback => "registerGreetingSetCallback",
+    UnregisterGreetingSetCallback => "unregisterGreetingSetCallback",
+    SendGreetingsWith => "sendGreetingsWith",
+    CreateGreetingArena => "createGreetingArena",
+    RenderGreetingInArena => "renderGreetingInArena",
+    GreetInArena => "greetInArena",
+    RenderGreetingsInArena => "renderGreetingsInArena",
+    OpenGreetingStream => "openGreetingStream",
+    PumpGreetingStream => "pumpGreetingStream",
+    CreateGreetingWorkers => "createGreetingWorkers",
+    SubmitGreeting => "submitGreeting",
+    DropGreeting => "dropGreeting",
+    DropGreetingSet => "dropGreetingSet",
+    DropSizedGreetingSet => "dropSizedGreetingSet",
+    DropPackedGreetings => "dropPackedGreetings",
+    DropString => "dropString",
+    DropGreetingArena => "dropGreetingArena",
+    DropGreetingStream => "dropGreetingStream",
+    DropGreetingWorkers => "dropGreetingWorkers"
+}
+
+const NUMBER_OF_EXPORTS: usize = EXPORT_NAMES.len();
+
+static CALLS: [AtomicU64; NUMBER_OF_EXPORTS] = [ZERO; NUMBER_OF_EXPORTS];
+
+/// Count a call to an exported function
+pub fn called(export: Export) {
+    CALLS[export as usize].fetch_add(1, Ordering::Relaxed);
+}
+
+/// Count an allocation of something we hand to Java
+pub fn allocated(kind: Kind, bytes: usize) {
+    ALLOCATED[kind as usize].fetch_add(1, Ordering::Relaxed);
+    BYTES_ALLOCATED.fetch_add(bytes as u64, Ordering::Relaxed);
+}
+
+/// Count something we handed to Java being freed
+pub fn freed(kind: Kind, bytes: usize) {
+    FREED[kind as usize].fetch_add(1, Ordering::Relaxed);
+    BYTES_FREED.fetch_add(bytes as u64, Ordering::Relaxed);
+}
+
+// NativeStats corresponds to com.github.drrb.javarust.NativeStats in Java. It's returned by value,
+// so there's nothing to free.
+#[repr(C)]
+pub struct NativeStats {
+    greetings_allocated: u64,
+    greetings_freed: u64,
+    greeting_sets_allocated: u64,
+    greeting_sets_freed: u64,
+    strings_allocated: u64,
+    strings_freed: u64,
+    bytes_allocated: u64,
+    bytes_freed: u64,
+    // Bytes allocated but not freed yet
+    live_bytes: u64
+}
+
+/// A snapshot of the allocation counters.
+///
+/// The counters are read one at a time while other threads might be updating them, so they won't
+/// always add up exactly. E.g. a string freed just after we read the allocated count might be
+/// counted as freed but not allocated.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn getNativeStats() -> NativeStats {
+    let count = |counters: &[AtomicU64; 3], kind: Kind| counters[kind as usize].load(Ordering::Relaxed);
+    let bytes_freed = BYTES_FREED.load(Ordering::Relaxed);
+    let bytes_allocated = BYTES_ALLOCATED.load(Ordering::Relaxed);
+    NativeStats {
+        greetings_freed: count(&FREED, Kind::Greeting),
+        greetings_allocated: count(&ALLOCATED, Kind::Greeting),
+        greeting_sets_freed: count(&FREED, Kind::GreetingSet),
+        greeting_sets_allocated: count(&ALLOCATED, Kind::GreetingSet),
+        strings_freed: count(&FREED, Kind::String),
+        strings_allocated: count(&ALLOCATED, Kind::String),
+        bytes_allocated: bytes_allocated,
+        bytes_freed: bytes_freed,
+        live_bytes: bytes_allocated.saturating_sub(bytes_freed)
+    }
+}
+
+/// Copy the number of calls to each exported function into Java's array.
+///
+/// Returns how many exported functions there are, so that Java can tell if its array was big
+/// enough. The names are from getNativeExportName, in the same order.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn getNativeCallCounts(counts: *mut i64, capacity: c_int) -> c_int {
+    if !counts.is_null() {
+        for (i, calls) in CALLS.iter().take(capacity.max(0) as usize).enumerate() {
+            unsafe { *counts.offset(i as isize) = calls.load(Ordering::Relaxed) as i64 };
+        }
+    }
+    NUMBER_OF_EXPORTS as c_int
+}
+
+/// The name of an exported function we count calls to, or null if there's no such index.
+///
+/// The names are static, so Java mustn't free them.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn getNativeExportName(index: c_int) -> *const c_char {
+    if index < 0 || index as usize >= NUMBER_OF_EXPORTS {
+        return 0 as *const c_char;
+    }
+    EXPORT_NAMES[index as usize].as_ptr() as *const c_char
+}
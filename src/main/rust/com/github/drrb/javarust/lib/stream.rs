@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Streaming greetings back to Java a chunk at a time.
+//
+// sendGreetings builds a whole GreetingSet before passing it to Java. For lots of greetings, that
+// means holding all of them in memory at once. A GreetingStream instead renders a fixed number of
+// greetings at a time, and passes each chunk to a Java callback. The memory for a chunk is reused
+// for the next one, so the memory used stays the same however many greetings there are.
+//
+// The callback's return value tells Rust whether to carry on, pause (return to Java, so that Java
+// can pump the stream again later), or cancel the stream.
+
+use std::ffi::{CStr,CString};
+use std::os::raw::{c_char,c_int};
+use super::to_names;
+use super::stats::{self, Export};
+
+// What the callback can tell us to do next (anything else cancels the stream)
+const CONTINUE: c_int = 0;
+const PAUSE: c_int = 1;
+
+// What pumpGreetingStream tells Java happened
+const FINISHED: c_int = 0;
+const PAUSED: c_int = 1;
+const CANCELLED: c_int = 2;
+
+// ChunkGreeting has the same layout as Greeting, but it doesn't own its text. The text belongs to
+// the stream, and gets reused for the next chunk.
+#[repr(C)]
+struct ChunkGreeting {
+    text: *const c_char
+}
+
+// GreetingChunk has the same layout as GreetingSet (so corresponds to
+// com.github.drrb.javarust.GreetingSet in Java), but it's only borrowed by Java for as long as
+// the callback is running.
+#[repr(C)]
+pub struct GreetingChunk {
+    greetings: *const ChunkGreeting,
+    number_of_greetings: usize
+}
+
+pub struct GreetingStream {
+    names: Vec<CString>,
+    next: usize,
+    chunk_size: usize,
+    cancelled: bool,
+    // These get reused for each chunk
+    text: Vec<u8>,
+    offsets: Vec<usize>,
+    greetings: Vec<ChunkGreeting>
+}
+
+impl GreetingStream {
+    // Render the next chunk of greetings into the stream's buffers
+    fn next_chunk(&mut self) -> GreetingChunk {
+        let end = ::std::cmp::min(self.next + self.chunk_size, self.names.len());
+        self.text.clear();
+        self.offsets.clear();
+        for name in &self.names[self.next..end] {
+            self.offsets.push(self.text.len());
+            self.text.extend_from_slice(b"Hello, ");
+            self.text.extend_from_slice(name.as_bytes());
+            self.text.extend_from_slice(b"!\0");
+        }
+        self.next = end;
+
+        // Only point into the text once we've finished adding to it (it might move while it grows)
+        self.greetings.clear();
+        for &offset in &self.offsets {
+            self.greetings.push(ChunkGreeting { text: self.text[offset..].as_ptr() as *const c_char });
+        }
+        GreetingChunk { greetings: self.greetings.as_ptr(), number_of_greetings: self.greetings.len() }
+    }
+}
+
+/// Start a stream of greetings for some names
+/// The names get copied, so Java doesn't need to keep them around.
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn openGreetingStream(names: *const *const c_char, count: c_int, chunk_size: c_int) -> Box<GreetingStream> {
+    stats::called(Export::OpenGreetingStream);
+    let names = to_names(names, count).iter()
+        .map(|&name| unsafe { CStr::from_ptr(name) }.to_owned())
+        .collect();
+    let chunk_size = if chunk_size < 1 { 1 } else { chunk_size as usize };
+    Box::new(GreetingStream {
+        names: names,
+        next: 0,
+        chunk_size: chunk_size,
+        cancelled: false,
+        text: Vec::new(),
+        offsets: Vec::with_capacity(chunk_size),
+        greetings: Vec::with_capacity(chunk_size)
+    })
+}
+
+/// Pass greetings to the callback, a chunk at a time, until the stream is finished or the callback
+/// says to stop
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn pumpGreetingStream(stream: &mut GreetingStream, callback: extern "C" fn(&GreetingChunk) -> c_int) -> c_int {
+    stats::called(Export::PumpGreetingStream);
+    while !stream.cancelled && stream.next < stream.names.len() {
+        let chunk = stream.next_chunk();
+        match callback(&chunk) {
+            CONTINUE => {},
+            PAUSE => return PAUSED,
+            _ => stream.cancelled = true
+        }
+    }
+    if stream.cancelled { CANCELLED } else { FINISHED }
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn dropGreetingStream(_: Box<GreetingStream>) {
+    stats::called(Export::DropGreetingStream);
+    // Rust cleans up the stream (and its buffers) when it goes out of scope
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Rendering greetings on a pool of Rust threads, so that Java doesn't have to wait for them.
+//
+// Java submits a name along with an id, and gets control back straight away. One of the worker
+// threads picks the name up from a queue, renders the greeting, and passes it (and the id) to a
+// Java callback, which completes whatever was waiting for it.
+//
+// The queue has a fixed size. When it's full, submitGreeting doesn't wait for room: it tells Java,
+// and Java decides what to do about it (that's the backpressure). Dropping the workers lets them
+// finish what's already in the queue, and waits for them to exit.
+
+use std::ffi::{CStr,CString};
+use std::os::raw::{c_char,c_int};
+use std::ptr;
+use std::sync::{Arc,Mutex};
+use std::sync::mpsc::{sync_channel,Receiver,SyncSender,TrySendError};
+use std::thread::{self,JoinHandle};
+use super::stats::{self, Export};
+
+// What submitGreeting tells Java happened
+const SUBMITTED: c_int = 0;
+const QUEUE_FULL: c_int = 1;
+const SHUT_DOWN: c_int = 2;
+
+// The id we call back with when a worker thread is about to exit. Java uses this to detach the
+// thread from the JVM (it stays attached between callbacks otherwise).
+const WORKER_EXITING: i64 = -1;
+
+// Called (on a worker thread) with a job's id and its greeting. The greeting is freed when the
+// callback returns, so Java needs to copy it (JNA does this when it converts it to a String).
+type CompletionCallback = extern "C" fn(i64, *const c_char);
+
+struct Job {
+    id: i64,
+    // Our own copy of the name, because Java frees its one as soon as submitGreeting returns
+    name: CString
+}
+
+pub struct GreetingWorkers {
+    // This is only an Option so that we can close the queue (by dropping it) before waiting for
+    // the threads to exit
+    queue: Option<SyncSender<Job>>,
+    threads: Vec<JoinHandle<()>>
+}
+
+impl Drop for GreetingWorkers {
+    fn drop(&mut self) {
+        // Once the queue is closed, the workers stop when they've emptied it
+        self.queue.take();
+        for thread in self.threads.drain(..) {
+            // A worker only fails to join if it panicked, and there's nothing more we can do then
+            let _ = thread.join();
+        }
+    }
+}
+
+fn work(jobs: Arc<Mutex<Receiver<Job>>>, callback: CompletionCallback) {
+    loop {
+        // A Receiver can't be shared between threads on its own, so the workers take turns
+        // waiting on it. The lock is released at the end of this statement, before the job is
+        // rendered, so the other workers can pick up jobs in the meantime.
+        let job = jobs.lock().unwrap().recv();
+        match job {
+            Ok(job) => {
+                let greeting = render(&job.name);
+                callback(job.id, greeting.as_ptr());
+            },
+            // The queue has been closed, and there's nothing left in it
+            Err(_) => break
+        }
+    }
+    callback(WORKER_EXITING, ptr::null());
+}
+
+fn render(name: &CStr) -> CString {
+    let name = name.to_bytes();
+    let mut greeting = Vec::with_capacity(name.len() + 8);
+    greeting.extend_from_slice(b"Hello, ");
+    greeting.extend_from_slice(name);
+    greeting.extend_from_slice(b"!");
+    // The name came from a C string, so it can't contain a null character
+    CString::new(greeting).unwrap()
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn createGreetingWorkers(number_of_threads: c_int, queue_capacity: c_int, callback: CompletionCallback) -> Box<GreetingWorkers> {
+    stats::called(Export::CreateGreetingWorkers);
+    let (queue, jobs) = sync_channel(queue_capacity as usize);
+    let jobs = Arc::new(Mutex::new(jobs));
+    let threads = (0..number_of_threads).map(|number| {
+        let jobs = jobs.clone();
+        thread::Builder::new()
+            .name(format!("greetings-worker-{}", number))
+            .spawn(move || work(jobs, callback))
+            .unwrap()
+    }).collect();
+    Box::new(GreetingWorkers { queue: Some(queue), threads: threads })
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn submitGreeting(workers: &GreetingWorkers, id: i64, name: *const c_char) -> c_int {
+    stats::called(Export::SubmitGreeting);
+    let job = Job { id: id, name: unsafe { CStr::from_ptr(name) }.to_owned() };
+    match workers.queue.as_ref().map(|queue| queue.try_send(job)) {
+        Some(Ok(())) => SUBMITTED,
+        Some(Err(TrySendError::Full(_))) => QUEUE_FULL,
+        // All of the workers have gone (they'd only do that if they panicked)
+        _ => SHUT_DOWN
+    }
+}
+
+#[no_mangle]
+#[allow(non_snake_case)]
+pub extern fn dropGreetingWorkers(_: Box<GreetingWorkers>) {
+    stats::called(Export::DropGreetingWorkers);
+    // Dropping the workers waits for them to finish the queue and exit (see GreetingWorkers' Drop)
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.test.MethodPrintingRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.github.drrb.javarust.test.Matchers.is;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThat;
+
+public class BatchGreeterTest {
+
+    @Rule
+    public final MethodPrintingRule printer = new MethodPrintingRule();
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldGreetEveryLineInAFile() throws IOException {
+        Path names = write("John\nJane\nZoë\n");
+        Path greetings = folder.getRoot().toPath().resolve("greetings.txt");
+
+        BatchGreeter.Report report = new BatchGreeter(Greetings.INSTANCE).greetLines(names, greetings);
+
+        assertThat(read(greetings), is("Hello, John!\nHello, Jane!\nHello, Zoë!\n"));
+        assertThat(report.getLines(), is(3L));
+        assertThat(report.getBytesOut(), is(Files.size(greetings)));
+    }
+
+    @Test
+    public void shouldGreetLinesThatCrossWindowsAndOutgrowTheBuffers() throws IOException {
+        // Tiny windows and buffers, so that lines run off the end of windows,
+        // some lines don't fit in a window at all, and some greetings don't
+        // fit in the output buffer
+        Path names = write("John\r\nJane\nA Very Long Name Indeed\nBob");
+        Path greetings = folder.getRoot().toPath().resolve("greetings.txt");
+
+        BatchGreeter.Report report = new BatchGreeter(Greetings.INSTANCE, 8, 16).greetLines(names, greetings);
+
+        assertThat(read(greetings), is("Hello, John!\nHello, Jane!\nHello, A Very Long Name Indeed!\nHello, Bob!\n"));
+        assertThat(report.getLines(), is(4L));
+    }
+
+    @Test
+    public void shouldGreetAnEmptyFile() throws IOException {
+        Path greetings = folder.getRoot().toPath().resolve("greetings.txt");
+
+        BatchGreeter.Report report = new BatchGreeter(Greetings.INSTANCE).greetLines(write(""), greetings);
+
+        assertThat(read(greetings), is(""));
+        assertThat(report.getLines(), is(0L));
+    }
+
+    private Path write(String contents) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, contents.getBytes(UTF_8));
+        return file;
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), UTF_8);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.test.MethodPrintingRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static com.github.drrb.javarust.test.Matchers.is;
+import static com.github.drrb.javarust.test.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+public class CachingGreetingsTest {
+
+    @Rule
+    public final MethodPrintingRule printer = new MethodPrintingRule();
+    private CountingGreetings library;
+
+    @Before
+    public void setUp() {
+        library = new CountingGreetings(Greetings.INSTANCE);
+    }
+
+    @Test
+    public void shouldOnlyCallIntoRustTheFirstTimeForAName() {
+        CachingGreetings cachingGreetings = new CachingGreetings(library, 100);
+
+        assertThat(cachingGreetings.renderGreeting("John"), is("Hello, John!"));
+        assertThat(cachingGreetings.renderGreeting("John"), is("Hello, John!"));
+
+        assertThat(library.calls, is(1));
+        assertThat(cachingGreetings.missCount(), is(1L));
+        assertThat(cachingGreetings.hitCount(), is(1L));
+    }
+
+    @Test
+    public void shouldCacheGreetingsForPeopleByTheirNames() {
+        CachingGreetings cachingGreetings = new CachingGreetings(library, 100);
+        Person john = new Person();
+        john.firstName = "John";
+        john.lastName = "Smith";
+
+        assertThat(cachingGreetings.greet(john), is("Hello, John Smith!"));
+        assertThat(cachingGreetings.greet(john), is("Hello, John Smith!"));
+        john.lastName = "Jones";
+        assertThat(cachingGreetings.greet(john), is("Hello, John Jones!"));
+
+        assertThat(library.calls, is(2));
+    }
+
+    @Test
+    public void shouldSkipTheCacheForCallsOnTheUncachedLibrary() {
+        CachingGreetings cachingGreetings = new CachingGreetings(library, 100);
+
+        cachingGreetings.renderGreeting("John");
+        assertThat(cachingGreetings.uncached().renderGreeting("John"), is("Hello, John!"));
+
+        assertThat(library.calls, is(2));
+        assertThat(cachingGreetings.hitCount(), is(0L));
+    }
+
+    @Test
+    public void shouldNotHoldMoreThanItsMaximumSize() {
+        CachingGreetings cachingGreetings = new CachingGreetings(library, 10);
+
+        for (int i = 0; i < 1000; i++) {
+            cachingGreetings.renderGreeting("Person " + i);
+        }
+
+        assertThat(cachingGreetings.size(), lessThanOrEqualTo(10));
+        assertThat(cachingGreetings.evictionCount(), is(1000L - cachingGreetings.size()));
+    }
+
+    @Test
+    public void shouldKeepPopularNamesWhenLotsOfOneOffNamesComeThrough() {
+        CachingGreetings cachingGreetings = new CachingGreetings(library, 100);
+        int passersBy = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 50; i++) {
+                cachingGreetings.renderGreeting("Regular " + i);
+            }
+            for (int i = 0; i < 500; i++) {
+                cachingGreetings.renderGreeting("Passer-by " + passersBy++);
+            }
+        }
+
+        int callsBefore = library.calls;
+        for (int i = 0; i < 50; i++) {
+            cachingGreetings.renderGreeting("Regular " + i);
+        }
+
+        // An LRU cache would have forgotten all of them
+        assertThat(library.calls - callsBefore, is(0));
+    }
+
+    private static class CountingGreetings extends ForwardingGreetings {
+        int calls;
+
+        CountingGreetings(Greetings delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public String renderGreeting(String name) {
+            calls++;
+            return super.renderGreeting(name);
+        }
+
+        @Override
+        public String greet(Person john) {
+            calls++;
+            return super.greet(john);
+        }
+    }
+}
@@ -17,28 +17,61 @@
 package com.github.drrb.javarust;
 
 import com.github.drrb.javarust.Greetings.GreetingCallback;
+import com.github.drrb.javarust.Greetings.GreetingChunkCallback;
 import com.github.drrb.javarust.Greetings.GreetingSetCallback;
 import com.github.drrb.javarust.test.MethodPrintingRule;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.github.drrb.javarust.test.Matchers.is;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+@RunWith(Parameterized.class)
 public class GreetingsTest {
 
+    @Parameters(name = "{0}")
+    public static List<Object[]> bindings() {
+        List<Object[]> bindings = new LinkedList<>();
+        for (GreetingsBinding binding : GreetingsBinding.values()) {
+            if (binding.isAvailable()) {
+                bindings.add(new Object[] { binding });
+            }
+        }
+        return bindings;
+    }
+
     @Rule
     public final MethodPrintingRule printer = new MethodPrintingRule();
+    private final GreetingsBinding binding;
     private Greetings library;
 
+    public GreetingsTest(GreetingsBinding binding) {
+        this.binding = binding;
+    }
+
     @Before
     public void setUp() {
-        library = Greetings.INSTANCE;
+        library = binding.library();
     }
 
     @Test
@@ -52,6 +85,86 @@ public class GreetingsTest {
         assertThat(greeting, is("Hello, World!"));
     }
 
+    @Test
+    public void shouldGetAStringFromRustThatCanBeFreed() {
+        // Using try-with-resources so that the string gets freed. See RustString.close()
+        try (RustString greeting = library.renderGreetingOwned("World")) {
+            assertThat(greeting.getString(), is("Hello, World!"));
+        }
+    }
+
+    @Test
+    public void shouldWriteAGreetingIntoABufferFromJava() {
+        ByteBuffer name = ByteBuffer.allocateDirect(16);
+        name.put("World".getBytes(UTF_8)).flip();
+        ByteBuffer greeting = ByteBuffer.allocateDirect(64);
+
+        int length = GreetingBuffers.renderGreeting(library, name, greeting);
+
+        assertThat(length, is(13));
+        greeting.flip();
+        byte[] greetingBytes = new byte[greeting.remaining()];
+        greeting.get(greetingBytes);
+        assertThat(new String(greetingBytes, UTF_8), is("Hello, World!"));
+    }
+
+    @Test
+    public void shouldSayHowMuchRoomIsNeededWhenTheBufferIsTooSmall() {
+        ByteBuffer name = ByteBuffer.allocateDirect(16);
+        name.put("World".getBytes(UTF_8)).flip();
+        ByteBuffer greeting = ByteBuffer.allocateDirect(4);
+
+        int length = GreetingBuffers.renderGreeting(library, name, greeting);
+
+        assertThat(length, is(13));
+        assertThat(greeting.position(), is(0));
+    }
+
+    @Test
+    public void shouldNotWriteIntoABufferThatIsTooSmall() {
+        Memory name = utf8("World");
+        Memory greeting = new Memory(64);
+        greeting.clear();
+
+        assertThat(library.renderGreetingInto(name, 5, greeting, 4), is(13));
+        assertThat(greeting.getByte(0), is((byte) 0));
+    }
+
+    @Test
+    public void shouldNotWriteIntoABufferWithANegativeCapacity() {
+        Memory name = utf8("World");
+        Memory greeting = new Memory(64);
+        greeting.clear();
+
+        assertThat(library.renderGreetingInto(name, 5, greeting, -1), is(13));
+        assertThat(greeting.getByte(0), is((byte) 0));
+    }
+
+    @Test
+    public void shouldSayHowMuchRoomIsNeededWithoutABuffer() {
+        assertThat(library.renderGreetingInto(utf8("World"), 5, null, 64), is(13));
+    }
+
+    @Test
+    public void shouldGreetWholeLinesOfNamesFromABuffer() {
+        ByteBuffer names = ByteBuffer.allocateDirect(32);
+        names.put("John\r\nJane\nJo".getBytes(UTF_8)).flip();
+        ByteBuffer greetings = ByteBuffer.allocateDirect(64);
+
+        LineProgress progress = library.renderGreetingLines(Native.getDirectBufferPointer(names), names.remaining(), false, Native.getDirectBufferPointer(greetings), greetings.capacity());
+
+        // "Jo" isn't a whole line yet, so it's left for next time
+        assertThat(progress.lines, is(2));
+        assertThat(progress.consumed, is(11));
+        assertThat(progress.needed, is(0));
+        greetings.limit(progress.produced);
+        assertThat(UTF_8.decode(greetings).toString(), is("Hello, John!\nHello, Jane!\n"));
+
+        progress = library.renderGreetingLines(Native.getDirectBufferPointer(names).share(11), 2, true, Native.getDirectBufferPointer(greetings), 4);
+        assertThat(progress.lines, is(0));
+        assertThat(progress.needed, is(11));
+    }
+
     @Test
     public void shouldAcceptAStructFromJavaToRust() {
         Person john = new Person();
@@ -61,6 +174,35 @@ public class GreetingsTest {
         assertThat(greeting, is("Hello, John Smith!"));
     }
 
+    @Test
+    public void shouldAcceptAStructFromJavaToRustAndReturnAStringThatCanBeFreed() {
+        Person john = new Person();
+        john.firstName = "John";
+        john.lastName = "Smith";
+        try (RustString greeting = library.greetOwned(john)) {
+            assertThat(greeting.getString(), is("Hello, John Smith!"));
+        }
+    }
+
+    @Test
+    public void shouldReuseAStructFromJavaForDifferentPeople() {
+        PersonBuffer person = PersonBuffer.forCurrentThread();
+
+        assertThat(library.greet(person.setNames("John", "Smith")), is("Hello, John Smith!"));
+        assertThat(library.greet(person.setNames("Jo", "Li")), is("Hello, Jo Li!"));
+        // Longer than the buffers start out, so they have to grow
+        String longName = new String(new char[100]).replace('\0', 'x');
+        assertThat(library.greet(person.setNames(longName, "Smith")), is("Hello, " + longName + " Smith!"));
+    }
+
+    @Test
+    public void shouldEncodeNamesInAReusableStructAsUtf8() {
+        PersonBuffer person = new PersonBuffer().setNames("Zoë", "李 \uD83D\uDE00");
+
+        assertThat(person.firstName.getString(0, "UTF-8"), is("Zoë"));
+        assertThat(person.lastName.getString(0, "UTF-8"), is("李 \uD83D\uDE00"));
+    }
+
     @Test
     public void shouldGetAStructFromRustByValue() {
         // Using try-with-resources so that memory gets cleaned up. See Greeting.close()
@@ -76,6 +218,106 @@ public class GreetingsTest {
         }
     }
 
+    @Test
+    public void shouldIgnoreClosingAStructFromRustTwice() {
+        Greeting greeting = library.getGreetingByReference();
+        greeting.close();
+        greeting.close();
+    }
+
+    @Test
+    public void shouldRenderNoGreetingsForNoNames() {
+        try (GreetingSet greetings = library.renderGreetingsFor(new String[0], 0)) {
+            assertThat(greetings.getGreetings().isEmpty(), is(true));
+            assertThat(greetings.getGreetingsView().isEmpty(), is(true));
+        }
+    }
+
+    @Test
+    public void shouldFreeAnEmptyGreetingSetOnceItIsGarbageCollected() throws InterruptedException {
+        long liveObjectsBefore = NativeReclaimer.liveObjects();
+        library.renderGreetingsFor(new String[] { "John" }, 0).manage();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (NativeReclaimer.liveObjects() > liveObjectsBefore && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        // Other tests' objects might be freed meanwhile, so there could be fewer
+        assertThat(NativeReclaimer.liveObjects(), is(lessThanOrEqualTo(liveObjectsBefore)));
+    }
+
+    @Test
+    public void shouldNotReadPastTheEndOfTheNames() {
+        try (GreetingSet greetings = library.renderGreetingsFor(new String[] { "John" }, 2)) {
+            // The interface can't check the count, but Rust stops at the end of the names
+            assertThat(binding, is(GreetingsBinding.INTERFACE));
+            assertThat(greetings.getGreetings().size(), is(1));
+        } catch (IllegalArgumentException expected) {
+            // The other bindings check the count before calling Rust
+        }
+    }
+
+    @Test
+    public void shouldRenderGreetingsOnRustThreadsWithoutWaitingForThem() throws Exception {
+        try (AsyncGreetings asyncGreetings = new AsyncGreetings(library, 2, 16)) {
+            CompletableFuture<String> john = asyncGreetings.renderGreetingAsync("John");
+            CompletableFuture<String> jane = asyncGreetings.renderGreetingAsync("Jane");
+
+            assertThat(john.get(5, SECONDS), is("Hello, John!"));
+            assertThat(jane.get(5, SECONDS), is("Hello, Jane!"));
+        }
+    }
+
+    @Test
+    public void shouldFinishSubmittedGreetingsWhenRustThreadsAreStopped() throws Exception {
+        List<CompletableFuture<String>> greetings = new LinkedList<>();
+        try (AsyncGreetings asyncGreetings = new AsyncGreetings(library, 1, 100)) {
+            for (int i = 0; i < 100; i++) {
+                greetings.add(asyncGreetings.renderGreetingAsync("John"));
+            }
+        }
+        for (CompletableFuture<String> greeting : greetings) {
+            assertThat(greeting.get(5, SECONDS), is("Hello, John!"));
+        }
+    }
+
+    @Test
+    public void shouldLetGreetingFuturesCloseTheRustThreads() throws Exception {
+        AsyncGreetings asyncGreetings = new AsyncGreetings(library, 1, 1);
+        CompletableFuture<Void> closed = asyncGreetings.renderGreetingAsync("John").thenRun(asyncGreetings::close);
+
+        closed.get(5, SECONDS);
+        assertThat(asyncGreetings.renderGreetingAsync("Jane").isCompletedExceptionally(), is(true));
+    }
+
+    @Test
+    public void shouldRefuseToCloseRustThreadsFromOneOfThem() throws Exception {
+        // Completing the futures on the thread that rendered them means that
+        // whatever's chained onto them runs on Rust's thread too
+        try (AsyncGreetings asyncGreetings = new AsyncGreetings(library, 1, 1, Runnable::run)) {
+            CompletableFuture<Void> closed = asyncGreetings.renderGreetingAsync("John").thenRun(asyncGreetings::close);
+            try {
+                closed.get(5, SECONDS);
+                fail("Expected closing from a Rust thread to fail");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+            }
+        }
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void shouldRejectGreetingsOnceRustThreadsAreStopped() throws Throwable {
+        AsyncGreetings asyncGreetings = new AsyncGreetings(library, 1, 1);
+        asyncGreetings.close();
+        try {
+            asyncGreetings.renderGreetingAsync("John").get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
     @Test
     public void shouldGetAStringFromRustInACallback() {
         final List<String> greetings = new LinkedList<>();
@@ -104,6 +346,45 @@ public class GreetingsTest {
         assertThat(greetingStrings, contains("Hello!", "Hello again!"));
     }
 
+    @Test
+    public void shouldCallARegisteredCallbackFromRustByHandle() {
+        final List<String> greetings = new LinkedList<>();
+        try (RegisteredGreetingCallback callback = RegisteredGreetingCallback.register(library, new GreetingCallback() {
+            public void apply(String greeting) {
+                greetings.add(greeting);
+            }
+        })) {
+            callback.callMeBack();
+            callback.callMeBack();
+        }
+        assertThat(greetings, contains("Hello there!", "Hello there!"));
+    }
+
+    @Test
+    public void shouldSendGreetingsToARegisteredCallbackByHandle() {
+        final List<String> greetings = new LinkedList<>();
+        try (RegisteredGreetingSetCallback callback = RegisteredGreetingSetCallback.register(library, new GreetingSetCallback() {
+            public void apply(GreetingSet.ByReference greetingSet) {
+                for (Greeting greeting : greetingSet.getGreetings()) {
+                    greetings.add(greeting.getText());
+                }
+            }
+        })) {
+            callback.sendGreetings();
+        }
+        assertThat(greetings, contains("Hello!", "Hello again!"));
+    }
+
+    @Test
+    public void shouldNotCallBackAfterACallbackIsUnregistered() {
+        int handle = library.registerGreetingCallback(new GreetingCallback() {
+            public void apply(String greeting) {
+            }
+        });
+        library.unregisterGreetingCallback(handle);
+        assertThat(library.callMeBackWith(handle), is(-1));
+    }
+
     @Test
     public void shouldGetAStructFromRustContainingAnArrayOfStructs() {
         try (GreetingSet result = library.renderGreetings()) {
@@ -115,4 +396,162 @@ public class GreetingsTest {
             assertThat(greetings, contains("Hello!", "Hello again!"));
         }
     }
+
+    @Test
+    public void shouldGetAGreetingForEachStringInAnArrayPassedToRust() {
+        String[] names = { "John", "Jane", "Jim" };
+        try (GreetingSet result = library.renderGreetingsFor(names, names.length)) {
+            List<String> greetings = new LinkedList<>();
+            for (Greeting greeting : result.getGreetings()) {
+                greetings.add(greeting.getText());
+            }
+
+            assertThat(greetings, contains("Hello, John!", "Hello, Jane!", "Hello, Jim!"));
+        }
+    }
+
+    @Test
+    public void shouldAllocateGreetingsInAnArenaThatIsFreedAllAtOnce() {
+        Person john = new Person();
+        john.firstName = "John";
+        john.lastName = "Smith";
+        try (GreetingArena arena = library.createGreetingArena()) {
+            assertThat(library.renderGreetingInArena(arena, "World"), is("Hello, World!"));
+            assertThat(library.greetInArena(arena, john), is("Hello, John Smith!"));
+
+            List<String> greetings = new LinkedList<>();
+            for (Greeting greeting : library.renderGreetingsInArena(arena).getGreetings()) {
+                greetings.add(greeting.getText());
+            }
+            assertThat(greetings, contains("Hello!", "Hello again!"));
+        }
+    }
+
+    @Test
+    public void shouldGetALazyViewOfAnArrayOfStructsFromRust() {
+        String[] names = { "John", "Jane", "Jim" };
+        try (GreetingSet result = library.renderGreetingsFor(names, names.length)) {
+            List<Greeting> greetings = result.getGreetingsView();
+
+            assertThat(greetings.size(), is(3));
+            assertThat(greetings.get(2).getText(), is("Hello, Jim!"));
+            assertThat(greetings.get(0).getText(), is("Hello, John!"));
+        }
+    }
+
+    @Test
+    public void shouldGetStructsContainingStringsAndTheirLengthsFromRust() {
+        String[] names = { "John", "Jane" };
+        try (SizedGreetingSet result = library.renderSizedGreetingsFor(names, names.length)) {
+            assertThat(result.getNumberOfGreetings(), is(2));
+            assertThat(result.getText(1), is("Hello, Jane!"));
+
+            SizedGreeting greeting = result.getGreetings().get(0);
+            assertThat(greeting.length, is(12));
+            assertThat(greeting.getText(), is("Hello, John!"));
+        }
+    }
+
+    @Test
+    public void shouldGreetAColumnOfPeoplePackedIntoBuffers() {
+        PackedPeople people = new PackedPeople().add("John", "Smith").add("Zoë", "李 😀");
+        for (int i = 0; i < 100; i++) {
+            // Enough to make the buffers grow
+            people.add("Person", "Number " + i);
+        }
+        try (PackedGreetings greetings = people.greet(library)) {
+            assertThat(greetings.getCount(), is(102));
+            assertThat(greetings.getText(0), is("Hello, John Smith!"));
+            assertThat(greetings.getText(1), is("Hello, Zoë 李 😀!"));
+            assertThat(greetings.getText(101), is("Hello, Person Number 99!"));
+
+            String allGreetings = UTF_8.decode(greetings.getTextBuffer()).toString();
+            assertThat(allGreetings.startsWith("Hello, John Smith!Hello, Zoë"), is(true));
+        }
+    }
+
+    @Test
+    public void shouldReusePackedBuffersForTheNextColumnOfPeople() {
+        PackedPeople people = new PackedPeople().add("John", "Smith");
+        people.greet(library).close();
+
+        try (PackedGreetings greetings = people.clear().greet(library)) {
+            assertThat(greetings.getCount(), is(0));
+            assertThat(greetings.getTextBuffer().remaining(), is(0));
+        }
+        try (PackedGreetings greetings = people.add("Jane", "Doe").greet(library)) {
+            assertThat(greetings.getCount(), is(1));
+            assertThat(greetings.getText(0), is("Hello, Jane Doe!"));
+        }
+    }
+
+    @Test
+    public void shouldNotGreetPackedPeopleWhoseGreetingsWouldBeTooBigForIntOffsets() {
+        // The names fit in int offsets, but with 9 more bytes for "Hello, ",
+        // " " and "!", the greeting doesn't. Rust only reads the offsets to
+        // find that out, so the names themselves don't need to exist.
+        Memory names = new Memory(1);
+        Memory firstNameOffsets = new Memory(8);
+        firstNameOffsets.setInt(0, 0);
+        firstNameOffsets.setInt(4, Integer.MAX_VALUE - 8);
+        Memory lastNameOffsets = new Memory(8);
+        lastNameOffsets.clear();
+
+        assertThat(library.greetPacked(names, firstNameOffsets, names, lastNameOffsets, 1), is(nullValue()));
+    }
+
+    @Test
+    public void shouldGetAStreamOfGreetingsFromRustInChunks() {
+        String[] names = { "John", "Jane", "Jim", "Jill", "Jack" };
+        final List<Integer> chunkSizes = new LinkedList<>();
+        final List<String> greetings = new LinkedList<>();
+        try (GreetingStream stream = library.openGreetingStream(names, names.length, 2)) {
+            int status = library.pumpGreetingStream(stream, new GreetingChunkCallback() {
+                public int apply(GreetingSet.ByReference chunk) {
+                    chunkSizes.add(chunk.numberOfGreetings);
+                    for (Greeting greeting : chunk.getGreetingsView()) {
+                        greetings.add(greeting.getText());
+                    }
+                    return GreetingStream.CONTINUE;
+                }
+            });
+
+            assertThat(status, is(GreetingStream.FINISHED));
+        }
+        assertThat(chunkSizes, contains(2, 2, 1));
+        assertThat(greetings, contains("Hello, John!", "Hello, Jane!", "Hello, Jim!", "Hello, Jill!", "Hello, Jack!"));
+    }
+
+    @Test
+    public void shouldPauseAndCancelAStreamOfGreetingsFromRust() {
+        String[] names = { "John", "Jane", "Jim" };
+        final List<String> greetings = new LinkedList<>();
+        try (GreetingStream stream = library.openGreetingStream(names, names.length, 1)) {
+            GreetingChunkCallback pauseAfterEachChunk = new GreetingChunkCallback() {
+                public int apply(GreetingSet.ByReference chunk) {
+                    greetings.add(chunk.getGreetingsView().get(0).getText());
+                    return GreetingStream.PAUSE;
+                }
+            };
+            assertThat(library.pumpGreetingStream(stream, pauseAfterEachChunk), is(GreetingStream.PAUSED));
+            assertThat(library.pumpGreetingStream(stream, pauseAfterEachChunk), is(GreetingStream.PAUSED));
+            assertThat(greetings, contains("Hello, John!", "Hello, Jane!"));
+
+            GreetingChunkCallback cancel = new GreetingChunkCallback() {
+                public int apply(GreetingSet.ByReference chunk) {
+                    return GreetingStream.CANCEL;
+                }
+            };
+            assertThat(library.pumpGreetingStream(stream, cancel), is(GreetingStream.CANCELLED));
+            assertThat(library.pumpGreetingStream(stream, pauseAfterEachChunk), is(GreetingStream.CANCELLED));
+            assertThat(greetings, contains("Hello, John!", "Hello, Jane!"));
+        }
+    }
+
+    private static Memory utf8(String string) {
+        byte[] bytes = string.getBytes(UTF_8);
+        Memory memory = new Memory(bytes.length);
+        memory.write(0, bytes, 0, bytes.length);
+        return memory;
+    }
 }
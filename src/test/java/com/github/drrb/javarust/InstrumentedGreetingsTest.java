@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.test.MethodPrintingRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+
+import static com.github.drrb.javarust.test.Matchers.greaterThan;
+import static com.github.drrb.javarust.test.Matchers.greaterThanOrEqualTo;
+import static com.github.drrb.javarust.test.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class InstrumentedGreetingsTest {
+
+    @Rule
+    public final MethodPrintingRule printer = new MethodPrintingRule();
+    private final InstrumentedGreetings library = new InstrumentedGreetings(new FailingGreetings(Greetings.INSTANCE));
+
+    @Test
+    public void shouldTimeEachMethodSeparately() {
+        library.renderGreeting("John");
+        library.renderGreeting("Jane");
+        Person john = new Person();
+        john.firstName = "John";
+        john.lastName = "Smith";
+        library.greet(john);
+
+        MethodLatency renderGreeting = library.getLatencies().get("renderGreeting");
+        assertThat(renderGreeting.getCalls(), is(2L));
+        assertThat(renderGreeting.getMaxNanos(), is(greaterThan(0L)));
+        assertThat(renderGreeting.getP99Nanos(), is(greaterThanOrEqualTo(renderGreeting.getP50Nanos())));
+        assertThat(library.getLatencies().get("greet(Person)").getCalls(), is(1L));
+        assertThat(library.getLatencies().get("greet(PersonBuffer)").getCalls(), is(0L));
+        assertThat(library.getTotalCalls(), is(3L));
+    }
+
+    @Test
+    public void shouldTimeFreeingWhatItReturned() {
+        try (GreetingSet greetings = library.renderGreetings()) {
+            greetings.getGreetings();
+        }
+        library.getGreetingByReference().close();
+        library.renderGreetingOwned("John").close();
+
+        assertThat(library.getLatencies().get("dropGreetingSet").getCalls(), is(1L));
+        assertThat(library.getLatencies().get("dropGreeting").getCalls(), is(1L));
+        assertThat(library.getLatencies().get("dropString").getCalls(), is(1L));
+    }
+
+    @Test
+    public void shouldCountCallsThatFail() {
+        try {
+            library.renderGreeting(FailingGreetings.FAILING_NAME);
+            fail("Expected the call to fail");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertThat(library.getLatencies().get("renderGreeting").getErrors(), is(1L));
+        assertThat(library.getLatencies().get("renderGreeting").getCalls(), is(1L));
+        assertThat(library.getTotalErrors(), is(1L));
+    }
+
+    @Test
+    public void shouldReportEachIntervalSeparately() {
+        library.renderGreeting("John");
+        assertThat(library.getIntervalLatencies().get("renderGreeting").getCalls(), is(1L));
+
+        library.renderGreeting("Jane");
+        library.renderGreeting("Jo");
+        assertThat(library.getIntervalLatencies().get("renderGreeting").getCalls(), is(2L));
+        assertThat(library.getIntervalLatencies().get("renderGreeting").getCalls(), is(0L));
+        assertThat(library.getLatencies().get("renderGreeting").getCalls(), is(3L));
+    }
+
+    @Test
+    public void shouldTimeCallbacksSeparatelyFromTheCallsThatCallThem() {
+        Greetings.GreetingCallback callback = library.timedGreetingCallback(new Greetings.GreetingCallback() {
+            @Override
+            public void apply(String greeting) {
+            }
+        });
+
+        library.callMeBack(callback);
+
+        assertThat(library.getLatencies().get("callMeBack").getCalls(), is(1L));
+        assertThat(library.getLatencies().get("callback:GreetingCallback").getCalls(), is(1L));
+    }
+
+    @Test
+    public void shouldPublishTheTimingsOverJmx() throws Exception {
+        ObjectName name = library.registerMBean("test");
+        try {
+            library.renderGreeting("John");
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertThat((Long) server.getAttribute(name, "TotalCalls"), is(1L));
+            TabularData latencies = (TabularData) server.getAttribute(name, "Latencies");
+            CompositeData renderGreeting = (CompositeData) latencies.get(new Object[] { "renderGreeting" }).get("value");
+            assertThat((Long) renderGreeting.get("calls"), is(1L));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+    private static class FailingGreetings extends ForwardingGreetings {
+
+        static final String FAILING_NAME = "Voldemort";
+
+        FailingGreetings(Greetings delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public String renderGreeting(String name) {
+            if (name.equals(FAILING_NAME)) {
+                throw new IllegalArgumentException("We don't say that name");
+            }
+            return super.renderGreeting(name);
+        }
+    }
+}
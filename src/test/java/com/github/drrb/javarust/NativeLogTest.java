@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.test.MethodPrintingRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static com.github.drrb.javarust.test.Matchers.hasItem;
+import static com.github.drrb.javarust.test.Matchers.is;
+import static com.github.drrb.javarust.test.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+public class NativeLogTest {
+
+    @Rule
+    public final MethodPrintingRule printer = new MethodPrintingRule();
+    private final NativeLog log = new NativeLog(Greetings.INSTANCE);
+    private final List<String> messages = new ArrayList<>();
+    private final NativeLog.Listener listener = new NativeLog.Listener() {
+        @Override
+        public void message(int level, String message) {
+            messages.add(level + " " + message);
+        }
+    };
+
+    @After
+    public void turnLoggingOff() {
+        log.setLevel(NativeLog.OFF);
+        log.drain(listener);
+    }
+
+    @Test
+    public void shouldPassOnMessagesLoggedInRust() {
+        log.setLevel(NativeLog.DEBUG);
+
+        Greetings.INSTANCE.renderGreetings().close();
+
+        log.drain(listener);
+        assertThat(messages, hasItem(NativeLog.DEBUG + " Dropping GreetingSet"));
+        assertThat(messages, hasItem(NativeLog.DEBUG + " Dropping Greeting: Hello!"));
+        assertThat(messages, hasItem(NativeLog.DEBUG + " Dropping Greeting: Hello again!"));
+    }
+
+    @Test
+    public void shouldNotKeepMessagesAboveTheLevel() {
+        log.setLevel(NativeLog.INFO);
+        log.drain(listener);
+        messages.clear();
+
+        Greetings.INSTANCE.renderGreetings().close();
+
+        log.drain(listener);
+        assertThat(messages, not(hasItem(NativeLog.DEBUG + " Dropping GreetingSet")));
+    }
+
+    @Test
+    public void shouldForwardMessagesToALogger() throws Exception {
+        final List<String> logged = new ArrayList<>();
+        Logger logger = Logger.getLogger(NativeLogTest.class.getName());
+        logger.setUseParentHandlers(false);
+        logger.setLevel(Level.ALL);
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                logged.add(record.getLevel() + " " + record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        log.setLevel(NativeLog.DEBUG);
+
+        Closeable forwarding = log.forwardTo(logger, 1, TimeUnit.HOURS);
+        Greetings.INSTANCE.renderGreetings().close();
+        // Closing it drains what's left
+        forwarding.close();
+
+        assertThat(logged, hasItem("FINE Dropping GreetingSet"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNeedRoomForAtLeastOneMessage() {
+        new NativeLog(Greetings.INSTANCE, 10);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.test.MethodPrintingRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static com.github.drrb.javarust.test.Matchers.greaterThan;
+import static com.github.drrb.javarust.test.Matchers.is;
+import static com.github.drrb.javarust.test.Matchers.lessThan;
+import static com.github.drrb.javarust.test.Matchers.lessThanOrEqualTo;
+import static com.github.drrb.javarust.test.Matchers.notNullValue;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that memory allocated in Rust gets freed.
+ *
+ * Most of these check Rust's own allocation counts (see
+ * {@link Greetings#getNativeStats()}). Arenas aren't counted there, so the
+ * arena test makes lots of calls, and checks that the process's resident
+ * memory doesn't keep growing. That's slow, and it's thrown off by anything
+ * else growing (e.g. the Java heap), so it only runs when it's asked for
+ * (with -Dgreetings.test.residentMemory=true), and only on Gnu/Linux, where
+ * it can read the resident memory from /proc.
+ */
+public class NativeMemoryTest {
+
+    private static final int CALLS = 10000;
+
+    private static final String RESIDENT_MEMORY_TESTS = "greetings.test.residentMemory";
+    private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+    private static final int RESIDENT_MEMORY_WARM_UP_CALLS = 200000;
+    private static final int RESIDENT_MEMORY_CALLS = 2000000;
+    private static final long ALLOWED_GROWTH_IN_KB = 16 * 1024;
+
+    @Rule
+    public final MethodPrintingRule printer = new MethodPrintingRule();
+    private Greetings library;
+
+    @Before
+    public void setUp() {
+        library = Greetings.INSTANCE;
+    }
+
+    @Test
+    public void shouldNotLeakStringsReturnedFromRust() {
+        long liveStringsBefore = library.getNativeStats().getLiveStrings();
+
+        renderGreetings(CALLS);
+
+        // The reclaimer thread might free strings from other tests meanwhile,
+        // so there could be fewer, but there shouldn't be any more
+        assertThat(library.getNativeStats().getLiveStrings(), is(lessThanOrEqualTo(liveStringsBefore)));
+    }
+
+    @Test
+    public void shouldFreeEverythingInAnArenaWhenItIsClosed() throws IOException {
+        assumeTrue(Boolean.getBoolean(RESIDENT_MEMORY_TESTS));
+        assumeTrue(Files.isReadable(PROC_STATUS));
+        renderGreetingsInArenas(RESIDENT_MEMORY_WARM_UP_CALLS);
+        long memoryBefore = residentMemoryInKb();
+
+        renderGreetingsInArenas(RESIDENT_MEMORY_CALLS);
+
+        // Leaking every arena would use at least RESIDENT_MEMORY_CALLS * 16 bytes (about 32MB)
+
+        assertThat(residentMemoryInKb() - memoryBefore, lessThan(ALLOWED_GROWTH_IN_KB));
+    }
+
+    @Test
+    public void shouldFreeManagedStructsOnceTheyAreGarbageCollected() throws InterruptedException {
+        for (int i = 0; i < 1000; i++) {
+            // Not closing these on purpose
+            library.renderGreetings().manage();
+            library.getGreetingByReference().manage();
+        }
+        assertThat(NativeReclaimer.liveObjects(), is(greaterThan(0L)));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (NativeReclaimer.liveObjects() > 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertThat(NativeReclaimer.liveObjects(), is(0L));
+        assertThat(NativeReclaimer.liveBytes(), is(0L));
+    }
+
+    @Test
+    public void shouldNotFreeAManagedSetWhileAGreetingFromItsViewIsInUse() throws InterruptedException {
+        String[] names = { "John", "Jane" };
+        WeakReference<GreetingSet> greetingSet = new WeakReference<>(library.renderGreetingsFor(names, names.length).manage());
+        Greeting greeting = greetingSet.get().getGreetingsView().get(1);
+
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertThat(greetingSet.get(), is(notNullValue()));
+        assertThat(greeting.getText(), is("Hello, Jane!"));
+    }
+
+    @Test
+    public void shouldNotCountManagedStructsThatHaveBeenClosed() {
+        long liveObjectsBefore = NativeReclaimer.liveObjects();
+        try (GreetingSet greetingSet = library.renderGreetings().manage()) {
+            assertThat(greetingSet.getGreetings().isEmpty(), is(false));
+            assertThat(NativeReclaimer.liveObjects(), is(liveObjectsBefore + 1));
+        }
+        assertThat(NativeReclaimer.liveObjects(), is(liveObjectsBefore));
+    }
+
+    private void renderGreetingsInArenas(int calls) {
+        int callsPerArena = 1000;
+        for (int i = 0; i < calls; i += callsPerArena) {
+            try (GreetingArena arena = library.createGreetingArena()) {
+                for (int j = 0; j < callsPerArena; j++) {
+                    library.renderGreetingInArena(arena, "World");
+                }
+            }
+        }
+    }
+
+    private void renderGreetings(int calls) {
+        for (int i = 0; i < calls; i++) {
+            try (RustString greeting = library.renderGreetingOwned("World")) {
+                greeting.getString();
+            }
+        }
+    }
+
+    private static long residentMemoryInKb() throws IOException {
+        System.gc();
+        for (String line : Files.readAllLines(PROC_STATUS, UTF_8)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        throw new IllegalStateException("Couldn't find resident memory size in " + PROC_STATUS);
+    }
+}
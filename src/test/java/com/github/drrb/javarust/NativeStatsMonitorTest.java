@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.test.MethodPrintingRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static com.github.drrb.javarust.test.Matchers.greaterThanOrEqualTo;
+import static com.github.drrb.javarust.test.Matchers.hasKey;
+import static com.github.drrb.javarust.test.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class NativeStatsMonitorTest {
+
+    @Rule
+    public final MethodPrintingRule printer = new MethodPrintingRule();
+    private final NativeStatsMonitor monitor = new NativeStatsMonitor(Greetings.INSTANCE);
+
+    // Other things (e.g. the NativeReclaimer) might be allocating and freeing
+    // at the same time, so we only check that the counts go up by at least
+    // as much as we expect
+
+    @Test
+    public void shouldCountGreetingsAllocatedAndFreedInRust() {
+        NativeStats before = monitor.stats();
+
+        Greetings.INSTANCE.renderGreetings().close();
+
+        NativeStats after = monitor.stats();
+        assertThat(after.greetingSetsAllocated - before.greetingSetsAllocated, is(greaterThanOrEqualTo(1L)));
+        assertThat(after.greetingSetsFreed - before.greetingSetsFreed, is(greaterThanOrEqualTo(1L)));
+        assertThat(after.greetingsAllocated - before.greetingsAllocated, is(greaterThanOrEqualTo(2L)));
+        assertThat(after.greetingsFreed - before.greetingsFreed, is(greaterThanOrEqualTo(2L)));
+        assertThat(after.stringsFreed - before.stringsFreed, is(greaterThanOrEqualTo(2L)));
+        assertThat(after.bytesFreed - before.bytesFreed, is(greaterThanOrEqualTo((long) "Hello!\0Hello again!\0".length())));
+    }
+
+    @Test
+    public void shouldShowStringsThatAreNeverFreed() {
+        long liveStrings = monitor.getLiveStrings();
+
+        // renderGreeting's string is copied into a Java String, and never freed (see README)
+        Greetings.INSTANCE.renderGreeting("World");
+
+        assertThat(monitor.getLiveStrings() - liveStrings, is(greaterThanOrEqualTo(1L)));
+    }
+
+    @Test
+    public void shouldCountCallsToEachRustFunction() {
+        Map<String, Long> before = monitor.getCallCounts();
+
+        Greetings.INSTANCE.renderGreeting("World");
+        DirectGreetings.INSTANCE.renderGreeting("World");
+
+        Map<String, Long> after = monitor.getCallCounts();
+        assertThat(after, hasKey("greetPacked"));
+        assertThat(after.get("renderGreeting") - before.get("renderGreeting"), is(greaterThanOrEqualTo(2L)));
+    }
+
+    @Test
+    public void shouldPublishTheStatsOverJmx() throws Exception {
+        ObjectName name = NativeStatsMonitor.register(Greetings.INSTANCE);
+        Greetings.INSTANCE.renderGreeting("World");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertThat((Long) server.getAttribute(name, "LiveBytes"), is(greaterThanOrEqualTo(1L)));
+        TabularData callCounts = (TabularData) server.getAttribute(name, "CallCounts");
+        CompositeData renderGreeting = callCounts.get(new Object[] { "renderGreeting" });
+        assertThat((Long) renderGreeting.get("value"), is(greaterThanOrEqualTo(1L)));
+    }
+}
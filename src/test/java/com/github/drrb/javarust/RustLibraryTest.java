@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust;
+
+import com.github.drrb.javarust.RustLibrary.Variant;
+import com.github.drrb.javarust.test.MethodPrintingRule;
+import com.sun.jna.Platform;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.IntSupplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static com.github.drrb.javarust.test.Matchers.is;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThat;
+
+public class RustLibraryTest {
+
+    private static final String RESOURCE_NAME = "linux-x86-64/libgreetings.so";
+    private static final byte[] LIBRARY = "not really a library".getBytes(UTF_8);
+
+    @Rule
+    public final MethodPrintingRule printer = new MethodPrintingRule();
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldCopyTheLibraryOutOfAJarIntoADirectoryNamedAfterItsHash() throws IOException {
+        ClassLoader jar = jarContaining(LIBRARY, RustLibrary.sha256(LIBRARY));
+        Path cache = folder.newFolder("cache").toPath();
+
+        File library = libraryFile(jar, cache);
+
+        assertThat(library.toPath(), is(cache.resolve(RustLibrary.sha256(LIBRARY)).resolve("libgreetings.so")));
+        assertThat(Files.readAllBytes(library.toPath()), is(LIBRARY));
+    }
+
+    @Test
+    public void shouldReuseTheCachedCopyNextTime() throws IOException {
+        ClassLoader jar = jarContaining(LIBRARY, RustLibrary.sha256(LIBRARY));
+        Path cache = folder.newFolder("cache").toPath();
+        File library = libraryFile(jar, cache);
+        // Mark the cached copy, so we can tell if it's copied again
+        Files.write(library.toPath(), "cached".getBytes(UTF_8));
+
+        File nextTime = libraryFile(jar, cache);
+
+        assertThat(nextTime, is(library));
+        assertThat(new String(Files.readAllBytes(nextTime.toPath()), UTF_8), is("cached"));
+    }
+
+    @Test
+    public void shouldHashTheLibraryItselfIfTheBuildDidNot() throws IOException {
+        ClassLoader jar = jarContaining(LIBRARY, null);
+        Path cache = folder.newFolder("cache").toPath();
+
+        File library = libraryFile(jar, cache);
+
+        assertThat(library.toPath(), is(cache.resolve(RustLibrary.sha256(LIBRARY)).resolve("libgreetings.so")));
+    }
+
+    @Test
+    public void shouldUseTheLibraryWhereItIsIfItIsAlreadyAFile() throws IOException {
+        Path classes = folder.newFolder("classes").toPath();
+        Path original = classes.resolve(RESOURCE_NAME);
+        Files.createDirectories(original.getParent());
+        Files.write(original, LIBRARY);
+        ClassLoader directory = new URLClassLoader(new URL[] { classes.toUri().toURL() }, null);
+        Path cache = folder.newFolder("cache").toPath();
+
+        File library = libraryFile(directory, cache);
+
+        assertThat(library.getCanonicalFile(), is(original.toFile().getCanonicalFile()));
+        assertThat(cache.toFile().list().length, is(0));
+    }
+
+    @Test
+    public void shouldPickTheBestVersionOfTheLibraryTheCpuCanRun() {
+        Set<Variant> all = EnumSet.allOf(Variant.class);
+
+        assertThat(RustLibrary.chooseVariant(null, all, cpuLevel(3)), is(Variant.X86_64_V3));
+        assertThat(RustLibrary.chooseVariant(null, all, cpuLevel(2)), is(Variant.X86_64_V2));
+        assertThat(RustLibrary.chooseVariant(null, all, cpuLevel(1)), is(Variant.BASELINE));
+        assertThat(RustLibrary.chooseVariant(null, EnumSet.of(Variant.BASELINE, Variant.X86_64_V2), cpuLevel(3)), is(Variant.X86_64_V2));
+    }
+
+    @Test
+    public void shouldUseTheBaselineVersionOnOtherCpus() {
+        assertThat(RustLibrary.chooseVariant(null, EnumSet.allOf(Variant.class), cpuLevel(0)), is(Variant.BASELINE));
+    }
+
+    @Test
+    public void shouldNotAskTheCpuIfThereIsOnlyOneVersion() {
+        IntSupplier cpuLevel = new IntSupplier() {
+            @Override
+            public int getAsInt() {
+                throw new AssertionError("Shouldn't need to ask the CPU");
+            }
+        };
+
+        assertThat(RustLibrary.chooseVariant(null, EnumSet.of(Variant.BASELINE), cpuLevel), is(Variant.BASELINE));
+    }
+
+    @Test
+    public void shouldUseTheVersionNamedInTheSystemProperty() {
+        Set<Variant> all = EnumSet.allOf(Variant.class);
+
+        assertThat(RustLibrary.chooseVariant("x86-64-v2", all, cpuLevel(3)), is(Variant.X86_64_V2));
+        assertThat(RustLibrary.chooseVariant("baseline", all, cpuLevel(3)), is(Variant.BASELINE));
+    }
+
+    @Test
+    public void shouldUseTheBaselineVersionIfTheNamedOneIsMissing() {
+        assertThat(RustLibrary.chooseVariant("x86-64-v3", EnumSet.of(Variant.BASELINE), cpuLevel(3)), is(Variant.BASELINE));
+    }
+
+    @Test
+    public void shouldUseTheBaselineVersionIfTheNamedOneIsUnknown() {
+        assertThat(RustLibrary.chooseVariant("pentium-4", EnumSet.allOf(Variant.class), cpuLevel(3)), is(Variant.BASELINE));
+    }
+
+    @Test
+    public void shouldPutTheVersionsForNewerCpusInTheirOwnDirectories() {
+        assertThat(Variant.BASELINE.resourceName("greetings"), is(Platform.RESOURCE_PREFIX + "/" + System.mapLibraryName("greetings")));
+        assertThat(Variant.X86_64_V3.resourceName("greetings"), is(Platform.RESOURCE_PREFIX + "/x86-64-v3/" + System.mapLibraryName("greetings")));
+    }
+
+    private static IntSupplier cpuLevel(final int level) {
+        return new IntSupplier() {
+            @Override
+            public int getAsInt() {
+                return level;
+            }
+        };
+    }
+
+    private static File libraryFile(ClassLoader classLoader, Path cache) throws IOException {
+        return RustLibrary.libraryFile(classLoader.getResource(RESOURCE_NAME), RESOURCE_NAME, classLoader, cache);
+    }
+
+    private ClassLoader jarContaining(byte[] library, String hash) throws IOException {
+        File jar = folder.newFile("greeter.jar");
+        try (JarOutputStream output = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            write(output, RESOURCE_NAME, library);
+            if (hash != null) {
+                write(output, RESOURCE_NAME + RustLibrary.HASH_SUFFIX, (hash + "\n").getBytes(UTF_8));
+            }
+        }
+        return new URLClassLoader(new URL[] { jar.toURI().toURL() }, null);
+    }
+
+    private static void write(JarOutputStream jar, String name, byte[] contents) throws IOException {
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(contents);
+        jar.closeEntry();
+    }
+}
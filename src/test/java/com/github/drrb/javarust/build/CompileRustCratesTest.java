@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 drrb
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.drrb.javarust.build;
+
+import com.github.drrb.javarust.build.CompileRustCrates.Build;
+import com.github.drrb.javarust.build.CompileRustCrates.Variant;
+import com.github.drrb.javarust.test.MethodPrintingRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Properties;
+
+import static com.github.drrb.javarust.test.Matchers.contains;
+import static com.github.drrb.javarust.test.Matchers.containsInAnyOrder;
+import static com.github.drrb.javarust.test.Matchers.empty;
+import static com.github.drrb.javarust.test.Matchers.is;
+import static com.github.drrb.javarust.test.Matchers.not;
+import static com.github.drrb.javarust.test.Matchers.nullValue;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertThat;
+
+public class CompileRustCratesTest {
+
+    private static final String CRATE = "src/main/rust/com/github/drrb/javarust/lib/greetings.rs";
+
+    @Rule
+    public final MethodPrintingRule printer = new MethodPrintingRule();
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldRemoveTheVersionsForNewerCpusWhenSwitchingToAProfileThatDoesNotBuildThem() throws IOException {
+        // What a release build leaves behind
+        Path installDir = folder.newFolder("linux-x86-64").toPath();
+        install(installDir, "libgreetings.so");
+        install(installDir, "x86-64-v2/libgreetings.so");
+        install(installDir, "x86-64-v3/libgreetings.so");
+        Properties manifest = new Properties();
+        manifest.setProperty(CRATE, "baseline fingerprint");
+        manifest.setProperty(CRATE + "@x86-64-v2", "v2 fingerprint");
+        manifest.setProperty(CRATE + "@x86-64-v3", "v3 fingerprint");
+
+        // Then a debug (or release-native) build, which only builds the baseline
+        boolean manifestChanged = CompileRustCrates.removeStaleVariants(installDir, EnumSet.of(Variant.BASELINE), manifest);
+
+        assertThat(manifestChanged, is(true));
+        assertThat(Files.exists(installDir.resolve("libgreetings.so")), is(true));
+        assertThat(Files.exists(installDir.resolve("libgreetings.so.sha256")), is(true));
+        assertThat(Files.exists(installDir.resolve("x86-64-v2")), is(false));
+        assertThat(Files.exists(installDir.resolve("x86-64-v3")), is(false));
+        assertThat(manifest.stringPropertyNames(), is(Collections.singleton(CRATE)));
+    }
+
+    @Test
+    public void shouldKeepTheVersionsForNewerCpusWhenTheProfileBuildsThem() throws IOException {
+        Path installDir = folder.newFolder("linux-x86-64").toPath();
+        install(installDir, "libgreetings.so");
+        install(installDir, "x86-64-v3/libgreetings.so");
+        Properties manifest = new Properties();
+        manifest.setProperty(CRATE, "baseline fingerprint");
+        manifest.setProperty(CRATE + "@x86-64-v3", "v3 fingerprint");
+
+        boolean manifestChanged = CompileRustCrates.removeStaleVariants(installDir, EnumSet.allOf(Variant.class), manifest);
+
+        assertThat(manifestChanged, is(false));
+        assertThat(Files.exists(installDir.resolve("x86-64-v3/libgreetings.so")), is(true));
+        assertThat(manifest.size(), is(2));
+    }
+
+    @Test
+    public void shouldReadTheSourceFilesFromADepInfoFile() throws IOException {
+        // What rustc writes: a rule for each output, then an empty rule for each source file
+        Path depInfo = write("greetings.d",
+                "# A comment",
+                "target/rust-libs/greetings/baseline/libgreetings.so: src/greetings.rs src/logging.rs",
+                "target/rust-libs/greetings/baseline/greetings.d: src/greetings.rs src/logging.rs",
+                "",
+                "src/greetings.rs:",
+                "src/logging.rs:");
+
+        assertThat(CompileRustCrates.dependencies(depInfo), containsInAnyOrder(Paths.get("src/greetings.rs"), Paths.get("src/logging.rs")));
+    }
+
+    @Test
+    public void shouldUnescapeSpacesInFileNamesInADepInfoFile() throws IOException {
+        Path depInfo = write("greetings.d",
+                "my\\ project/libgreetings.so: my\\ project/src/greetings.rs   my\\ project/src/logging.rs",
+                "my\\ project/src/greetings.rs:");
+
+        assertThat(CompileRustCrates.dependencies(depInfo), containsInAnyOrder(Paths.get("my project/src/greetings.rs"), Paths.get("my project/src/logging.rs")));
+    }
+
+    @Test
+    public void shouldNotMistakeWindowsDriveLettersForTheEndOfTheTargetInADepInfoFile() throws IOException {
+        Path depInfo = write("greetings.d",
+                "C:\\project\\greetings.dll: C:\\project\\src\\greetings.rs C:\\my\\ project\\src\\logging.rs",
+                "",
+                "C:\\project\\src\\greetings.rs:");
+
+        assertThat(CompileRustCrates.dependencies(depInfo), containsInAnyOrder(Paths.get("C:\\project\\src\\greetings.rs"), Paths.get("C:\\my project\\src\\logging.rs")));
+    }
+
+    @Test
+    public void shouldFingerprintEverythingThatGoesIntoACrate() throws IOException {
+        Path source = write("greetings.rs", "fn main() {}");
+        Path depInfo = write("greetings.d", "libgreetings.so: " + source, "", source + ":");
+        List<String> flags = asList("-C", "opt-level=3");
+        String fingerprint = CompileRustCrates.fingerprint(depInfo, "rustc 1.63.0", flags);
+
+        assertThat(CompileRustCrates.fingerprint(depInfo, "rustc 1.63.0", flags), is(fingerprint));
+        assertThat(CompileRustCrates.fingerprint(depInfo, "rustc 1.64.0", flags), is(not(fingerprint)));
+        assertThat(CompileRustCrates.fingerprint(depInfo, "rustc 1.63.0", asList("-C", "opt-level=0")), is(not(fingerprint)));
+
+        Files.write(source, "fn main() { println!(\"Hello\"); }".getBytes(UTF_8));
+        assertThat(CompileRustCrates.fingerprint(depInfo, "rustc 1.63.0", flags), is(not(fingerprint)));
+
+        Files.delete(source);
+        assertThat(CompileRustCrates.fingerprint(depInfo, "rustc 1.63.0", flags), is(nullValue()));
+    }
+
+    @Test
+    public void shouldOnlyRebuildTheCrateWhoseSourceChanged() throws IOException {
+        Path outputRoot = folder.newFolder("rust-libs").toPath();
+        Path installRoot = folder.newFolder("linux-x86-64").toPath();
+        Path greetingsSource = write("greetings.rs", "#![crate_type = \"cdylib\"]");
+        Path cpuLevelSource = write("cpulevel.rs", "#![crate_type = \"cdylib\"]");
+        Build greetings = new Build(greetingsSource, Variant.BASELINE, outputRoot, installRoot);
+        Build cpuLevel = new Build(cpuLevelSource, Variant.BASELINE, outputRoot, installRoot);
+        List<Build> builds = asList(greetings, cpuLevel);
+        Properties manifest = new Properties();
+
+        // Nothing's been compiled yet
+        assertThat(CompileRustCrates.changedBuilds(builds, "rustc 1.63.0", manifest), contains(greetings, cpuLevel));
+
+        // What compiling them leaves behind
+        compiled(greetings, "greetings", greetingsSource, manifest);
+        compiled(cpuLevel, "cpulevel", cpuLevelSource, manifest);
+        assertThat(CompileRustCrates.changedBuilds(builds, "rustc 1.63.0", manifest), is(empty()));
+
+        Files.write(greetingsSource, "#![crate_type = \"cdylib\"] // changed".getBytes(UTF_8));
+        assertThat(CompileRustCrates.changedBuilds(builds, "rustc 1.63.0", manifest), contains(greetings));
+    }
+
+    @Test
+    public void shouldRebuildACrateWhoseLibraryIsMissing() throws IOException {
+        Path outputRoot = folder.newFolder("rust-libs").toPath();
+        Path installRoot = folder.newFolder("linux-x86-64").toPath();
+        Path source = write("greetings.rs", "#![crate_type = \"cdylib\"]");
+        Build greetings = new Build(source, Variant.BASELINE, outputRoot, installRoot);
+        Properties manifest = new Properties();
+        compiled(greetings, "greetings", source, manifest);
+
+        Files.delete(installRoot.resolve(System.mapLibraryName("greetings")));
+
+        assertThat(CompileRustCrates.changedBuilds(asList(greetings), "rustc 1.63.0", manifest), contains(greetings));
+    }
+
+    /**
+     * Leave behind what compiling a crate does: its dep-info file, its
+     * library, and its fingerprint in the manifest
+     */
+    private static void compiled(Build build, String crateName, Path source, Properties manifest) throws IOException {
+        Path depInfo = build.outputDir().resolve(crateName + ".d");
+        Files.createDirectories(depInfo.getParent());
+        Files.write(depInfo, asList(build.outputDir().resolve(System.mapLibraryName(crateName)) + ": " + source, "", source + ":"), UTF_8);
+        install(build.installDir(), System.mapLibraryName(crateName));
+        manifest.setProperty(build.key(), CompileRustCrates.fingerprint(build, "rustc 1.63.0"));
+    }
+
+    private Path write(String fileName, String... lines) throws IOException {
+        return Files.write(folder.getRoot().toPath().resolve(fileName), asList(lines), UTF_8);
+    }
+
+    private static void install(Path installDir, String library) throws IOException {
+        Path file = installDir.resolve(library);
+        Files.createDirectories(file.getParent());
+        Files.write(file, "not really a library".getBytes(UTF_8));
+        Files.write(file.resolveSibling(file.getFileName() + ".sha256"), "0123".getBytes(UTF_8));
+    }
+}